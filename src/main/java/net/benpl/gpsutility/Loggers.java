@@ -29,6 +29,9 @@ public class Loggers {
      * Maintain the list of all supported loggers.
      * To make your new introduced logger selectable in ComboBox {@link PrimaryController#loggerChooser},
      * you need to append it to this list once ready.
+     * <p>
+     * The entities in this list are prototypes of each model only, the entity to work on a serial port is created by
+     * {@link GpsLogger#newInstance()} on each connect.
      */
     public static final ObservableList<GpsLogger> all = FXCollections.observableArrayList(
             new net.benpl.gpsutility.logger.holux_m241.GpsLogger(),
@@ -32,6 +32,37 @@ abstract public class ActionTask<T extends GpsLogger> {
         SUCCESS, HANDLE_NMEA_FAIL, NO_RESP, SEND_DATA_FAIL
     }
 
+    /**
+     * Exception the future of a failed task is completed with. (e.g. {@link GpsLogger#connect})
+     */
+    public static final class FailedException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * The failure cause.
+         */
+        private final CAUSE failCause;
+
+        /**
+         * Constructor.
+         *
+         * @param failCause The failure cause.
+         */
+        public FailedException(CAUSE failCause) {
+            super("ActionTask failed: " + failCause);
+            this.failCause = failCause;
+        }
+
+        /**
+         * Get the failure cause.
+         *
+         * @return The failure cause.
+         */
+        public CAUSE getFailCause() {
+            return failCause;
+        }
+    }
+
     /**
      * Name of this task.
      */
@@ -132,6 +163,9 @@ abstract public class ActionTask<T extends GpsLogger> {
             Logging.errorln("%s...failed", name);
         }
 
+        // Close this task before FX is notified, so that the next task is accepted once this one is done.
+        if (gpsLogger.actionTask == this) gpsLogger.actionTask = null;
+
         Platform.runLater(() -> {
             // Notify FX the success or failure.
             if (result == CAUSE.SUCCESS) actionListener.onSuccess();
@@ -161,7 +195,7 @@ abstract public class ActionTask<T extends GpsLogger> {
             if (gpsLogger.loggerThread != null) {
                 gpsLogger.loggerThread.stopThread();
             }
-        } else {
+        } else if (gpsLogger.actionTask == this) {
             gpsLogger.actionTask = null;
         }
     }
@@ -329,6 +363,9 @@ abstract public class ActionTask<T extends GpsLogger> {
          */
         @Override
         protected boolean run() {
+            // Whatever the sentence changes, the configuration cache can not be trusted any more.
+            gpsLogger.dropConfigCache();
+
             // Wrap the NMEA sentence into SendJob and enqueue to working thread of logger entity.
             gpsLogger.enqueueSendJob(new SendJob(gpsLogger, null, nmea, null, true));
             return false;
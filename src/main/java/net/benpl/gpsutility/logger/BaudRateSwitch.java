@@ -0,0 +1,203 @@
+/*
+ * Copyright 2018 Ben Peng
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.benpl.gpsutility.logger;
+
+import net.benpl.gpsutility.misc.Logging;
+import net.benpl.gpsutility.misc.Utils;
+import net.benpl.gpsutility.serialport.CommProperty;
+
+/**
+ * Temporary switch of serial port baud rate, to speed up bulk transfer (e.g. log upload) with MTK loggers.
+ * <p>
+ * The logger is asked to change its baud rate with 'PMTK251,[rate]', then the serial port is reconfigured on the fly,
+ * as soon as the command has left the wire, and the new baud rate is verified by a harmless query. If the query is not
+ * answered, the original baud rate is restored and checked by the same query, and the transfer goes on at original
+ * baud rate.
+ * <p>
+ * The original baud rate must be restored by {@link #restore()} once the transfer is done or failed. Otherwise the
+ * logger keeps the new baud rate until it is powered off.
+ */
+public final class BaudRateSwitch {
+
+    /**
+     * Time for logger to settle down at new baud rate, before the verification query.
+     */
+    private static final long SETTLE_TIME = 100;
+    /**
+     * Margin on top of the transmit time of PMTK251, before the serial port is reconfigured. (UART FIFO, USB latency)
+     */
+    private static final long DRAIN_MARGIN = 20;
+    /**
+     * Bits on the wire per character, upper bound. (start + 8 data + parity + 2 stop)
+     */
+    private static final int BITS_PER_CHAR = 12;
+
+    /**
+     * The logger entity to switch baud rate.
+     */
+    private final GpsLogger logger;
+    /**
+     * The baud rate to be switched to.
+     */
+    private final int baudRate;
+    /**
+     * The baud rate before switch.
+     */
+    private final int origBaudRate;
+    /**
+     * Whether the baud rate has been switched.
+     */
+    private boolean switched = false;
+    /**
+     * Whether the new baud rate failed verification, and the original one has been restored.
+     */
+    private boolean fellBack = false;
+
+    /**
+     * Constructor.
+     *
+     * @param logger   The logger entity to switch baud rate.
+     * @param baudRate The baud rate to be switched to. (0: disabled)
+     */
+    public BaudRateSwitch(GpsLogger logger, int baudRate) {
+        this.logger = logger;
+        this.baudRate = baudRate;
+        this.origBaudRate = logger.commPort.getBaudRate();
+    }
+
+    /**
+     * Create SendJobs to switch baud rate and verify it.
+     *
+     * @return The SendJobs to be enqueued in front of the transfer; or empty if the baud rate is not higher than current
+     * one, or not adjustable on the port. (e.g. TCP bridge at fixed baud rate)
+     */
+    public SendJob[] switchJobs() {
+        if (baudRate <= origBaudRate || !logger.commPort.isBaudRateAdjustable()) {
+            return new SendJob[0];
+        }
+
+        return new SendJob[]{
+                new SendJob(logger, "Switch BaudRate", "PMTK251," + baudRate, null) {
+                    @Override
+                    public void run() {
+                        super.run();
+
+                        // Follow the logger once the command is out, it does not acknowledge at old baud rate.
+                        drain(frame("PMTK251," + baudRate), origBaudRate);
+                        setBaudRate(baudRate);
+                        switched = true;
+
+                        try {
+                            Thread.sleep(SETTLE_TIME);
+                        } catch (InterruptedException ex) {
+                            ex.printStackTrace();
+                        }
+                    }
+                }, // Switch logger to new baud rate
+                new SendJob(logger, "Verify BaudRate", "PMTK182,2,8", "PMTK182,3,8") {
+                    @Override
+                    protected boolean onNoResp() {
+                        Logging.errorln("Failed to talk at %d, fallback to %d", baudRate, origBaudRate);
+                        restoreBaudRate();
+                        fellBack = true;
+                        return true;
+                    }
+                }, // Query logger for record address, at new baud rate
+                new SendJob(logger, "Recheck BaudRate", "PMTK182,2,8", "PMTK182,3,8") {
+                    @Override
+                    public void run() {
+                        // Only if fallen back, the logger may have missed PMTK251 at either baud rate.
+                        if (fellBack) super.run();
+                    }
+
+                    @Override
+                    protected boolean onNoResp() {
+                        Logging.errorln("Failed to talk at %d either", origBaudRate);
+                        return false;
+                    }
+                } // Query logger for record address, at original baud rate
+        };
+    }
+
+    /**
+     * Restore the original baud rate of logger and serial port, if switched.
+     */
+    public void restore() {
+        LoggerThread thread = logger.loggerThread;
+        if (thread == null) {
+            restoreBaudRate();
+        } else {
+            thread.execute(this::restoreBaudRate);
+        }
+    }
+
+    /**
+     * Restore the original baud rate. Ask the logger at new baud rate, then follow it at once.
+     */
+    private void restoreBaudRate() {
+        if (!switched || logger.commPort == null) return;
+        switched = false;
+
+        String nmea = frame("PMTK251," + origBaudRate);
+        Logging.debugln("<== %s", nmea);
+        logger.commPort.sendData(nmea);
+
+        drain(nmea, baudRate);
+        setBaudRate(origBaudRate);
+        Logging.infoln("BaudRate restored to %d", origBaudRate);
+    }
+
+    /**
+     * Encapsulate NMEA command into sentence.
+     *
+     * @param nmeaCmd The NMEA command.
+     * @return The NMEA sentence, with checksum.
+     */
+    private static String frame(String nmeaCmd) {
+        return String.format("$%s*%02X", nmeaCmd, Utils.getCheckSum(nmeaCmd));
+    }
+
+    /**
+     * Wait for the NMEA sentence just sent to leave the wire, before the serial port is reconfigured.
+     *
+     * @param nmea     The NMEA sentence sent.
+     * @param baudRate The baud rate it is sent at.
+     */
+    private static void drain(String nmea, int baudRate) {
+        // Sentence + CR LF
+        long bits = (long) (nmea.length() + 2) * BITS_PER_CHAR;
+        try {
+            Thread.sleep((bits * 1000 + baudRate - 1) / baudRate + DRAIN_MARGIN);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Reconfigure the serial port with new baud rate, other parameters unchanged.
+     *
+     * @param baudRate The new baud rate.
+     */
+    private void setBaudRate(int baudRate) {
+        logger.commPort.setParameters(
+                baudRate,
+                CommProperty.commDataBitsList.get(logger.commDataBitsIdx).getData(),
+                CommProperty.commParityList.get(logger.commParityIdx).getData(),
+                CommProperty.commStopBitsList.get(logger.commStopBitsIdx).getData(),
+                CommProperty.commFlowCtrlList.get(logger.commFlowCtrlIdx).getData()
+        );
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright 2018 Ben Peng
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.benpl.gpsutility.logger;
+
+import net.benpl.gpsutility.misc.Logging;
+import net.benpl.gpsutility.serialport.MtkPacket;
+
+/**
+ * Temporary switch of MTK logger to binary protocol, to speed up log upload.
+ * <p>
+ * Log data is carried by {@link MtkPacket} as raw bytes, instead of Hex string in NMEA sentence. So it takes half the
+ * bytes on the wire, and needs no Hex decoding.
+ * <p>
+ * The logger is asked to switch with 'PMTK253,1,0', then serial port frames incoming data as packets, and the switch
+ * is verified by a harmless query in binary. If the query is not answered, NMEA protocol is restored at once, and the
+ * upload goes on in NMEA.
+ * <p>
+ * NMEA protocol must be restored by {@link #restore()} once the upload is done or failed.
+ */
+public final class BinaryMode {
+
+    /**
+     * Time for logger to settle down in binary protocol, before the verification query.
+     */
+    private static final long SETTLE_TIME = 100;
+
+    /**
+     * Packet type of PMTK_SET_OUTPUT_FMT.
+     */
+    private static final int PMTK_SET_OUTPUT_FMT = 253;
+    /**
+     * Packet type of log commands.
+     */
+    static final int PMTK_LOG = 182;
+
+    /**
+     * The logger entity to switch protocol.
+     */
+    private final GpsLogger logger;
+    /**
+     * Whether binary protocol is requested.
+     */
+    private final boolean enabled;
+    /**
+     * Whether the logger has been asked to switch.
+     */
+    private boolean switched = false;
+    /**
+     * Whether binary protocol has been verified.
+     */
+    private boolean active = false;
+
+    /**
+     * Constructor.
+     *
+     * @param logger  The logger entity to switch protocol.
+     * @param enabled Whether binary protocol is requested. (ignored if not supported by logger)
+     */
+    public BinaryMode(GpsLogger logger, boolean enabled) {
+        this.logger = logger;
+        this.enabled = enabled && logger.isBinaryModeSupported();
+    }
+
+    /**
+     * Test if log data is to be transferred in binary.
+     *
+     * @return TRUE - binary protocol verified; FALSE - NMEA.
+     */
+    public boolean isActive() {
+        return active;
+    }
+
+    /**
+     * Create SendJobs to switch to binary protocol and verify it.
+     *
+     * @param then Action to be taken once the switch is done or failed. (e.g. start reading flash)
+     * @return The SendJobs to be enqueued; or empty if binary protocol is not requested.
+     */
+    public SendJob[] switchJobs(Runnable then) {
+        if (!enabled) {
+            then.run();
+            return new SendJob[0];
+        }
+
+        return new SendJob[]{
+                new SendJob(logger, "Switch BinaryMode", "PMTK253,1,0", null) {
+                    @Override
+                    public void run() {
+                        super.run();
+
+                        // Frame incoming data as binary packets at once, the logger does not acknowledge in NMEA.
+                        logger.commPort.setPacketListener(logger);
+                        switched = true;
+
+                        try {
+                            Thread.sleep(SETTLE_TIME);
+                        } catch (InterruptedException ex) {
+                            ex.printStackTrace();
+                        }
+                    }
+                }, // Switch logger to binary protocol
+                new SendJob.Binary(logger, "Verify BinaryMode", new MtkPacket(PMTK_LOG, new byte[]{0x02, 0x08}), 2000) {
+                    @Override
+                    protected boolean isPacketExpected(MtkPacket packet) {
+                        byte[] data = packet.getData();
+                        return packet.getType() == PMTK_LOG && data.length >= 2 && data[0] == 0x03 && data[1] == 0x08;
+                    }
+
+                    @Override
+                    public boolean handlePacket(MtkPacket packet) {
+                        active = true;
+                        Logging.infoln("Binary mode...active");
+                        then.run();
+                        return true;
+                    }
+
+                    @Override
+                    protected boolean onNoResp() {
+                        Logging.errorln("Failed to talk in binary, fallback to NMEA");
+                        restore();
+                        then.run();
+                        return true;
+                    }
+                } // Query logger for record address, in binary
+        };
+    }
+
+    /**
+     * Restore NMEA protocol of logger and serial port, if switched.
+     */
+    public void restore() {
+        LoggerThread thread = logger.loggerThread;
+        if (thread == null) {
+            restoreNmea();
+        } else {
+            thread.execute(this::restoreNmea);
+        }
+    }
+
+    /**
+     * Restore NMEA protocol. Ask the logger in binary, then follow it at once.
+     */
+    private void restoreNmea() {
+        if (!switched || logger.commPort == null) return;
+        switched = false;
+        active = false;
+
+        // Output format NMEA (0), at current baud rate
+        byte[] data = new byte[5];
+        MtkPacket.putUInt32(data, 1, logger.commPort.getBaudRate());
+        MtkPacket packet = new MtkPacket(PMTK_SET_OUTPUT_FMT, data);
+        Logging.debugln("<== %s", packet);
+        logger.commPort.sendPacket(packet);
+
+        logger.commPort.setPacketListener(null);
+        Logging.infoln("NMEA mode restored");
+    }
+}
@@ -0,0 +1,211 @@
+/*
+ * Copyright 2018 Ben Peng
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.benpl.gpsutility.logger;
+
+import net.benpl.gpsutility.misc.Logging;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Local cache of logger configuration, to reconnect the same device without querying all its configuration.
+ * <p>
+ * The responses of configuration queries (format register, record method, firmware version, user name, ...) are saved
+ * per device as they are, NMEA data field only. On next connect, only the flash ID, record address and the state
+ * changing as the logger runs (logger state, total records, ...) are queried. If they are consistent with the cache
+ * (same flash ID, record address not gone backward), the cached responses are replayed to the query handlers at once,
+ * so the logger entity is populated as if the queries were answered. The queries are still sent out in background, to
+ * refresh the cache for next connect.
+ */
+public final class DeviceConfigCache {
+
+    private static final String VERSION = "1";
+
+    private static final String PROP_VERSION = "version";
+    private static final String PROP_FLASH_ID = "flashId";
+    private static final String PROP_RCD_ADDR = "rcdAddr";
+    private static final String PROP_RESP = "resp.";
+
+    /**
+     * Cache file of this device.
+     */
+    private final Path file;
+    /**
+     * Flash ID of logger, as of this connect.
+     */
+    private final String flashId;
+    /**
+     * Record address (next write) of logger flash, as of this connect.
+     */
+    private final long rcdAddr;
+
+    /**
+     * Cached responses. (NMEA data field)
+     */
+    private final List<String> responses = new ArrayList<>();
+    /**
+     * Queries waiting for their responses to be recorded, and the responses recorded so far.
+     */
+    private final Map<SendJob, String> watched = new IdentityHashMap<>();
+
+    /**
+     * Constructor.
+     *
+     * @param key     Key of device. (model, flash ID, ...)
+     * @param flashId Flash ID of logger, as of this connect.
+     * @param rcdAddr Record address (next write) of logger flash, as of this connect.
+     */
+    public DeviceConfigCache(String key, String flashId, long rcdAddr) {
+        this.file = FlashImageCache.fileOf(key, ".cfg");
+        this.flashId = flashId;
+        this.rcdAddr = rcdAddr;
+    }
+
+    /**
+     * Load the cached responses, if consistent with the logger as of this connect.
+     *
+     * @return TRUE - loaded; FALSE - no cache, or outdated.
+     */
+    public boolean load() {
+        responses.clear();
+        if (!Files.isRegularFile(file)) return false;
+
+        Properties props = new Properties();
+        try (InputStream in = Files.newInputStream(file)) {
+            props.load(in);
+        } catch (IOException ex) {
+            Logging.errorln("Failed to load device config cache: %s", ex.getMessage());
+            return false;
+        }
+
+        if (!VERSION.equals(props.getProperty(PROP_VERSION)) || !String.valueOf(flashId).equals(props.getProperty(PROP_FLASH_ID))) {
+            Logging.infoln("Device config cache...mismatched");
+            return false;
+        }
+
+        long cachedAddr;
+        try {
+            cachedAddr = Long.parseLong(props.getProperty(PROP_RCD_ADDR, ""));
+        } catch (NumberFormatException ex) {
+            return false;
+        }
+        if (cachedAddr > rcdAddr) {
+            Logging.infoln("Device config cache...outdated (0x%X > 0x%X), flash erased?", cachedAddr, rcdAddr);
+            return false;
+        }
+
+        for (int i = 0; props.containsKey(PROP_RESP + i); i++) {
+            responses.add(props.getProperty(PROP_RESP + i));
+        }
+        return true;
+    }
+
+    /**
+     * Replay the cached responses to the queries, as if they were answered by logger.
+     *
+     * @param jobs The configuration queries.
+     * @return TRUE - all queries handled with cached responses; FALSE - some not cached, or failed to handle.
+     */
+    public boolean replay(SendJob... jobs) {
+        for (SendJob job : jobs) {
+            String resp = responses.stream().filter(job::isRespExpected).findFirst().orElse(null);
+            if (resp == null || !job.handleResp(resp)) {
+                Logging.infoln("Device config cache...incomplete, [%s] not cached", job.desc);
+                return false;
+            }
+        }
+
+        Logging.infoln("Device config cache...%d responses replayed", jobs.length);
+        return true;
+    }
+
+    /**
+     * Watch the responses of queries to be sent out, to save them as cache once all answered.
+     *
+     * @param jobs The configuration queries.
+     */
+    public void watch(SendJob... jobs) {
+        watched.clear();
+        Arrays.stream(jobs).forEach(job -> watched.put(job, null));
+    }
+
+    /**
+     * Record the response just handled, if it is of a query watched. (invoked by working thread of logger entity)
+     *
+     * @param job      The SendJob which has got its response handled.
+     * @param sentence The NMEA sentence received.
+     * @param from     Index of the first character of data field. (inclusive)
+     * @param to       Index of the last character of data field. (exclusive)
+     */
+    void record(SendJob job, String sentence, int from, int to) {
+        if (!watched.containsKey(job)) return;
+        watched.put(job, sentence.substring(from, to));
+
+        if (!watched.containsValue(null)) {
+            save(new ArrayList<>(watched.values()));
+            watched.clear();
+        }
+    }
+
+    /**
+     * Save the responses as cache of this device.
+     *
+     * @param values The responses. (NMEA data field)
+     */
+    private void save(List<String> values) {
+        Properties props = new Properties();
+        props.setProperty(PROP_VERSION, VERSION);
+        props.setProperty(PROP_FLASH_ID, String.valueOf(flashId));
+        props.setProperty(PROP_RCD_ADDR, String.valueOf(rcdAddr));
+        for (int i = 0; i < values.size(); i++) {
+            props.setProperty(PROP_RESP + i, values.get(i));
+        }
+
+        try {
+            Files.createDirectories(file.getParent());
+            Path tmp = Files.createTempFile(file.getParent(), "gpsutility-", ".tmp");
+            try (OutputStream out = Files.newOutputStream(tmp)) {
+                props.store(out, null);
+            }
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+            Logging.debugln("Device config cache saved: %s", file);
+        } catch (IOException ex) {
+            Logging.errorln("Failed to save device config cache: %s", ex.getMessage());
+        }
+    }
+
+    /**
+     * Drop the cache of this device, once its configuration is changed by this program.
+     */
+    public void delete() {
+        watched.clear();
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException ex) {
+            Logging.errorln("Failed to delete device config cache: %s", ex.getMessage());
+        }
+    }
+}
@@ -0,0 +1,272 @@
+/*
+ * Copyright 2018 Ben Peng
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.benpl.gpsutility.logger;
+
+import net.benpl.gpsutility.misc.Logging;
+import net.benpl.gpsutility.misc.Settings;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Random;
+import java.util.zip.CRC32;
+
+/**
+ * Local cache of logger flash image, to upload only the blocks written since last upload.
+ * <p>
+ * The image of last upload is saved per device, keyed by flash ID, user name, hardware version (whatever the model
+ * reports), together with CRC32 of each {@link FlashReader#BLOCK_SIZE} block. On next upload, the cached blocks before
+ * the previous record address are preloaded, and only the rest is read from logger. A few of the preloaded blocks are
+ * read again as samples; if any of them does not match its CRC32, the flash has been rewritten and a full read is
+ * taken instead. So is the case the record address went backward. (flash erased)
+ * <p>
+ * File layout:
+ * <pre>
+ * MAGIC | VERSION | key (UTF) | record address (long) | number of blocks (int) | CRC32 of each block (int) | image
+ * </pre>
+ */
+public final class FlashImageCache {
+
+    private static final int MAGIC = 0x47554643; // "GUFC"
+    private static final int VERSION = 1;
+
+    /**
+     * Number of preloaded blocks to be verified, besides the first one.
+     */
+    private static final int SAMPLES = 3;
+
+    /**
+     * Key of device.
+     */
+    private final String key;
+    /**
+     * Cache file of this device.
+     */
+    private final Path file;
+    /**
+     * Record address (next write) of logger flash.
+     */
+    private final long rcdAddr;
+    /**
+     * Random source of samples.
+     */
+    private final Random random = new Random();
+
+    /**
+     * CRC32 of each cached block. (NULL: nothing preloaded)
+     */
+    private int[] hashes = null;
+    /**
+     * Flash addresses of the blocks to be verified.
+     */
+    private int[] samples = new int[0];
+
+    /**
+     * Constructor.
+     *
+     * @param key     Key of device. (flash ID, user name, hardware version, ...)
+     * @param rcdAddr Record address (next write) of logger flash, as of this upload.
+     */
+    public FlashImageCache(String key, long rcdAddr) {
+        this.key = key;
+        this.rcdAddr = rcdAddr;
+        this.file = fileOf(key, ".img");
+    }
+
+    /**
+     * Preload the cached blocks which are not supposed to change since last upload.
+     *
+     * @param buffer The buffer to store log data.
+     * @return Flash address to resume reading from; or 0 if nothing preloaded. (full read)
+     */
+    public int preload(UploadBuffer buffer) {
+        if (!Files.isRegularFile(file)) return 0;
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION || !key.equals(in.readUTF())) {
+                Logging.infoln("Flash image cache...mismatched");
+                return 0;
+            }
+
+            long cachedAddr = in.readLong();
+            if (cachedAddr > rcdAddr) {
+                Logging.infoln("Flash image cache...outdated (0x%X > 0x%X), flash erased?", cachedAddr, rcdAddr);
+                return 0;
+            }
+
+            int[] cachedHashes = new int[in.readInt()];
+            for (int i = 0; i < cachedHashes.length; i++) {
+                cachedHashes[i] = in.readInt();
+            }
+
+            // The block holding previous record address was partially written, to be read again.
+            int blocks = Math.min((int) (cachedAddr / FlashReader.BLOCK_SIZE), cachedHashes.length);
+            int resumeAddr = blocks * FlashReader.BLOCK_SIZE;
+            if (blocks == 0 || resumeAddr > buffer.capacity()) return 0;
+
+            byte[] image = new byte[resumeAddr];
+            in.readFully(image);
+            buffer.put(0, image, 0, resumeAddr);
+
+            hashes = cachedHashes;
+            samples = pickSamples(random, blocks);
+
+            Logging.infoln("Flash image cache...0x%X bytes preloaded", resumeAddr);
+            return resumeAddr;
+        } catch (IOException ex) {
+            Logging.errorln("Failed to load flash image cache: %s", ex.getMessage());
+            hashes = null;
+            return 0;
+        }
+    }
+
+    /**
+     * Get flash addresses of the preloaded blocks to be read again for verification.
+     *
+     * @return The sample addresses. (each of {@link FlashReader#BLOCK_SIZE})
+     */
+    public int[] samples() {
+        return samples;
+    }
+
+    /**
+     * Verify the sample blocks within the range just read, against cached CRC32.
+     *
+     * @param addr   The flash address of the range.
+     * @param size   The size of the range.
+     * @param buffer The buffer holding the range.
+     * @return TRUE - matched (or no sample within); FALSE - flash rewritten since last upload.
+     */
+    public boolean verify(int addr, int size, UploadBuffer buffer) {
+        if (hashes == null) return true;
+
+        ByteBuffer view = buffer.asReadOnlyBuffer();
+        for (int sample : samples) {
+            if (sample < addr || sample >= addr + size) continue;
+
+            int idx = sample / FlashReader.BLOCK_SIZE;
+            if (crc32(view, sample) != hashes[idx]) {
+                Logging.infoln("Flash image cache...block 0x%08X changed", sample);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Drop the preloaded blocks, on verification failure.
+     */
+    public void invalidate() {
+        hashes = null;
+        samples = new int[0];
+    }
+
+    /**
+     * Save the uploaded image as cache of this device.
+     *
+     * @param buffer The buffer holding the whole image.
+     */
+    public void save(UploadBuffer buffer) {
+        ByteBuffer view = buffer.asReadOnlyBuffer();
+        int blocks = buffer.capacity() / FlashReader.BLOCK_SIZE;
+
+        try {
+            Files.createDirectories(file.getParent());
+            Path tmp = File.createTempFile("gpsutility-", ".tmp", file.getParent().toFile()).toPath();
+
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeUTF(key);
+                out.writeLong(rcdAddr);
+                out.writeInt(blocks);
+                for (int i = 0; i < blocks; i++) {
+                    out.writeInt(crc32(view, i * FlashReader.BLOCK_SIZE));
+                }
+
+                byte[] block = new byte[FlashReader.BLOCK_SIZE];
+                view.clear();
+                for (int i = 0; i < blocks; i++) {
+                    view.get(block);
+                    out.write(block);
+                }
+            }
+
+            try {
+                Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+            }
+            Logging.debugln("Flash image cache saved: %s", file);
+        } catch (IOException ex) {
+            Logging.errorln("Failed to save flash image cache: %s", ex.getMessage());
+        }
+    }
+
+    /**
+     * Pick the first block and a few random ones among the preloaded blocks.
+     *
+     * @param random Random source of samples.
+     * @param blocks Number of preloaded blocks.
+     * @return Flash addresses of the picked blocks.
+     */
+    static int[] pickSamples(Random random, int blocks) {
+        int[] picked = random.ints(1, Math.max(blocks, 2)).distinct().limit(Math.min(blocks - 1, SAMPLES)).toArray();
+        int[] samples = new int[picked.length + 1];
+        samples[0] = 0;
+        for (int i = 0; i < picked.length; i++) {
+            samples[i + 1] = picked[i] * FlashReader.BLOCK_SIZE;
+        }
+        return samples;
+    }
+
+    /**
+     * Compose path of cache file of device.
+     *
+     * @param key    Key of device.
+     * @param suffix Suffix of cache file.
+     * @return The path under cache directory.
+     */
+    static Path fileOf(String key, String suffix) {
+        return Paths.get(Settings.getCacheDir(), key.replaceAll("[^A-Za-z0-9.,_-]", "_") + suffix);
+    }
+
+    /**
+     * Calculate CRC32 of the block at given address.
+     *
+     * @param view The buffer view.
+     * @param addr The flash address of the block.
+     * @return CRC32 of the block.
+     */
+    static int crc32(ByteBuffer view, int addr) {
+        ByteBuffer block = view.duplicate();
+        block.position(addr);
+        block.limit(addr + FlashReader.BLOCK_SIZE);
+
+        CRC32 crc = new CRC32();
+        crc.update(block);
+        return (int) crc.getValue();
+    }
+}
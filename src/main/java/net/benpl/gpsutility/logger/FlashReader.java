@@ -0,0 +1,670 @@
+/*
+ * Copyright 2018 Ben Peng
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.benpl.gpsutility.logger;
+
+import javafx.application.Platform;
+import net.benpl.gpsutility.misc.Logging;
+import net.benpl.gpsutility.misc.Settings;
+import net.benpl.gpsutility.misc.SharedTimer;
+import net.benpl.gpsutility.serialport.MtkPacket;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledFuture;
+import java.util.function.BooleanSupplier;
+import java.util.function.IntPredicate;
+import java.util.function.Supplier;
+
+/**
+ * Reader of MTK logger flash, to read log data block by block with 'PMTK182,7,[addr],[size]'.
+ * <p>
+ * Up to {@link #window} read requests are kept outstanding as {@link SendJob.Pipelined}, so the round trip of one
+ * block overlaps the transfer of others. Each reply 'PMTK182,8,[addr],[data]' is matched to its request by address,
+ * and decoded straight into the address slot of {@link UploadBuffer}. So replies may arrive in any order.
+ * <p>
+ * The window is tuned to the device as of TCP congestion window (AIMD): it grows by one block per window of clean
+ * replies, up to {@link Settings#getUploadWindow()}, and is halved on loss, once per window of requests. A block is
+ * lost once it times out, or once a block requested after it is answered first. (the logger answers in order)
+ * <p>
+ * The block size is probed once per device (model, firmware and MTK version): the largest size answered in full
+ * is remembered in {@link Settings}. If reads of that size time out later, the block size falls back to a smaller
+ * one for this upload only, and the missing blocks are read again. A block of the smallest size which times out is
+ * read again after a backoff delay, doubled on each consecutive failure, until the retry budget of this upload is
+ * exhausted.
+ * <p>
+ * With {@link FlashImageCache}, the blocks uploaded last time are preloaded and only the rest is read, after the
+ * verification samples of preloaded blocks. A full read is taken instead if any sample does not match.
+ * <p>
+ * With {@link UploadCheckpoint}, each block is saved as it arrives, so a broken upload resumes from where it stopped,
+ * after the verification samples of resumed blocks. A full read is taken instead if any sample does not match.
+ * <p>
+ * Instead of the whole flash, only the given ranges may be read. (e.g. selected sectors, see {@link SectorIndex})
+ * The next reader may be chained, to be started once all ranges are read; the task is then finished by the last reader.
+ * <p>
+ * While {@link BinaryMode} is active, the same requests are sent as binary packets, and the replies carry raw bytes.
+ * <p>
+ * The task is finished by the reply of the last outstanding block, whichever it is.
+ */
+public final class FlashReader {
+
+    /**
+     * Size of block always supported by MTK loggers.
+     */
+    public static final int BLOCK_SIZE = 0x400;
+    /**
+     * Block sizes to be probed, from the largest.
+     */
+    private static final int[] PROBE_SIZES = {0x4000, 0x2000, 0x1000, 0x800};
+
+    /**
+     * Minimum expiry of NoResp timer for flash read, besides the time to transfer the block.
+     */
+    private static final long READ_EXPIRY = 500;
+
+    /**
+     * Maximum number of block retries per upload.
+     */
+    private static final int RETRY_BUDGET = 32;
+    /**
+     * Backoff delay before the first retry, doubled on each consecutive failure.
+     */
+    private static final long BACKOFF_BASE = 250;
+    /**
+     * Maximum backoff delay.
+     */
+    private static final long BACKOFF_MAX = 4000;
+
+    /**
+     * The logger entity to read log data from.
+     */
+    private final GpsLogger logger;
+    /**
+     * The buffer to store log data.
+     */
+    private final UploadBuffer buffer;
+    /**
+     * Listener on read progress.
+     */
+    private final ActionListener.UploadTrack listener;
+    /**
+     * Maximum number of outstanding read requests.
+     */
+    private final int maxWindow;
+    /**
+     * Key to remember the block size of this device.
+     */
+    private final String deviceKey;
+    /**
+     * Binary protocol switch. (NULL: NMEA only)
+     */
+    private final BinaryMode binaryMode;
+    /**
+     * Local cache of flash image. (NULL: full read)
+     */
+    private FlashImageCache cache = null;
+    /**
+     * On-disk checkpoint of this upload. (NULL: not resumable)
+     */
+    private UploadCheckpoint checkpoint = null;
+
+    /**
+     * The reader to be started once this one is done. (NULL: this is the last one)
+     */
+    private Supplier<FlashReader> next = null;
+
+    // Window state
+    private double window;
+    private long sentSeq = 0;
+    private long recoverSeq = 0;
+    private final TreeSet<Long> inFlight = new TreeSet<>();
+
+    // Read state
+    private int blockSize = BLOCK_SIZE;
+    private int nextAddr = 0;
+    private int outstanding = 0;
+    private int readBytes = 0;
+    private int totalBytes;
+    private boolean chained = false;
+
+    // Retry state
+    private final ActionTask<?> task;
+    private final List<ScheduledFuture<?>> retryTimers = new ArrayList<>();
+    private int retries = 0;
+    private int failures = 0;
+    private int delayed = 0;
+    private final LinkedList<int[]> missingRanges = new LinkedList<>();
+
+    /**
+     * Constructor.
+     *
+     * @param logger    The logger entity to read log data from.
+     * @param buffer    The buffer to store log data, sized to the flash range to be read.
+     * @param listener  Listener on read progress.
+     * @param window    Maximum number of outstanding read requests. (1: read block by block)
+     * @param deviceKey  Key to remember the block size of this device. (model, firmware and MTK version)
+     * @param binaryMode Binary protocol switch, to read in binary once active. (NULL: NMEA only)
+     */
+    public FlashReader(GpsLogger logger, UploadBuffer buffer, ActionListener.UploadTrack listener, int window, String deviceKey, BinaryMode binaryMode) {
+        this.logger = logger;
+        this.buffer = buffer;
+        this.listener = listener;
+        this.maxWindow = Math.max(1, window);
+        this.window = this.maxWindow;
+        this.deviceKey = deviceKey;
+        this.binaryMode = binaryMode;
+        this.totalBytes = buffer.capacity();
+        this.task = logger.actionTask;
+    }
+
+    /**
+     * Set local cache of flash image, to read only the blocks written since last upload.
+     *
+     * @param cache The flash image cache of this device.
+     */
+    public void setCache(FlashImageCache cache) {
+        this.cache = cache;
+    }
+
+    /**
+     * Read only the given ranges, instead of the whole flash.
+     *
+     * @param ranges The flash ranges to be read, each of [start address, end address). (not empty)
+     */
+    public void setRanges(List<int[]> ranges) {
+        missingRanges.clear();
+        totalBytes = 0;
+        for (int[] range : ranges) {
+            missingRanges.addLast(new int[]{range[0], range[1]});
+            totalBytes += range[1] - range[0];
+        }
+        nextAddr = buffer.capacity();
+    }
+
+    /**
+     * Set the reader to be started once this one is done. The retries taken so far are counted against its budget.
+     *
+     * @param next Supplier of the next reader; which may supply NULL if nothing more to read.
+     */
+    public void setNext(Supplier<FlashReader> next) {
+        this.next = next;
+    }
+
+    /**
+     * Set on-disk checkpoint of this upload, to save blocks as they arrive and resume a broken upload.
+     *
+     * @param checkpoint The upload checkpoint of this device.
+     */
+    public void setCheckpoint(UploadCheckpoint checkpoint) {
+        this.checkpoint = checkpoint;
+    }
+
+    /**
+     * Start reading. The first read requests are enqueued to working thread of logger entity.
+     */
+    public void start() {
+        int resumeAddr = 0;
+        if (cache != null) {
+            resumeAddr = cache.preload(buffer);
+            // Verification samples to be read first
+            for (int addr : cache.samples()) {
+                missingRanges.addLast(new int[]{addr, addr + BLOCK_SIZE});
+            }
+        }
+        if (checkpoint != null) {
+            resumeAddr = checkpoint.open(buffer, resumeAddr);
+            // Verification samples to be read first
+            for (int addr : checkpoint.samples()) {
+                missingRanges.addLast(new int[]{addr, addr + BLOCK_SIZE});
+            }
+        }
+        if (resumeAddr > 0) {
+            nextAddr = resumeAddr;
+            progress(resumeAddr);
+        }
+
+        int remembered = Settings.getUploadBlockSize(deviceKey);
+        if (remembered >= BLOCK_SIZE) {
+            blockSize = remembered;
+            Logging.debugln("Read 0x%X bytes, block size 0x%X, window %d", buffer.capacity(), blockSize, maxWindow);
+            fillWindow();
+        } else {
+            probe(0);
+        }
+    }
+
+    /**
+     * Test if all blocks have been read.
+     *
+     * @return TRUE - done; FALSE - otherwise.
+     */
+    public boolean isComplete() {
+        return nextAddr >= buffer.capacity() && outstanding == 0 && delayed == 0 && missingRanges.isEmpty();
+    }
+
+    /**
+     * Probe the block size with the next block, from the given candidate.
+     * The data read by probe is kept as the next block.
+     *
+     * @param idx Index of {@link #PROBE_SIZES}
+     */
+    private void probe(int idx) {
+        int addr = nextAddr;
+
+        // Skip the sizes larger than the flash range to be read.
+        boolean skipped = false;
+        while (idx < PROBE_SIZES.length && PROBE_SIZES[idx] > buffer.capacity() - addr) {
+            idx++;
+            skipped = true;
+        }
+
+        if (idx >= PROBE_SIZES.length) {
+            // Fallback to the size always supported.
+            // Remembered once all larger sizes are tried; not if too few blocks to probe them.
+            setBlockSize(BLOCK_SIZE, !skipped);
+            fillWindow();
+            return;
+        }
+
+        int size = PROBE_SIZES[idx];
+        int next = idx + 1;
+        Logging.debugln("Probe block size 0x%X", size);
+
+        outstanding++;
+        logger.enqueueSendJob(readJob(addr, size, len -> {
+            outstanding--;
+
+            if (len >= BLOCK_SIZE && Integer.bitCount(len) == 1) {
+                // Answered in full, or clamped by logger to its own maximum size.
+                // (Or late answer of a larger size probed before, which is valid as well)
+                setBlockSize(Math.min(len, size), true);
+                nextAddr = Math.max(nextAddr, addr + len);
+                progress(len);
+                if (checkpoint != null) checkpoint.write(addr, len, buffer);
+                if (isComplete()) {
+                    done();
+                } else {
+                    fillWindow();
+                }
+            } else {
+                probe(next);
+            }
+            return true;
+        }, () -> {
+            outstanding--;
+            probe(next);
+            return true;
+        }, () -> reread(addr, () -> probe(next - 1)))); // Read log of probed size
+    }
+
+    /**
+     * Enqueue read requests until window is full or all blocks requested.
+     * The missing blocks are requested first.
+     */
+    private void fillWindow() {
+        List<SendJob> jobs = new ArrayList<>();
+
+        while (outstanding < (int) window && (missingRanges.size() > 0 || nextAddr < buffer.capacity())) {
+            int addr;
+            int size;
+            if (missingRanges.size() > 0) {
+                int[] range = missingRanges.getFirst();
+                addr = range[0];
+                size = Math.min(blockSize, range[1] - range[0]);
+                range[0] += size;
+                if (range[0] >= range[1]) missingRanges.removeFirst();
+            } else {
+                addr = nextAddr;
+                size = Math.min(blockSize, buffer.capacity() - addr);
+                nextAddr += size;
+            }
+
+            long seq = ++sentSeq;
+            inFlight.add(seq);
+            jobs.add(readJob(addr, size, len -> {
+                acked(seq, len >= size);
+                return handleData(addr, size, len);
+            }, () -> {
+                lost(seq);
+                return fallback(addr, size);
+            }, () -> {
+                inFlight.remove(seq);
+                return reread(addr, () -> {
+                    missingRanges.addFirst(new int[]{addr, addr + size});
+                    fillWindow();
+                });
+            })); // Read log of block size
+
+            outstanding++;
+        }
+
+        if (jobs.size() > 0) {
+            logger.enqueueSendJob(jobs.toArray(new SendJob[0]));
+        }
+    }
+
+    /**
+     * Request answered: grow the window if clean, or shrink it if a request sent before is still outstanding.
+     *
+     * @param seq   Sequence of the request.
+     * @param clean TRUE - answered in full; FALSE - otherwise.
+     */
+    private void acked(long seq, boolean clean) {
+        inFlight.remove(seq);
+
+        if (!inFlight.isEmpty() && inFlight.first() < seq) {
+            // Answered out of order, the request ahead is lost.
+            shrinkWindow(inFlight.first());
+        } else if (clean) {
+            // One more block per window of clean replies.
+            window = Math.min(maxWindow, window + 1 / window);
+        }
+    }
+
+    /**
+     * Request lost (timed out): shrink the window.
+     *
+     * @param seq Sequence of the request.
+     */
+    private void lost(long seq) {
+        inFlight.remove(seq);
+        shrinkWindow(seq);
+    }
+
+    /**
+     * Halve the window, once for all the requests in flight as the loss is detected.
+     *
+     * @param seq Sequence of the request lost.
+     */
+    private void shrinkWindow(long seq) {
+        if (seq <= recoverSeq) return;
+
+        recoverSeq = sentSeq;
+        window = Math.max(1, window / 2);
+        Logging.debugln("Read window %d", (int) window);
+    }
+
+    /**
+     * Create read request of one block, in NMEA or binary depending on {@link #binaryMode}.
+     * The received log data is decoded (or copied) into its address slot before handled.
+     *
+     * @param addr        The flash address of this block.
+     * @param size        The requested size of this block.
+     * @param onData      Handler of log data, with number of bytes decoded (-1 on failure). Returns FALSE if invalid.
+     * @param onNoResp    Handler on no response. Returns TRUE if recovered.
+     * @param onCorrupted Handler on reply with checksum failed, after decoded. (NMEA only) Returns TRUE if recovered.
+     * @return The read request.
+     */
+    private SendJob readJob(int addr, int size, IntPredicate onData, BooleanSupplier onNoResp, BooleanSupplier onCorrupted) {
+        if (binaryMode != null && binaryMode.isActive()) {
+            byte[] data = new byte[9];
+            data[0] = 0x07;
+            MtkPacket.putUInt32(data, 1, addr);
+            MtkPacket.putUInt32(data, 5, size);
+
+            return new SendJob.Binary(logger, null, new MtkPacket(BinaryMode.PMTK_LOG, data), expiryOf(size, 1)) {
+                @Override
+                protected boolean isPacketExpected(MtkPacket packet) {
+                    byte[] resp = packet.getData();
+                    return packet.getType() == BinaryMode.PMTK_LOG && resp.length >= 5 && resp[0] == 0x08 && packet.getUInt32(1) == addr;
+                }
+
+                @Override
+                public boolean handlePacket(MtkPacket packet) {
+                    byte[] resp = packet.getData();
+                    return onData.test(buffer.put(addr, resp, 5, resp.length - 5));
+                }
+
+                @Override
+                protected boolean isLastJob() {
+                    return isComplete() && !chained;
+                }
+
+                @Override
+                protected boolean onNoResp() {
+                    return onNoResp.getAsBoolean();
+                }
+            };
+        }
+
+        return new SendJob.HexData(logger, null, String.format("PMTK182,7,%08X,%08X", addr, size), String.format("PMTK182,8,%08X", addr), expiryOf(size, 2), buffer, addr) {
+            @Override
+            public boolean handleData(int length) {
+                return onData.test(length);
+            }
+
+            @Override
+            protected boolean isLastJob() {
+                return isComplete() && !chained;
+            }
+
+            @Override
+            protected boolean onNoResp() {
+                return onNoResp.getAsBoolean();
+            }
+
+            @Override
+            protected boolean onCorrupted() {
+                return onCorrupted.getAsBoolean();
+            }
+        };
+    }
+
+    /**
+     * Method to handle log data received from serial port.
+     *
+     * @param addr The flash address of this block.
+     * @param size The requested size of this block.
+     * @param len  Number of bytes decoded into address slot. (-1 on failure)
+     * @return TRUE - log data accepted; FALSE - invalid log data.
+     */
+    private boolean handleData(int addr, int size, int len) {
+        outstanding--;
+
+        if (len < size) {
+            Logging.errorln("Invalid log data at 0x%08X: 0x%X of 0x%X bytes", addr, Math.max(len, 0), size);
+            return false;
+        }
+
+        failures = 0;
+        progress(size);
+
+        if ((cache != null && !cache.verify(addr, size, buffer)) || (checkpoint != null && !checkpoint.verify(addr, size, buffer))) {
+            // Flash rewritten since last upload, or of another unit: preloaded (or resumed) blocks are invalid.
+            restart();
+        }
+        if (checkpoint != null) checkpoint.write(addr, size, buffer);
+
+        if (isComplete()) {
+            done();
+        } else {
+            fillWindow();
+        }
+        return true;
+    }
+
+    /**
+     * Drop the preloaded (or resumed) blocks, and read the whole flash from the beginning.
+     * The outstanding read requests go on, their data is overwritten by the full read anyway.
+     */
+    private void restart() {
+        Logging.infoln("Preloaded blocks...invalid, full read");
+        if (cache != null) cache.invalidate();
+        if (checkpoint != null) checkpoint.reset();
+        missingRanges.clear();
+        nextAddr = 0;
+        readBytes = 0;
+    }
+
+    /**
+     * All blocks have been read. Save the image for next upload.
+     */
+    private void done() {
+        Logging.infoln("Read data from [%s]...success", logger.toString());
+        if (retries > 0) {
+            Logging.infoln("%d block(s) retried so far", retries);
+        }
+        cancelRetryTimer();
+
+        if (cache != null) {
+            cache.save(buffer);
+        }
+        if (checkpoint != null) {
+            checkpoint.delete();
+        }
+
+        if (next != null) {
+            FlashReader reader = next.get();
+            if (reader != null) {
+                // One retry budget per upload, however many readers are chained.
+                reader.retries = retries;
+                chained = true;
+                reader.start();
+            }
+        }
+    }
+
+    /**
+     * Fallback to smaller block size if a block timed out, and read the block again.
+     * Or retry the block of smallest size after backoff delay.
+     *
+     * @param addr The flash address of this block.
+     * @param size The requested size of this block.
+     * @return TRUE - block to be read again; FALSE - retry budget exhausted.
+     */
+    private boolean fallback(int addr, int size) {
+        if (size <= BLOCK_SIZE) {
+            return retry(addr, size);
+        }
+
+        outstanding--;
+
+        // For this upload only, the size remembered may time out just by a bad link.
+        if (blockSize >= size) {
+            setBlockSize(Math.max(BLOCK_SIZE, size / 2), false);
+        }
+        missingRanges.addLast(new int[]{addr, addr + size});
+        fillWindow();
+        return true;
+    }
+
+    /**
+     * Read the block again at once, if its reply failed checksum after decoded into address slot, within retry budget.
+     *
+     * @param addr   The flash address of this block.
+     * @param reread The action to read the block again.
+     * @return TRUE - block to be read again; FALSE - retry budget exhausted, left to time out.
+     */
+    private boolean reread(int addr, Runnable reread) {
+        if (retries >= RETRY_BUDGET) return false;
+
+        retries++;
+        Logging.errorln("Read 0x%08X corrupted, read again (%d of %d)", addr, retries, RETRY_BUDGET);
+
+        outstanding--;
+        reread.run();
+        return true;
+    }
+
+    /**
+     * Read the block again after backoff delay, within retry budget.
+     *
+     * @param addr The flash address of this block.
+     * @param size The requested size of this block.
+     * @return TRUE - block to be read again; FALSE - retry budget exhausted.
+     */
+    private boolean retry(int addr, int size) {
+        if (retries >= RETRY_BUDGET) {
+            Logging.errorln("Read 0x%08X failed, %d retries exhausted", addr, retries);
+            cancelRetryTimer();
+            return false;
+        }
+
+        retries++;
+        failures++;
+        long delay = Math.min(BACKOFF_MAX, BACKOFF_BASE << Math.min(failures - 1, 16));
+        Logging.errorln("Retry 0x%08X in %d ms (%d of %d)", addr, delay, retries, RETRY_BUDGET);
+
+        outstanding--;
+        delayed++;
+
+        retryTimers.removeIf(Future::isDone);
+        retryTimers.add(SharedTimer.schedule(() -> {
+            LoggerThread thread = logger.loggerThread;
+            if (thread == null) return;
+
+            thread.execute(() -> {
+                if (logger.actionTask != task) {
+                    // Upload stopped meanwhile.
+                    cancelRetryTimer();
+                    return;
+                }
+
+                delayed--;
+                missingRanges.addFirst(new int[]{addr, addr + size});
+                fillWindow();
+            });
+        }, delay));
+        return true;
+    }
+
+    /**
+     * Cancel pending retries.
+     */
+    private void cancelRetryTimer() {
+        retryTimers.forEach(timer -> timer.cancel(false));
+        retryTimers.clear();
+    }
+
+    /**
+     * Set block size of this upload, and remember it for this device if probed.
+     *
+     * @param size     The block size.
+     * @param remember TRUE - probed, to be remembered; FALSE - for this upload only.
+     */
+    private void setBlockSize(int size, boolean remember) {
+        blockSize = size;
+        if (remember) Settings.setUploadBlockSize(deviceKey, size);
+        Logging.debugln("Read 0x%X bytes, block size 0x%X, window %d", buffer.capacity(), blockSize, maxWindow);
+    }
+
+    /**
+     * Update read progress.
+     *
+     * @param size Bytes read.
+     */
+    private void progress(int size) {
+        readBytes += size;
+        double progress = Math.min(1.0, (double) readBytes / (double) totalBytes);
+        Platform.runLater(() -> listener.onProgress(progress));
+    }
+
+    /**
+     * Calculate expiry of NoResp timer, derived from round trip time, with the time to transfer the block at current
+     * baud rate.
+     *
+     * @param size         The block size.
+     * @param bytesPerByte Bytes on the wire per byte of log data. (2: Hex string, 1: binary)
+     * @return Expiry value of NoResp timer.
+     */
+    private long expiryOf(int size, int bytesPerByte) {
+        long baudRate = logger.commPort.getBaudRate();
+        // 10 bits per character (8N1)
+        return Math.max(READ_EXPIRY, logger.rtt.expiry()) + ((long) size * bytesPerByte + 32) * 10 * 1000 / baudRate;
+    }
+}
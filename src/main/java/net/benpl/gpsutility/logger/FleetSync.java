@@ -0,0 +1,232 @@
+/*
+ * Copyright 2018 Ben Peng
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.benpl.gpsutility.logger;
+
+import javafx.application.Platform;
+import net.benpl.gpsutility.misc.Logging;
+import net.benpl.gpsutility.serialport.CommPort;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Fleet sync - upload, parse and export all the loggers attached, at the same time.
+ * <p>
+ * A new logger entity of the model detected (by {@link PortScanner}) is created per serial port, at the baud rate
+ * detected, each with its own working thread and serial port, so all uploads go on in parallel. Once the log data of a logger is uploaded, the logger is disconnected and
+ * its log data is parsed and exported by a pool of bounded threads (number of CPUs), as parse and export are CPU bound.
+ * <p>
+ * The new files of each logger are tagged by its serial port name, so the loggers do not overwrite the same files. The
+ * master files, flash image cache, upload checkpoint and configuration cache follow the unit instead, whichever serial
+ * port it is attached to. (see {@link GpsLogger#storageKey(String)} and {@link LogExport#masterFilenameOf})
+ */
+public final class FleetSync {
+
+    /**
+     * Listener on fleet sync.
+     */
+    public interface Listener {
+        /**
+         * Callback on overall upload progress.
+         *
+         * @param progress The progress of all loggers. (0.0 ~ 1.0)
+         */
+        void onProgress(double progress);
+
+        /**
+         * Callback once all loggers are done.
+         *
+         * @param succeeded Number of loggers synced successfully.
+         * @param total     Number of loggers.
+         */
+        void onDone(int succeeded, int total);
+    }
+
+    /**
+     * File name formatter for exporting log data to external files.
+     */
+    private final SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd_HH-mm-ss");
+
+    private final List<PortScanner.Result> results;
+    private final int commDataBitsIdx;
+    private final int commParityIdx;
+    private final int commStopBitsIdx;
+    private final int commFlowCtrlIdx;
+    private final List<LogParser.ExportType> exportTypes;
+    private final String exportPath;
+    private final String masterFilename;
+    private final Listener listener;
+
+    /**
+     * Pool of threads to parse and export log data.
+     */
+    private final ExecutorService cpuPool;
+    /**
+     * Logger entities being synced.
+     */
+    private final List<GpsLogger> loggers = new ArrayList<>();
+    /**
+     * Upload progress of each logger.
+     */
+    private final double[] progress;
+    /**
+     * Number of loggers done, and succeeded.
+     */
+    private final AtomicInteger done = new AtomicInteger();
+    private final AtomicInteger succeeded = new AtomicInteger();
+
+    /**
+     * Constructor.
+     *
+     * @param results         The loggers detected, by serial port.
+     * @param commDataBitsIdx The index of {@link net.benpl.gpsutility.serialport.CommProperty#commDataBitsList}
+     * @param commParityIdx   The index of {@link net.benpl.gpsutility.serialport.CommProperty#commParityList}
+     * @param commStopBitsIdx The index of {@link net.benpl.gpsutility.serialport.CommProperty#commStopBitsList}
+     * @param commFlowCtrlIdx The index of {@link net.benpl.gpsutility.serialport.CommProperty#commFlowCtrlList}
+     * @param exportTypes     The types of file to be exported.
+     * @param exportPath      The directory to export files to.
+     * @param masterFilename  The file name (without extension) of master files, to be tagged per unit.
+     * @param listener        Listener on fleet sync.
+     */
+    public FleetSync(List<PortScanner.Result> results, int commDataBitsIdx, int commParityIdx, int commStopBitsIdx, int commFlowCtrlIdx,
+                     List<LogParser.ExportType> exportTypes, String exportPath, String masterFilename, Listener listener) {
+        this.results = new ArrayList<>(results);
+        this.commDataBitsIdx = commDataBitsIdx;
+        this.commParityIdx = commParityIdx;
+        this.commStopBitsIdx = commStopBitsIdx;
+        this.commFlowCtrlIdx = commFlowCtrlIdx;
+        this.exportTypes = exportTypes;
+        this.exportPath = exportPath;
+        this.masterFilename = masterFilename;
+        this.listener = listener;
+        this.progress = new double[results.size()];
+
+        int threads = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), results.size()));
+        AtomicInteger count = new AtomicInteger();
+        ThreadFactory factory = r -> {
+            Thread thread = new Thread(r, "Thread-FleetExport-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+        this.cpuPool = Executors.newFixedThreadPool(threads, factory);
+    }
+
+    /**
+     * Start to sync all loggers. (invoked on FX thread)
+     */
+    public void start() {
+        Logging.infoln("Fleet sync...%d loggers", results.size());
+
+        for (int i = 0; i < results.size(); i++) {
+            sync(i, results.get(i));
+        }
+    }
+
+    /**
+     * Stop all loggers being synced, e.g. on application exit.
+     */
+    public void stop() {
+        synchronized (loggers) {
+            loggers.forEach(GpsLogger::stopThread);
+        }
+        cpuPool.shutdownNow();
+    }
+
+    /**
+     * Sync a new logger entity on serial port: connect, upload, disconnect, then parse and export on the pool.
+     *
+     * @param idx    The index of logger.
+     * @param result The logger detected on serial port.
+     */
+    private void sync(int idx, PortScanner.Result result) {
+        CommPort commPort = result.getCommPort();
+        GpsLogger logger = result.getModel().newInstance();
+        synchronized (loggers) {
+            loggers.add(logger);
+        }
+
+        Date now = new Date();
+        String filename = sdf.format(now) + "_" + tagOf(commPort);
+
+        logger.connect(commPort, result.getCommBaudRateIdx(), commDataBitsIdx, commParityIdx, commStopBitsIdx, commFlowCtrlIdx, state -> {
+            // Each logger is followed by its futures, not by its state.
+        }).thenCompose(v -> logger.uploadTrack(value -> {
+            progress[idx] = value;
+            double sum = 0;
+            for (double p : progress) sum += p;
+            listener.onProgress(sum / progress.length);
+        })).thenApply(logParser -> {
+            // On FX thread, once the upload task closed: take the unit name, then release the logger at once.
+            String master = LogExport.masterFilenameOf(masterFilename, logger);
+            disconnect(logger);
+            return (Supplier<Boolean>) () -> LogExport.parseAndExport(logParser, exportTypes, exportPath, filename, master, now);
+        }).thenApplyAsync(Supplier::get, cpuPool).whenComplete((success, ex) -> Platform.runLater(() -> {
+            if (ex != null) {
+                Logging.errorln("Fleet sync [%s]...failed: %s", commPort.getName(), (ex.getCause() != null ? ex.getCause() : ex).getMessage());
+                finish(logger, false);
+            } else {
+                finish(null, success);
+            }
+        }));
+    }
+
+    /**
+     * Disconnect a logger entity.
+     *
+     * @param logger The logger entity.
+     */
+    private void disconnect(GpsLogger logger) {
+        logger.disconnect().exceptionally(ex -> {
+            logger.stopThread();
+            return null;
+        });
+    }
+
+    /**
+     * Close the sync of one logger, and notify listener once all are done. (invoked on FX thread)
+     *
+     * @param logger  The logger entity to be stopped; or NULL if already disconnected.
+     * @param success Whether the logger is synced successfully.
+     */
+    private void finish(GpsLogger logger, boolean success) {
+        if (logger != null) logger.stopThread();
+        if (success) succeeded.incrementAndGet();
+
+        if (done.incrementAndGet() == results.size()) {
+            cpuPool.shutdown();
+            Logging.infoln("Fleet sync...%d of %d loggers synced", succeeded.get(), results.size());
+            listener.onDone(succeeded.get(), results.size());
+        }
+    }
+
+    /**
+     * Tag new files of a logger with its serial port name.
+     *
+     * @param commPort The serial port.
+     * @return The tag to be part of file name.
+     */
+    private static String tagOf(CommPort commPort) {
+        String name = commPort.getPort() != null ? commPort.getPort().getSystemPortName() : commPort.getName();
+        return name.replaceAll("[^A-Za-z0-9.-]", "_");
+    }
+}
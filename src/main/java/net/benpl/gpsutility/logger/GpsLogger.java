@@ -20,9 +20,20 @@ import javafx.scene.layout.AnchorPane;
 import net.benpl.gpsutility.misc.Logging;
 import net.benpl.gpsutility.serialport.CommPort;
 import net.benpl.gpsutility.serialport.CommProperty;
+import net.benpl.gpsutility.serialport.MtkPacket;
 import org.jetbrains.annotations.NotNull;
 
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.function.DoubleConsumer;
+import java.util.function.Supplier;
 
 /**
  * GpsLogger is the entity responsible for communication with GPS Data Logger.
@@ -30,7 +41,7 @@ import java.util.LinkedHashMap;
  * It accepts action performed by FX controller, talks with GPS Data Logger via bound serial port, and notifies
  * FX controller on execution result (success/failure/progress/...)
  */
-abstract public class GpsLogger implements NmeaListener {
+abstract public class GpsLogger implements NmeaListener, PacketListener {
 
     // Pre-defined GpsLogger states
     public static final int STATE_IDLE = 1001;
@@ -38,6 +49,11 @@ abstract public class GpsLogger implements NmeaListener {
     public static final int STATE_SERIALPORT_OPENED = 1003;
     public static final int STATE_HANDSHAKED = 1004;
 
+    /**
+     * Keys of local storage claimed by all logger entities connected.
+     */
+    private static final Set<String> claimedKeys = new HashSet<>();
+
     /**
      * State of this logger entity
      */
@@ -79,15 +95,32 @@ abstract public class GpsLogger implements NmeaListener {
     /**
      * ActionTask is being executed.
      */
-    protected ActionTask actionTask;
+    protected volatile ActionTask actionTask;
     /**
      * SendJob is being executed, and waiting for expected response.
      */
     protected SendJob sendJob;
+    /**
+     * Pipelined SendJobs are being executed, and waiting for expected responses.
+     */
+    protected final LinkedList<SendJob> pendingJobs = new LinkedList<>();
+    /**
+     * Configuration cache of the logger connected, to record the responses of configuration queries. (NULL: none)
+     */
+    protected DeviceConfigCache configCache;
+    /**
+     * Round trip time estimator of the connection, to derive expiry of NoResp timers.
+     */
+    final RttEstimator rtt = new RttEstimator();
     /**
      * Listener on logger entity state changed.
      */
     protected StateListener stateListener;
+    /**
+     * Keys of local storage (flash image cache, upload checkpoint, configuration cache) claimed by this logger entity,
+     * by the key of unit. (see {@link #storageKey(String)})
+     */
+    private final Map<String, String> storageKeys = new HashMap<>();
 
     /**
      * Constructor.
@@ -164,6 +197,14 @@ abstract public class GpsLogger implements NmeaListener {
         this.state = state;
     }
 
+    /**
+     * Create a new logger entity of this model, to be connected on its own serial port.
+     * ({@link net.benpl.gpsutility.Loggers#all} holds one entity per model, as prototypes to choose from)
+     *
+     * @return The new logger entity.
+     */
+    abstract public GpsLogger newInstance();
+
     /**
      * Get LogParser for log data uploaded from GPS Data Logger.
      *
@@ -171,6 +212,73 @@ abstract public class GpsLogger implements NmeaListener {
      */
     abstract protected LogParser getParser();
 
+    /**
+     * Test if GPS Data Logger supports MTK binary protocol for log upload. (to be override)
+     *
+     * @return TRUE - supported; FALSE - NMEA only.
+     */
+    protected boolean isBinaryModeSupported() {
+        return false;
+    }
+
+    /**
+     * Get logger ID replied on handshake 'PHLX810', for {@link PortScanner} to detect this model. (to be override)
+     *
+     * @return The logger ID; or NULL if not detectable.
+     */
+    protected String getLoggerId() {
+        return null;
+    }
+
+    /**
+     * Get name of the unit connected, to tell it apart from other units of same model. (to be override)
+     *
+     * @return The unit name (e.g. user name of logger); or NULL if not known.
+     */
+    public String getUnitName() {
+        return null;
+    }
+
+    /**
+     * Claim the key of local storage of the unit connected, to be used by this logger entity only.
+     * <p>
+     * The key of unit is built upon what is queried from logger (model, flash ID, unit name, ...), so it follows the
+     * unit whichever serial port it is attached to. Units not told apart by it (e.g. of same model, with no unit name)
+     * may be connected at the same time, each is then given a key of its own, so they never share the files.
+     *
+     * @param key The key of unit.
+     * @return The key of local storage, claimed until this logger entity is reset.
+     */
+    protected String storageKey(String key) {
+        synchronized (claimedKeys) {
+            return storageKeys.computeIfAbsent(key, k -> {
+                String claimed = k;
+                for (int n = 2; !claimedKeys.add(claimed); n++) {
+                    claimed = k + "#" + n;
+                }
+                return claimed;
+            });
+        }
+    }
+
+    /**
+     * Release the keys of local storage claimed by this logger entity.
+     */
+    private void releaseStorageKeys() {
+        synchronized (claimedKeys) {
+            claimedKeys.removeAll(storageKeys.values());
+            storageKeys.clear();
+        }
+    }
+
+    /**
+     * Drop the configuration cache of this device, once its configuration is (or may have been) changed.
+     */
+    public void dropConfigCache() {
+        DeviceConfigCache cache = configCache;
+        if (cache != null) cache.delete();
+    }
+
     /**
      * Call hook to reset subclass state & variables.
      */
@@ -202,6 +310,11 @@ abstract public class GpsLogger implements NmeaListener {
         this.stateListener = null;
         this.actionTask = null;
         this.sendJob = null;
+        this.pendingJobs.forEach(SendJob::cancelNoRespTimer);
+        this.pendingJobs.clear();
+        this.configCache = null;
+        this.rtt.reset();
+        this.releaseStorageKeys();
     }
 
     /**
@@ -297,6 +410,141 @@ abstract public class GpsLogger implements NmeaListener {
      */
     abstract protected void performUploadTrack(ActionListener actionListener);
 
+    /**
+     * Connect to GPS Data Logger, asynchronously.
+     *
+     * @param commPort            Serial port connected to GPS Data Logger.
+     * @param commBaudRateIdx     The index of {@link CommProperty#commBaudRateList}
+     * @param commDataBitsIdx     The index of {@link CommProperty#commDataBitsList}
+     * @param commParityIdx       The index of {@link CommProperty#commParityList}
+     * @param commStopBitsIdx     The index of {@link CommProperty#commStopBitsList}
+     * @param commFlowCtrlIdx     The index of {@link CommProperty#commFlowCtrlList}
+     * @param loggerStateListener Listener on logger entity state changed.
+     * @return The future completed once connected. See {@link #submit(Consumer, DoubleConsumer, Supplier)}.
+     */
+    public CompletableFuture<Void> connect(CommPort commPort, int commBaudRateIdx, int commDataBitsIdx, int commParityIdx, int commStopBitsIdx, int commFlowCtrlIdx, StateListener loggerStateListener) {
+        return submit(listener -> performConnect(listener, commPort, commBaudRateIdx, commDataBitsIdx, commParityIdx, commStopBitsIdx, commFlowCtrlIdx, loggerStateListener), null);
+    }
+
+    /**
+     * Disconnect from GPS Data Logger, asynchronously.
+     *
+     * @return The future completed once disconnected. See {@link #submit(Consumer, DoubleConsumer, Supplier)}.
+     */
+    public CompletableFuture<Void> disconnect() {
+        return submit(this::performDisconnect, null);
+    }
+
+    /**
+     * Send NMEA sentence to GPS Data Logger for debug purpose, asynchronously.
+     *
+     * @param nmea NMEA sentence to be sent to GPS Data Logger.
+     * @return The future completed once sent. See {@link #submit(Consumer, DoubleConsumer, Supplier)}.
+     */
+    public CompletableFuture<Void> debugNmea(String nmea) {
+        return submit(listener -> performDebugNmea(listener, nmea), null);
+    }
+
+    /**
+     * Upload log data from GPS Data Logger, asynchronously.
+     *
+     * @param onProgress Callback on upload progress, invoked on FX thread; or NULL if not interested.
+     * @return The future completed with LogParser on log data uploaded. See {@link #submit(Consumer, DoubleConsumer, Supplier)}.
+     */
+    public CompletableFuture<LogParser> uploadTrack(DoubleConsumer onProgress) {
+        return submit(this::performUploadTrack, onProgress, this::getParser);
+    }
+
+    /**
+     * Perform action, and follow it by future instead of {@link ActionListener}.
+     *
+     * @param perform    The action to be performed with the listener given.
+     * @param onProgress Callback on progress of UploadTrack, invoked on FX thread; or NULL if not interested.
+     * @return The future of the action. See {@link #submit(Consumer, DoubleConsumer, Supplier)}.
+     */
+    protected CompletableFuture<Void> submit(Consumer<ActionListener> perform, DoubleConsumer onProgress) {
+        return submit(perform, onProgress, () -> null);
+    }
+
+    /**
+     * Perform action, and follow it by future instead of {@link ActionListener}.
+     * <p>
+     * The action is performed on FX thread, whichever thread this is invoked on. The future is completed on FX thread,
+     * once the task is closed (resources released, logger restored): normally with the result taken on success;
+     * exceptionally with {@link ActionTask.FailedException} on failure, or with {@link IllegalStateException} if
+     * rejected (e.g. another task still being executed). So a continuation may perform the next action at once.
+     * <p>
+     * Cancelling the future, or timing it out (e.g. {@link CompletableFuture#orTimeout}), aborts the action: the
+     * working thread of this logger entity is stopped, as on failure.
+     *
+     * @param perform    The action to be performed with the listener given.
+     * @param onProgress Callback on progress of UploadTrack, invoked on FX thread; or NULL if not interested.
+     * @param result     Supplier of the result, invoked on success before the task is closed.
+     * @param <T>        Class type of the result.
+     * @return The future of the action.
+     */
+    protected <T> CompletableFuture<T> submit(Consumer<ActionListener> perform, DoubleConsumer onProgress, Supplier<T> result) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        AtomicBoolean started = new AtomicBoolean(false);
+        AtomicBoolean settled = new AtomicBoolean(false);
+
+        // Listener is notified before the task is closed (see ActionTask.postExec()), so complete the future later on.
+        ActionListener.UploadTrack listener = new ActionListener.UploadTrack() {
+            @Override
+            public void onStart() {
+                started.set(true);
+            }
+
+            @Override
+            public void onSuccess() {
+                if (settled.compareAndSet(false, true)) {
+                    try {
+                        T value = result.get();
+                        Platform.runLater(() -> future.complete(value));
+                    } catch (RuntimeException ex) {
+                        Platform.runLater(() -> future.completeExceptionally(ex));
+                    }
+                }
+            }
+
+            @Override
+            public void onFail(ActionTask.CAUSE cause) {
+                if (settled.compareAndSet(false, true)) {
+                    Platform.runLater(() -> future.completeExceptionally(new ActionTask.FailedException(cause)));
+                }
+            }
+
+            @Override
+            public void onProgress(double progress) {
+                if (onProgress != null) onProgress.accept(progress);
+            }
+        };
+
+        // Completed by caller meanwhile (cancelled, timed out, ...), abort the action.
+        future.whenComplete((value, ex) -> {
+            if (settled.compareAndSet(false, true)) {
+                Platform.runLater(this::stopThread);
+            }
+        });
+
+        Runnable action = () -> {
+            if (future.isDone()) return;
+
+            perform.accept(listener);
+
+            // onStart() is invoked at once once the task is accepted.
+            if (!started.get() && settled.compareAndSet(false, true)) {
+                future.completeExceptionally(new IllegalStateException("ActionTask rejected by " + name));
+            }
+        };
+        if (Platform.isFxApplicationThread()) {
+            action.run();
+        } else {
+            Platform.runLater(action);
+        }
+        return future;
+    }
+
     /**
      * NMEA string received from serial port.
      *
@@ -310,4 +558,17 @@ abstract public class GpsLogger implements NmeaListener {
         }
     }
 
+    /**
+     * MTK binary packet received from serial port.
+     *
+     * @param packet MTK binary packet received from serial port.
+     */
+    @Override
+    final public void recvPacket(MtkPacket packet) {
+        if (this.loggerThread != null) {
+            // Wrap it into RecvJob and enqueue to working thread.
+            this.loggerThread.enqueueRecvJob(new RecvJob(this, packet));
+        }
+    }
+
 }
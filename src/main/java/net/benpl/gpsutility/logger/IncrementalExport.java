@@ -0,0 +1,721 @@
+/*
+ * Copyright 2018 Ben Peng
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.benpl.gpsutility.logger;
+
+import net.benpl.gpsutility.misc.Logging;
+import net.benpl.gpsutility.misc.XsdDateTimeConverter;
+
+import javax.xml.bind.JAXBException;
+import java.io.File;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+
+/**
+ * Incremental exporter, to append new tracks and POI to an existing .gpx/.kml file previously exported by this tool.
+ * <p>
+ * The existing content is never unmarshalled or marshalled again. Only the new records (later than the last track
+ * point of existing file) are marshalled, and the generated fragments are spliced in front of the closing tags of
+ * existing file. The bounds/time metadata is patched in place.
+ * <p>
+ * All offsets are byte offsets. Text is decoded as ISO-8859-1 during searching, so that string index equals to byte
+ * offset, and bytes are restored unchanged when encoded back.
+ */
+final class IncrementalExport {
+
+    /**
+     * Size of chunk read from file on searching tags.
+     */
+    private static final int CHUNK_SIZE = 8192;
+    /**
+     * Extra room reserved in metadata block once it has to grow, so that later patches fit in place.
+     */
+    private static final int METADATA_RESERVE = 32;
+    /**
+     * Maximum size of content behind the last insertion, which is buffered to append in place.
+     * Beyond this size, the file is rewritten into a temp file and moved back.
+     */
+    private static final int MAX_TAIL_SIZE = 4 * 1024 * 1024;
+    /**
+     * Suffix of the undo journal, kept next to the file while it is updated in place.
+     */
+    private static final String UNDO_SUFFIX = ".undo";
+
+    private static final Pattern BOUNDS_ATTR = Pattern.compile("(minlat|minlon|maxlat|maxlon)=\"([^\"]*)\"");
+    private static final Pattern NUMBER = Pattern.compile("\\d+");
+
+    private final LinkedList<LinkedList<LogRecord>> trackList;
+    private final LinkedList<LogRecord> poiList;
+
+    /**
+     * Constructor.
+     *
+     * @param trackList The decoded tracks.
+     * @param poiList   The decoded POI.
+     */
+    IncrementalExport(LinkedList<LinkedList<LogRecord>> trackList, LinkedList<LogRecord> poiList) {
+        this.trackList = trackList;
+        this.poiList = poiList;
+    }
+
+    /**
+     * Append new tracks/POI to existing .gpx file.
+     *
+     * @param exportFile The existing .gpx file.
+     * @param timestamp  When this .gpx file is updated.
+     * @return The file path of updated .gpx file.
+     * @throws IOException   Failed on reading/writing the file, or it is not exported by this tool.
+     * @throws JAXBException Failed on marshaling the new content.
+     */
+    String appendGpx(File exportFile, Date timestamp) throws IOException, JAXBException {
+        // Roll back the last update if it was interrupted
+        recover(exportFile);
+
+        List<Edit> edits = new ArrayList<>();
+
+        try (FileChannel ch = FileChannel.open(exportFile.toPath(), StandardOpenOption.READ)) {
+            long size = ch.size();
+
+            // Locate the metadata block, which is always at head of file
+            String head = readString(ch, 0, (int) Math.min(size, CHUNK_SIZE));
+            int metaStart = head.indexOf("<metadata>");
+            int metaEnd = head.indexOf("</metadata>");
+            long gpxEnd = lastIndexOf(ch, "</gpx>", size, 0);
+            if (!head.contains("creator=\"GPSUtility") || metaStart < 0 || metaEnd < 0 || gpxEnd < 0) {
+                throw new IOException("Not a .gpx file exported by GPSUtility: " + exportFile.getAbsolutePath());
+            }
+            metaEnd += "</metadata>".length();
+
+            // Tracks always follow waypoints, and are ordered by time
+            long firstTrk = indexOf(ch, "<trk>", metaEnd);
+            long lastTrk = lastIndexOf(ch, "<trk>", gpxEnd, metaEnd);
+            long lastTimeIdx = lastIndexOf(ch, "<time>", gpxEnd, metaEnd);
+            Date lastTime = lastTimeIdx < 0 ? null : XsdDateTimeConverter.unmarshal(readElement(ch, lastTimeIdx, "</time>"));
+
+            int lastTrackId = lastTrk < 0 ? 0 : lastNumber(ch, "<name>track-", gpxEnd, lastTrk);
+            int lastTpId = lastTrk < 0 ? 0 : lastNumber(ch, "<name>TP", gpxEnd, lastTrk);
+            int lastWpId = lastNumber(ch, "<name>TP", firstTrk < 0 ? gpxEnd : firstTrk, metaEnd);
+
+            Delta delta = new Delta(lastTime);
+            if (delta.isEmpty()) {
+                Logging.infoln("No new log records since %s", lastTime == null ? "-" : XsdDateTimeConverter.marshal(lastTime));
+                return exportFile.getAbsolutePath();
+            }
+            delta.setFirstIds(lastTrackId + 1, lastTpId + 1, lastWpId + 1);
+
+            // Marshal only the new content, and cut the fragments out of it
+            String fragment = marshal(exportFile, tmp -> delta.toGpx(tmp, timestamp));
+            int fragWpt = fragment.indexOf("<wpt ");
+            int fragTrk = fragment.indexOf("<trk>");
+            int fragEnd = lineStart(fragment, fragment.lastIndexOf("</gpx>"));
+            fragTrk = fragTrk < 0 ? fragEnd : lineStart(fragment, fragTrk);
+            fragWpt = fragWpt < 0 ? fragTrk : lineStart(fragment, fragWpt);
+
+            // gpx<-Metadata, with bounds merged
+            String metadata = fragment.substring(fragment.indexOf("<metadata>"), fragment.indexOf("</metadata>") + "</metadata>".length());
+            metadata = mergeBounds(head.substring(metaStart, metaEnd), metadata, delta);
+            edits.add(new Edit(metaStart, metaEnd, padMetadata(metadata, metaEnd - metaStart)));
+            long trkAt = lineStart(ch, gpxEnd);
+            if (firstTrk < 0) {
+                // gpx<-WptList<-TrkList, in front of </gpx>
+                edits.add(new Edit(trkAt, trkAt, fragment.substring(fragWpt, fragEnd)));
+            } else {
+                // gpx<-WptList, in front of the first track
+                long wptAt = lineStart(ch, firstTrk);
+                edits.add(new Edit(wptAt, wptAt, fragment.substring(fragWpt, fragTrk)));
+                // gpx<-TrkList, in front of </gpx>
+                edits.add(new Edit(trkAt, trkAt, fragment.substring(fragTrk, fragEnd)));
+            }
+        }
+
+        applyEdits(exportFile, edits);
+
+        // Return updated file name+path for prompt in log window
+        return exportFile.getAbsolutePath();
+    }
+
+    /**
+     * Append new tracks/POI to existing .kml file.
+     *
+     * @param exportFile The existing .kml file.
+     * @param timestamp  When this .kml file is updated.
+     * @return The file path of updated .kml file.
+     * @throws IOException   Failed on reading/writing the file, or it is not exported by this tool.
+     * @throws JAXBException Failed on marshaling the new content.
+     */
+    String appendKml(File exportFile, Date timestamp) throws IOException, JAXBException {
+        // Roll back the last update if it was interrupted
+        recover(exportFile);
+
+        List<Edit> edits = new ArrayList<>();
+
+        try (FileChannel ch = FileChannel.open(exportFile.toPath(), StandardOpenOption.READ)) {
+            long size = ch.size();
+
+            // Locate the snippet, which is always at head of file
+            String head = readString(ch, 0, (int) Math.min(size, CHUNK_SIZE));
+            int snippetStart = head.indexOf("<snippet>");
+            int snippetEnd = head.indexOf("</snippet>");
+            long tracksStart = indexOf(ch, "<name>Tracks</name>", 0);
+            long docEnd = lastIndexOf(ch, "</Document>", size, 0);
+            if (!head.contains("<name>GPS Device</name>") || snippetStart < 0 || snippetEnd < 0 || tracksStart < 0 || docEnd < 0) {
+                throw new IOException("Not a .kml file exported by GPSUtility: " + exportFile.getAbsolutePath());
+            }
+            snippetEnd += "</snippet>".length();
+
+            // Document<-TrackFolder, optionally followed by Document<-PoiFolder
+            long lastFolderEnd = lastIndexOf(ch, "</Folder>", docEnd, tracksStart);
+            long lastFolderStart = lastIndexOf(ch, "<Folder>", lastFolderEnd, tracksStart);
+            long poiStart = -1;
+            long poiEnd = -1;
+            long tracksEnd = lastFolderEnd;
+            if (lastFolderStart >= 0 && readString(ch, lastFolderStart, 128).contains("<name>POI List</name>")) {
+                poiStart = lastFolderStart;
+                poiEnd = lastFolderEnd;
+                tracksEnd = lastIndexOf(ch, "</Folder>", poiStart, tracksStart);
+            }
+            if (tracksEnd < 0) {
+                throw new IOException("Not a .kml file exported by GPSUtility: " + exportFile.getAbsolutePath());
+            }
+
+            // Tracks are ordered by time
+            long lastWhenIdx = lastIndexOf(ch, "<when>", tracksEnd, tracksStart);
+            Date lastTime = lastWhenIdx < 0 ? null : XsdDateTimeConverter.unmarshal(readElement(ch, lastWhenIdx, "</when>"));
+
+            int lastTrackId = lastNumber(ch, "<name>track-", tracksEnd, tracksStart);
+            int lastPoiId = poiStart < 0 ? 0 : lastNumber(ch, "<name>POI", poiEnd, poiStart);
+
+            Delta delta = new Delta(lastTime);
+            if (delta.isEmpty()) {
+                Logging.infoln("No new log records since %s", lastTime == null ? "-" : XsdDateTimeConverter.marshal(lastTime));
+                return exportFile.getAbsolutePath();
+            }
+            delta.setFirstIds(lastTrackId + 1, 1, lastPoiId + 1);
+
+            // Marshal only the new content, and cut the fragments out of it
+            String fragment = marshal(exportFile, tmp -> delta.toKml(tmp, timestamp));
+            int fragTracks = fragment.indexOf("<name>Tracks</name>");
+            int fragTracksEnd = fragment.indexOf("</Folder>", fragTracks);
+            int fragPoi = fragment.indexOf("<Folder>", fragTracksEnd);
+            int fragDocEnd = lineStart(fragment, fragment.lastIndexOf("</Document>"));
+
+            // kml<-Document<-Snippet, same length as "Created ..."
+            String snippet = fragment.substring(fragment.indexOf("<snippet>"), fragment.indexOf("</snippet>") + "</snippet>".length());
+            snippet = snippet.replace("<snippet>Created ", "<snippet>Updated ");
+            edits.add(new Edit(snippetStart, snippetEnd, snippet));
+
+            // kml<-Document<-TrackFolder<-Placemark, in front of </Folder>
+            int fragPlacemark = fragment.indexOf("<Placemark>", fragTracks);
+            if (fragPlacemark >= 0 && fragPlacemark < fragTracksEnd) {
+                long at = lineStart(ch, tracksEnd);
+                edits.add(new Edit(at, at, fragment.substring(lineStart(fragment, fragPlacemark), lineStart(fragment, fragTracksEnd))));
+            }
+
+            // kml<-Document<-PoiFolder<-Placemark
+            if (fragPoi >= 0) {
+                if (poiStart >= 0) {
+                    // In front of </Folder> of existing PoiFolder
+                    int from = lineStart(fragment, fragment.indexOf("<Placemark>", fragPoi));
+                    int to = lineStart(fragment, fragment.indexOf("</Folder>", fragPoi));
+                    long at = lineStart(ch, poiEnd);
+                    edits.add(new Edit(at, at, fragment.substring(from, to)));
+                } else {
+                    // The whole PoiFolder in front of </Document>
+                    long at = lineStart(ch, docEnd);
+                    edits.add(new Edit(at, at, fragment.substring(lineStart(fragment, fragPoi), fragDocEnd)));
+                }
+            }
+        }
+
+        applyEdits(exportFile, edits);
+
+        // Return updated file name+path for prompt in log window
+        return exportFile.getAbsolutePath();
+    }
+
+    /**
+     * Marshal the new content into a temp file next to the export file, and return its content.
+     *
+     * @param exportFile The existing export file.
+     * @param exporter   The exporter writing into the given temp file.
+     * @return The content of temp file, decoded as ISO-8859-1.
+     * @throws IOException   Failed on creating/reading temp file.
+     * @throws JAXBException Failed on marshaling the new content.
+     */
+    private static String marshal(File exportFile, Exporter exporter) throws IOException, JAXBException {
+        File tmp = File.createTempFile("gpsutility-", ".tmp", exportFile.getAbsoluteFile().getParentFile());
+        try {
+            exporter.export(tmp);
+            return new String(Files.readAllBytes(tmp.toPath()), ISO_8859_1);
+        } finally {
+            Files.deleteIfExists(tmp.toPath());
+        }
+    }
+
+    /**
+     * Merge bounds of existing metadata into the new metadata.
+     *
+     * @param oldMetadata The metadata block of existing file.
+     * @param newMetadata The metadata block marshalled from new content.
+     * @param delta       The new content.
+     * @return The new metadata block with merged bounds.
+     */
+    private static String mergeBounds(String oldMetadata, String newMetadata, Delta delta) {
+        double minlat = 90;
+        double maxlat = -90;
+        double minlon = 180;
+        double maxlon = -180;
+
+        // Bounds of existing file
+        Matcher matcher = BOUNDS_ATTR.matcher(oldMetadata);
+        while (matcher.find()) {
+            try {
+                double value = Double.parseDouble(matcher.group(2));
+                switch (matcher.group(1)) {
+                    case "minlat":
+                        minlat = Math.min(minlat, value);
+                        break;
+                    case "maxlat":
+                        maxlat = Math.max(maxlat, value);
+                        break;
+                    case "minlon":
+                        minlon = Math.min(minlon, value);
+                        break;
+                    case "maxlon":
+                        maxlon = Math.max(maxlon, value);
+                        break;
+                    default:
+                        break;
+                }
+            } catch (NumberFormatException e) {
+                Logging.errorln("Invalid bounds in metadata: %s", matcher.group());
+            }
+        }
+
+        // Bounds of new tracks
+        for (LinkedList<LogRecord> rcdList : delta.trackList) {
+            for (LogRecord record : rcdList) {
+                minlat = Math.min(minlat, record.getLatitude());
+                minlon = Math.min(minlon, record.getLongitude());
+                maxlat = Math.max(maxlat, record.getLatitude());
+                maxlon = Math.max(maxlon, record.getLongitude());
+            }
+        }
+
+        if (minlat > maxlat || minlon > maxlon) {
+            return newMetadata;
+        }
+
+        StringBuffer sb = new StringBuffer();
+        matcher = BOUNDS_ATTR.matcher(newMetadata);
+        while (matcher.find()) {
+            double value;
+            switch (matcher.group(1)) {
+                case "minlat":
+                    value = minlat;
+                    break;
+                case "maxlat":
+                    value = maxlat;
+                    break;
+                case "minlon":
+                    value = minlon;
+                    break;
+                default:
+                    value = maxlon;
+                    break;
+            }
+            matcher.appendReplacement(sb, matcher.group(1) + "=\"" + BigDecimal.valueOf(value).toPlainString() + "\"");
+        }
+        matcher.appendTail(sb);
+        return sb.toString();
+    }
+
+    /**
+     * Pad the metadata block with whitespace to the length of existing one, so it can be patched in place.
+     * If it does not fit, some extra room is reserved for later patches.
+     *
+     * @param metadata The new metadata block.
+     * @param length   The length of existing metadata block.
+     * @return The padded metadata block.
+     */
+    private static String padMetadata(String metadata, int length) {
+        int pad = length - metadata.length();
+        if (pad < 0) {
+            pad = METADATA_RESERVE;
+        }
+
+        StringBuilder sb = new StringBuilder(metadata);
+        int at = sb.lastIndexOf("</metadata>");
+        for (int i = 0; i < pad; i++) {
+            sb.insert(at, ' ');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Apply the edits to file.
+     * <p>
+     * If only the last edit changes the length, the file is updated in place: the bytes about to be overwritten are
+     * saved into an undo journal first, then the content behind the last edit is buffered and written back after the
+     * inserted bytes, and other edits are patched at their offsets. The journal is dropped once the file is forced to
+     * disk, or played back by {@link #recover(File)} if the update is interrupted. Otherwise, the file is rewritten
+     * into a temp file (unchanged ranges copied by channel transfer) and moved back.
+     *
+     * @param file  The file to be updated.
+     * @param edits The edits.
+     * @throws IOException Failed on updating the file.
+     */
+    private static void applyEdits(File file, List<Edit> edits) throws IOException {
+        edits.sort(Comparator.comparingLong(edit -> edit.start));
+        Edit last = edits.get(edits.size() - 1);
+
+        boolean inPlace = true;
+        for (Edit edit : edits) {
+            if (edit != last && edit.data.length != edit.end - edit.start) {
+                inPlace = false;
+                break;
+            }
+        }
+
+        Path tmp;
+        try (FileChannel ch = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long size = ch.size();
+
+            if (inPlace && size - last.end <= MAX_TAIL_SIZE) {
+                // Save what is about to be overwritten, so that an interrupted update can be rolled back
+                writeUndo(file, ch, size, edits, last);
+
+                try {
+                    // Append in place: new content + original tail
+                    ByteBuffer tail = ByteBuffer.allocate((int) (size - last.end));
+                    readFully(ch, tail, last.end);
+                    tail.flip();
+                    long pos = last.start;
+                    pos += writeFully(ch, ByteBuffer.wrap(last.data), pos);
+                    pos += writeFully(ch, tail, pos);
+                    ch.truncate(pos);
+
+                    // Patch the others in place
+                    for (Edit edit : edits) {
+                        if (edit != last) {
+                            writeFully(ch, ByteBuffer.wrap(edit.data), edit.start);
+                        }
+                    }
+                    ch.force(false);
+                    Logging.infoln("Appended %d bytes in place", pos - size);
+                } catch (IOException e) {
+                    try {
+                        recover(file);
+                    } catch (IOException ex) {
+                        e.addSuppressed(ex);
+                    }
+                    throw e;
+                }
+
+                Files.delete(undoFile(file).toPath());
+                return;
+            }
+
+            // Rewrite into temp file
+            tmp = File.createTempFile("gpsutility-", ".tmp", file.getAbsoluteFile().getParentFile()).toPath();
+            try {
+                try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                    long pos = 0;
+                    for (Edit edit : edits) {
+                        transferFully(ch, pos, edit.start - pos, out);
+                        out.write(ByteBuffer.wrap(edit.data));
+                        pos = edit.end;
+                    }
+                    transferFully(ch, pos, size - pos, out);
+                    out.force(false);
+                }
+            } catch (IOException e) {
+                Files.deleteIfExists(tmp);
+                throw e;
+            }
+        }
+
+        move(tmp, file.toPath());
+        Logging.infoln("Rewritten %s", file.getAbsolutePath());
+    }
+
+    /**
+     * Save the bytes overwritten by an in-place update into the undo journal of file.
+     * <p>
+     * The journal holds the original file size, followed by (offset, length, bytes) of each overwritten range. It is
+     * written into a temp file and moved into place once complete, so that a journal found later is always whole.
+     *
+     * @param file  The file to be updated in place.
+     * @param ch    The channel opened on file.
+     * @param size  The original size of file.
+     * @param edits The edits, sorted by offset.
+     * @param last  The last edit, which overwrites everything behind its start.
+     * @throws IOException Failed on writing the journal.
+     */
+    private static void writeUndo(File file, FileChannel ch, long size, List<Edit> edits, Edit last) throws IOException {
+        File undo = undoFile(file);
+        Path tmp = File.createTempFile("gpsutility-", ".tmp", undo.getParentFile()).toPath();
+        try {
+            try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                writeFully(out, ByteBuffer.allocate(Long.BYTES).putLong(size).flip());
+                for (Edit edit : edits) {
+                    long end = edit == last ? size : edit.end;
+                    writeFully(out, ByteBuffer.allocate(2 * Long.BYTES).putLong(edit.start).putLong(end - edit.start).flip());
+                    transferFully(ch, edit.start, end - edit.start, out);
+                }
+                out.force(false);
+            }
+            move(tmp, undo.toPath());
+        } catch (IOException e) {
+            Files.deleteIfExists(tmp);
+            throw e;
+        }
+    }
+
+    /**
+     * Roll back an interrupted in-place update of file, if its undo journal is left behind.
+     *
+     * @param file The file to be checked.
+     * @throws IOException Failed on reading the journal or restoring the file.
+     */
+    private static void recover(File file) throws IOException {
+        File undo = undoFile(file);
+        if (!undo.exists()) return;
+
+        try (FileChannel in = FileChannel.open(undo.toPath(), StandardOpenOption.READ);
+             FileChannel ch = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long size = readLong(in, 0);
+            long pos = Long.BYTES;
+            while (pos < in.size()) {
+                long start = readLong(in, pos);
+                long length = readLong(in, pos + Long.BYTES);
+                pos += 2 * Long.BYTES;
+                ch.position(start);
+                transferFully(in, pos, length, ch);
+                pos += length;
+            }
+            ch.truncate(size);
+            ch.force(false);
+        }
+
+        Files.delete(undo.toPath());
+        Logging.infoln("Restored %s from an interrupted update", file.getAbsolutePath());
+    }
+
+    /**
+     * Get the undo journal of file, which is kept next to it.
+     */
+    private static File undoFile(File file) {
+        return new File(file.getAbsolutePath() + UNDO_SUFFIX);
+    }
+
+    /**
+     * Move the temp file onto target, atomically if supported by file system.
+     */
+    private static void move(Path tmp, Path target) throws IOException {
+        try {
+            Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Read string from file. (ISO-8859-1)
+     */
+    private static String readString(FileChannel ch, long pos, int length) throws IOException {
+        length = (int) Math.max(0, Math.min(length, ch.size() - pos));
+        ByteBuffer buf = ByteBuffer.allocate(length);
+        readFully(ch, buf, pos);
+        return new String(buf.array(), 0, buf.position(), ISO_8859_1);
+    }
+
+    /**
+     * Read the text of element starting at given offset.
+     */
+    private static String readElement(FileChannel ch, long pos, String endTag) throws IOException {
+        String s = readString(ch, pos, 256);
+        int start = s.indexOf('>') + 1;
+        int end = s.indexOf(endTag);
+        return end < start ? "" : s.substring(start, end).trim();
+    }
+
+    /**
+     * Search forward for pattern from given offset.
+     *
+     * @return Offset of pattern, or -1 if not found.
+     */
+    private static long indexOf(FileChannel ch, String pattern, long from) throws IOException {
+        long size = ch.size();
+        while (from < size) {
+            String s = readString(ch, from, CHUNK_SIZE);
+            int i = s.indexOf(pattern);
+            if (i >= 0) return from + i;
+            if (from + s.length() >= size) break;
+            from += s.length() - pattern.length() + 1;
+        }
+        return -1;
+    }
+
+    /**
+     * Search backward for pattern, which ends before given offset and starts not before floor.
+     *
+     * @return Offset of pattern, or -1 if not found.
+     */
+    private static long lastIndexOf(FileChannel ch, String pattern, long before, long floor) throws IOException {
+        while (before - floor >= pattern.length()) {
+            long start = Math.max(floor, before - CHUNK_SIZE);
+            String s = readString(ch, start, (int) (before - start));
+            int i = s.lastIndexOf(pattern);
+            if (i >= 0) return start + i;
+            if (start == floor) break;
+            before = start + pattern.length() - 1;
+        }
+        return -1;
+    }
+
+    /**
+     * Parse the number following the last pattern between floor and given offset.
+     *
+     * @return The number, or 0 if not found.
+     */
+    private static int lastNumber(FileChannel ch, String pattern, long before, long floor) throws IOException {
+        long idx = lastIndexOf(ch, pattern, before, floor);
+        if (idx < 0) return 0;
+        Matcher matcher = NUMBER.matcher(readString(ch, idx + pattern.length(), 16));
+        return matcher.lookingAt() ? Integer.parseInt(matcher.group()) : 0;
+    }
+
+    /**
+     * Return offset of the line containing given offset.
+     */
+    private static long lineStart(FileChannel ch, long pos) throws IOException {
+        long start = Math.max(0, pos - 256);
+        String s = readString(ch, start, (int) (pos - start));
+        return start + s.lastIndexOf('\n') + 1;
+    }
+
+    private static int lineStart(String s, int pos) {
+        return s.lastIndexOf('\n', pos - 1) + 1;
+    }
+
+    private static void readFully(FileChannel ch, ByteBuffer buf, long pos) throws IOException {
+        while (buf.hasRemaining()) {
+            int n = ch.read(buf, pos);
+            if (n < 0) break;
+            pos += n;
+        }
+    }
+
+    private static long writeFully(FileChannel ch, ByteBuffer buf, long pos) throws IOException {
+        long written = 0;
+        while (buf.hasRemaining()) {
+            written += ch.write(buf, pos + written);
+        }
+        return written;
+    }
+
+    private static void writeFully(FileChannel ch, ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) {
+            ch.write(buf);
+        }
+    }
+
+    private static long readLong(FileChannel ch, long pos) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(Long.BYTES);
+        readFully(ch, buf, pos);
+        if (buf.hasRemaining()) throw new IOException("Truncated undo journal");
+        return buf.getLong(0);
+    }
+
+    private static void transferFully(FileChannel ch, long pos, long count, FileChannel out) throws IOException {
+        while (count > 0) {
+            long n = ch.transferTo(pos, count, out);
+            if (n <= 0) throw new IOException("Failed on copying file content");
+            pos += n;
+            count -= n;
+        }
+    }
+
+    /**
+     * Exporter of new content into given file.
+     */
+    @FunctionalInterface
+    private interface Exporter {
+        void export(File file) throws JAXBException;
+    }
+
+    /**
+     * Replace bytes [start, end) of file with data.
+     */
+    private static final class Edit {
+        final long start;
+        final long end;
+        final byte[] data;
+
+        Edit(long start, long end, String data) {
+            this.start = start;
+            this.end = end;
+            this.data = data.getBytes(ISO_8859_1);
+        }
+    }
+
+    /**
+     * The new tracks/POI, which are later than the last track point of existing file.
+     */
+    private final class Delta extends LogParser {
+
+        Delta(Date lastTime) {
+            super(new byte[0]);
+
+            for (LinkedList<LogRecord> rcdList : IncrementalExport.this.trackList) {
+                LinkedList<LogRecord> track = new LinkedList<>();
+                rcdList.stream().filter(record -> isNew(record, lastTime)).forEachOrdered(track::add);
+                if (!track.isEmpty()) {
+                    trackList.add(track);
+                }
+            }
+            IncrementalExport.this.poiList.stream().filter(record -> isNew(record, lastTime)).forEachOrdered(poiList::add);
+        }
+
+        private boolean isNew(LogRecord record, Date lastTime) {
+            return lastTime == null || (record.getUtc() != null && record.getUtc().after(lastTime));
+        }
+
+        boolean isEmpty() {
+            return trackList.isEmpty() && poiList.isEmpty();
+        }
+
+        @Override
+        public void parse() {
+        }
+    }
+}
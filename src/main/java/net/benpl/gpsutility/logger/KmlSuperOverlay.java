@@ -0,0 +1,434 @@
+/*
+ * Copyright 2018 Ben Peng
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.benpl.gpsutility.logger;
+
+import net.benpl.gpsutility.kml.*;
+import net.benpl.gpsutility.misc.Logging;
+import net.benpl.gpsutility.misc.XsdDateTimeConverter;
+
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.Marshaller;
+import java.io.File;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Export log data as KML super-overlay.
+ * <p>
+ * The track points are split into a quadtree of .kml tiles. Coarse tiles carry simplified geometry, leaf tiles carry
+ * full detail, and each tile links to its children through Region activated NetworkLinks. So the viewer (Google Earth)
+ * only fetches the tiles visible on screen.
+ */
+final class KmlSuperOverlay {
+    /**
+     * Name of the root .kml file within export folder.
+     */
+    static final String ROOT_FILE = "doc.kml";
+    /**
+     * Tile with no more points than this is not split any more.
+     */
+    private static final int MAX_TILE_POINTS = 2000;
+    /**
+     * Deepest quadtree level.
+     */
+    private static final int MAX_LEVEL = 12;
+    /**
+     * Tile becomes active once its Region takes this many pixels on screen.
+     */
+    private static final double MIN_LOD_PIXELS = 128;
+    /**
+     * Simplification tolerance of coarse tile. (fraction of tile span, about 1 pixel on a 256 pixels tile)
+     */
+    private static final double SIMPLIFY_RATIO = 1.0 / 256;
+
+    private final ObjectFactory kmlFactory = new ObjectFactory();
+    private final LinkedList<LinkedList<LogRecord>> trackList;
+    private final LinkedList<LogRecord> poiList;
+
+    private Marshaller marshaller;
+    private File exportDir;
+    private int tileCount;
+
+    /**
+     * Constructor.
+     *
+     * @param trackList All decoded tracks.
+     * @param poiList   All decoded POI.
+     */
+    KmlSuperOverlay(LinkedList<LinkedList<LogRecord>> trackList, LinkedList<LogRecord> poiList) {
+        this.trackList = trackList;
+        this.poiList = poiList;
+    }
+
+    /**
+     * Export log data into folder as super-overlay.
+     *
+     * @param exportDir The export target folder. (created if not exist)
+     * @param timestamp When this super-overlay is created.
+     * @return The file path of exported root .kml file.
+     * @throws JAXBException Failed on marshaling the {@link KmlType} object.
+     */
+    String export(File exportDir, Date timestamp) throws JAXBException {
+        if (!exportDir.isDirectory() && !exportDir.mkdirs()) {
+            throw new JAXBException("Failed to create folder " + exportDir.getAbsolutePath());
+        }
+
+        this.exportDir = exportDir;
+        this.tileCount = 0;
+
+        JAXBContext jaxbContext = JAXBContext.newInstance(KmlType.class);
+        marshaller = jaxbContext.createMarshaller();
+        marshaller.setProperty(Marshaller.JAXB_FORMATTED_OUTPUT, true);
+
+        // Bounds of all track points and POI (root tile carries POI as well)
+        List<List<LogRecord>> runs = new ArrayList<>();
+        for (LinkedList<LogRecord> track : trackList) {
+            if (!track.isEmpty()) runs.add(new ArrayList<>(track));
+        }
+        List<List<LogRecord>> all = new ArrayList<>(runs);
+        all.add(poiList);
+
+        double north = -90, south = 90, east = -180, west = 180;
+        for (List<LogRecord> list : all) {
+            for (LogRecord record : list) {
+                north = Math.max(north, record.getLatitude());
+                south = Math.min(south, record.getLatitude());
+                east = Math.max(east, record.getLongitude());
+                west = Math.min(west, record.getLongitude());
+            }
+        }
+        if (north < south) {
+            // No point at all, the whole globe instead of inverted Region.
+            north = 90;
+            south = -90;
+            east = 180;
+            west = -180;
+        }
+        // Avoid zero sized Region (single point, or straight line along meridian/parallel)
+        if (north - south < 1e-5) {
+            north += 1e-5;
+            south -= 1e-5;
+        }
+        if (east - west < 1e-5) {
+            east += 1e-5;
+            west -= 1e-5;
+        }
+
+        // kml<-Document (root tile + POI)
+        DocumentType document = buildTile(new Tile(0, 0, 0, north, south, east, west), runs);
+        document.setNameRevised("GPS Device");
+        SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+        document.setSnippetRevised("Created " + sdf.format(timestamp));
+
+        // kml<-Document<-PoiFolder<-...(POI)
+        if (poiList.size() > 0) {
+            FolderType poiFolder = kmlFactory.createFolderType();
+            poiFolder.setNameRevised("POI List");
+
+            int wpId = 1;
+            for (LogRecord record : poiList) {
+                PlacemarkType placemark = kmlFactory.createPlacemarkType();
+                placemark.setNameRevised(String.format("POI%06d", wpId++));
+                TimeStampType timeStamp = kmlFactory.createTimeStampType();
+                timeStamp.setWhen(XsdDateTimeConverter.sdf.format(record.getUtc()));
+                placemark.setAbstractTimePrimitiveGroup(kmlFactory.createTimeStamp(timeStamp));
+                PointType point = kmlFactory.createPointType();
+                point.getCoordinates().add(String.format("%f,%f,%f", record.getLongitude(), record.getLatitude(), record.getHeight()));
+                placemark.setAbstractGeometryGroup(kmlFactory.createPoint(point));
+                poiFolder.getAbstractFeatureGroup().add(kmlFactory.createPlacemark(placemark));
+            }
+
+            document.getAbstractFeatureGroup().add(kmlFactory.createFolder(poiFolder));
+        }
+
+        File rootFile = new File(exportDir, ROOT_FILE);
+        writeDocument(document, rootFile);
+
+        Logging.infoln("Super-overlay: %d tiles", tileCount);
+
+        // Return exported file name+path for prompt in log window
+        return rootFile.getAbsolutePath();
+    }
+
+    /**
+     * Build one tile, and write its children tiles to export folder recursively.
+     *
+     * @param tile The tile to build.
+     * @param runs Track runs of parent tile. (unsimplified)
+     * @return The Document of this tile.
+     * @throws JAXBException Failed on marshaling children tiles.
+     */
+    private DocumentType buildTile(Tile tile, List<List<LogRecord>> runs) throws JAXBException {
+        tileCount++;
+
+        // Runs of points within this tile
+        List<List<LogRecord>> clipped = new ArrayList<>();
+        int points = 0;
+        for (List<LogRecord> run : runs) {
+            for (List<LogRecord> part : tile.clip(run)) {
+                clipped.add(part);
+                points += part.size();
+            }
+        }
+
+        boolean leaf = points <= MAX_TILE_POINTS || tile.level >= MAX_LEVEL;
+
+        DocumentType document = kmlFactory.createDocumentType();
+        document.setNameRevised(tile.getName());
+        // The root tile is always active, others become active once large enough on screen.
+        document.setRegion(createRegion(tile, tile.level == 0 ? 0 : MIN_LOD_PIXELS, -1));
+
+        // kml<-Document<-TrackStyle
+        StyleType trackStyle = kmlFactory.createStyleType();
+        LineStyleType lineStyle = new LineStyleType();
+        lineStyle.setWidth(3.0);
+        lineStyle.setColor(new byte[]{(byte) 0x99, (byte) 0x00, (byte) 0x00, (byte) 0xff});
+        trackStyle.setLineStyle(lineStyle);
+        trackStyle.setId("trackStyle");
+        document.getAbstractStyleSelectorGroup().add(kmlFactory.createStyle(trackStyle));
+
+        // kml<-Document<-TrackFolder
+        // Coarse geometry fades out once children tiles (half size) become active.
+        FolderType trackFolder = kmlFactory.createFolderType();
+        trackFolder.setNameRevised("Tracks");
+        trackFolder.setRegion(createRegion(tile, tile.level == 0 ? 0 : MIN_LOD_PIXELS, leaf ? -1 : MIN_LOD_PIXELS * 2));
+        double tolerance = Math.max(tile.north - tile.south, tile.east - tile.west) * SIMPLIFY_RATIO;
+        for (List<LogRecord> part : clipped) {
+            List<LogRecord> line = leaf ? part : simplify(part, tolerance);
+            if (line.size() < 2) continue;
+
+            LineStringType lineString = kmlFactory.createLineStringType();
+            lineString.setTessellate(true);
+            for (LogRecord record : line) {
+                lineString.getCoordinates().add(String.format("%f,%f,%f", record.getLongitude(), record.getLatitude(), record.getHeight()));
+            }
+
+            PlacemarkType placemark = kmlFactory.createPlacemarkType();
+            TimeSpanType timeSpan = kmlFactory.createTimeSpanType();
+            timeSpan.setBegin(XsdDateTimeConverter.sdf.format(line.get(0).getUtc()));
+            timeSpan.setEnd(XsdDateTimeConverter.sdf.format(line.get(line.size() - 1).getUtc()));
+            placemark.setAbstractTimePrimitiveGroup(kmlFactory.createTimeSpan(timeSpan));
+            placemark.setStyleUrl("#trackStyle");
+            placemark.setAbstractGeometryGroup(kmlFactory.createLineString(lineString));
+            trackFolder.getAbstractFeatureGroup().add(kmlFactory.createPlacemark(placemark));
+        }
+        document.getAbstractFeatureGroup().add(kmlFactory.createFolder(trackFolder));
+
+        if (!leaf) {
+            // kml<-Document<-NetworkLink (one for each non-empty child)
+            for (Tile child : tile.split()) {
+                List<List<LogRecord>> childRuns = new ArrayList<>();
+                for (List<LogRecord> part : clipped) {
+                    childRuns.addAll(child.clip(part));
+                }
+                if (childRuns.isEmpty()) continue;
+
+                String href = child.getName() + ".kml";
+                writeDocument(buildTile(child, childRuns), new File(exportDir, href));
+
+                LinkType link = new LinkType();
+                link.setHref(href);
+                link.setViewRefreshMode(ViewRefreshModeEnumType.ON_REGION);
+
+                NetworkLinkType networkLink = kmlFactory.createNetworkLinkType();
+                networkLink.setNameRevised(child.getName());
+                networkLink.setRegion(createRegion(child, MIN_LOD_PIXELS, -1));
+                networkLink.getRest().add(kmlFactory.createLink(link));
+                document.getAbstractFeatureGroup().add(kmlFactory.createNetworkLink(networkLink));
+            }
+        }
+
+        return document;
+    }
+
+    /**
+     * Create Region upon tile bounds.
+     *
+     * @param tile         The tile.
+     * @param minLodPixels Region becomes active above this size. (in pixels)
+     * @param maxLodPixels Region becomes inactive above this size. (in pixels, -1 for infinite)
+     * @return The created Region.
+     */
+    private RegionType createRegion(Tile tile, double minLodPixels, double maxLodPixels) {
+        LatLonAltBoxType box = kmlFactory.createLatLonAltBoxType();
+        box.setNorth(tile.north);
+        box.setSouth(tile.south);
+        box.setEast(tile.east);
+        box.setWest(tile.west);
+
+        LodType lod = kmlFactory.createLodType();
+        lod.setMinLodPixels(minLodPixels);
+        lod.setMaxLodPixels(maxLodPixels);
+
+        RegionType region = kmlFactory.createRegionType();
+        region.setLatLonAltBox(box);
+        region.setLod(lod);
+        return region;
+    }
+
+    /**
+     * Marshal Document into .kml file.
+     *
+     * @param document The Document.
+     * @param file     The target .kml file.
+     * @throws JAXBException Failed on marshaling the {@link KmlType} object.
+     */
+    private void writeDocument(DocumentType document, File file) throws JAXBException {
+        KmlType root = kmlFactory.createKmlType();
+        root.setAbstractFeatureGroup(kmlFactory.createDocument(document));
+        marshaller.marshal(kmlFactory.createKml(root), file);
+    }
+
+    /**
+     * Douglas-Peucker simplification of track run.
+     *
+     * @param run       Track run to be simplified.
+     * @param tolerance Max deviation (in degrees) of dropped points.
+     * @return The simplified track run.
+     */
+    private static List<LogRecord> simplify(List<LogRecord> run, double tolerance) {
+        int size = run.size();
+        if (size < 3) return run;
+
+        boolean[] keep = new boolean[size];
+        keep[0] = true;
+        keep[size - 1] = true;
+
+        // Iterative, to avoid deep recursion on long track
+        LinkedList<int[]> stack = new LinkedList<>();
+        stack.push(new int[]{0, size - 1});
+        while (!stack.isEmpty()) {
+            int[] range = stack.pop();
+            LogRecord a = run.get(range[0]);
+            LogRecord b = run.get(range[1]);
+
+            int index = -1;
+            double maxDist = tolerance;
+            for (int i = range[0] + 1; i < range[1]; i++) {
+                double dist = distance(run.get(i), a, b);
+                if (dist > maxDist) {
+                    maxDist = dist;
+                    index = i;
+                }
+            }
+
+            if (index != -1) {
+                keep[index] = true;
+                stack.push(new int[]{range[0], index});
+                stack.push(new int[]{index, range[1]});
+            }
+        }
+
+        List<LogRecord> simplified = new ArrayList<>();
+        for (int i = 0; i < size; i++) {
+            if (keep[i]) simplified.add(run.get(i));
+        }
+        return simplified;
+    }
+
+    /**
+     * Planar distance (in degrees) from point to segment.
+     *
+     * @param p The point.
+     * @param a Start of segment.
+     * @param b End of segment.
+     * @return The distance in degrees.
+     */
+    private static double distance(LogRecord p, LogRecord a, LogRecord b) {
+        double x = p.getLongitude(), y = p.getLatitude();
+        double x1 = a.getLongitude(), y1 = a.getLatitude();
+        double dx = b.getLongitude() - x1, dy = b.getLatitude() - y1;
+
+        double len = dx * dx + dy * dy;
+        double t = len == 0 ? 0 : Math.max(0, Math.min(1, ((x - x1) * dx + (y - y1) * dy) / len));
+        double ex = x - (x1 + t * dx), ey = y - (y1 + t * dy);
+        return Math.sqrt(ex * ex + ey * ey);
+    }
+
+    /**
+     * One tile of quadtree.
+     */
+    private static final class Tile {
+        final int level;
+        final int x;
+        final int y;
+        final double north;
+        final double south;
+        final double east;
+        final double west;
+
+        Tile(int level, int x, int y, double north, double south, double east, double west) {
+            this.level = level;
+            this.x = x;
+            this.y = y;
+            this.north = north;
+            this.south = south;
+            this.east = east;
+            this.west = west;
+        }
+
+        String getName() {
+            return String.format("%d-%d-%d", level, x, y);
+        }
+
+        boolean contains(LogRecord record) {
+            return record.getLatitude() >= south && record.getLatitude() <= north
+                    && record.getLongitude() >= west && record.getLongitude() <= east;
+        }
+
+        /**
+         * Split this tile into 4 children (SW, SE, NW, NE).
+         */
+        Tile[] split() {
+            double lat = (north + south) / 2;
+            double lon = (east + west) / 2;
+            return new Tile[]{
+                    new Tile(level + 1, x * 2, y * 2, lat, south, lon, west),
+                    new Tile(level + 1, x * 2 + 1, y * 2, lat, south, east, lon),
+                    new Tile(level + 1, x * 2, y * 2 + 1, north, lat, lon, west),
+                    new Tile(level + 1, x * 2 + 1, y * 2 + 1, north, lat, east, lon)
+            };
+        }
+
+        /**
+         * Cut track run into parts within this tile.
+         * Each part is extended with the neighbour point outside, so that lines are continuous across tile edges.
+         */
+        List<List<LogRecord>> clip(List<LogRecord> run) {
+            List<List<LogRecord>> parts = new ArrayList<>();
+            int size = run.size();
+            int i = 0;
+            while (i < size) {
+                if (!contains(run.get(i))) {
+                    i++;
+                    continue;
+                }
+
+                int start = i;
+                while (i < size && contains(run.get(i))) i++;
+
+                int from = Math.max(0, start - 1);
+                int to = Math.min(size, i + 1);
+                parts.add(new ArrayList<>(run.subList(from, to)));
+            }
+            return parts;
+        }
+    }
+}
@@ -0,0 +1,292 @@
+/*
+ * Copyright 2018 Ben Peng
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.benpl.gpsutility.logger;
+
+import javafx.application.Platform;
+import net.benpl.gpsutility.misc.Logging;
+
+import javax.xml.bind.JAXBException;
+import java.io.File;
+import java.io.IOException;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Parse log data uploaded, and export it to external files.
+ * It takes no FX component, so it may be run off the FX thread. (e.g. by {@link FleetSync})
+ * <p>
+ * {@link #submit} runs it in background, on a dedicated thread. The FX thread receives throttled progress and the
+ * final result only, so the UI is never frozen by a large log. The parse is cancelled in the middle; an export is
+ * cancelled before it starts, so no file is left half written.
+ */
+public final class LogExport {
+
+    /**
+     * Result of background export.
+     */
+    public enum Result {
+        SUCCESS, FAILED, CANCELLED
+    }
+
+    /**
+     * Listener on background export. (invoked on FX thread)
+     */
+    public interface Listener {
+        /**
+         * Callback on progress: on each new stage, and at most every {@link #PROGRESS_INTERVAL} milliseconds within.
+         *
+         * @param stage    Description of current stage.
+         * @param progress The fraction done of the whole export. (0.0 ~ 1.0)
+         */
+        void onProgress(String stage, double progress);
+
+        /**
+         * Callback on export done.
+         *
+         * @param result Result of the export.
+         */
+        void onDone(Result result);
+    }
+
+    /**
+     * Handle of background export.
+     */
+    public static final class Job {
+        private final Listener listener;
+        private volatile boolean cancelled = false;
+
+        // Latest progress, and whether a progress update is queued on FX thread
+        private volatile String stage = "";
+        private volatile double progress = 0;
+        private final AtomicBoolean queued = new AtomicBoolean(false);
+        private long lastQueuedAt = 0;
+
+        private Job(Listener listener) {
+            this.listener = listener;
+        }
+
+        /**
+         * Cancel the export. The result {@link Result#CANCELLED} is notified once it stops.
+         */
+        public void cancel() {
+            cancelled = true;
+        }
+
+        /**
+         * Throw if cancelled.
+         *
+         * @throws CancellationException If cancelled.
+         */
+        private void checkCancelled() {
+            if (cancelled) throw new CancellationException();
+        }
+
+        /**
+         * Save the latest progress, and queue it to FX thread on new stage, or if not updated for a while. Updates
+         * in between are coalesced, only the latest one is shown.
+         *
+         * @param stage    Description of current stage.
+         * @param progress The fraction done of the whole export.
+         */
+        private void report(String stage, double progress) {
+            checkCancelled();
+
+            boolean newStage = !stage.equals(this.stage);
+            this.stage = stage;
+            this.progress = progress;
+
+            long now = System.currentTimeMillis();
+            if (!newStage && now - lastQueuedAt < PROGRESS_INTERVAL) return;
+            if (!queued.compareAndSet(false, true)) return;
+            lastQueuedAt = now;
+
+            Platform.runLater(() -> {
+                queued.set(false);
+                listener.onProgress(this.stage, this.progress);
+            });
+        }
+    }
+
+    /**
+     * Minimum interval of progress updates to FX thread. (milliseconds)
+     */
+    private static final long PROGRESS_INTERVAL = 100;
+
+    /**
+     * The thread running background exports, one at a time.
+     */
+    private static final ExecutorService executor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "Thread-LogExport");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Locks of master files, by absolute path.
+     */
+    private static final ConcurrentHashMap<String, Object> masterLocks = new ConcurrentHashMap<>();
+
+    private LogExport() {
+    }
+
+    /**
+     * Get the file name of master files of a logger: tagged by its unit name if known, so each unit has its own,
+     * whichever serial port it is attached to.
+     *
+     * @param masterFilename The file name (without extension) of master files.
+     * @param logger         The logger entity connected.
+     * @return The file name (without extension) of master files of this logger.
+     */
+    public static String masterFilenameOf(String masterFilename, GpsLogger logger) {
+        String unitName = logger.getUnitName();
+        return unitName == null ? masterFilename : masterFilename + "_" + unitName.replaceAll("[^A-Za-z0-9.-]", "_");
+    }
+
+    /**
+     * Get the lock of a master file, so that loggers exported at the same time append to it one by one.
+     *
+     * @param file The master file.
+     * @return The lock.
+     */
+    private static Object masterLockOf(File file) {
+        return masterLocks.computeIfAbsent(file.getAbsolutePath(), path -> new Object());
+    }
+
+    /**
+     * Parse log data, and export it to external files one by one, in background.
+     *
+     * @param logParser      The parser on log data uploaded.
+     * @param exportTypes    The types of file to be exported.
+     * @param exportPath     The directory to export files to.
+     * @param filename       The file name (without extension) of new files.
+     * @param masterFilename The file name (without extension) of master files to be appended.
+     * @param now            The time of export.
+     * @param listener       Listener on progress and result, invoked on FX thread.
+     * @return Handle to cancel the export.
+     */
+    public static Job submit(LogParser logParser, List<LogParser.ExportType> exportTypes, String exportPath, String filename, String masterFilename, Date now, Listener listener) {
+        Job job = new Job(listener);
+        executor.execute(() -> {
+            Result result = run(logParser, exportTypes, exportPath, filename, masterFilename, now, job);
+            Platform.runLater(() -> listener.onDone(result));
+        });
+        return job;
+    }
+
+    /**
+     * Parse log data, and export it to external file one by one.
+     *
+     * @param logParser      The parser on log data uploaded.
+     * @param exportTypes    The types of file to be exported.
+     * @param exportPath     The directory to export files to.
+     * @param filename       The file name (without extension) of new files.
+     * @param masterFilename The file name (without extension) of master files to be appended.
+     * @param now            The time of export.
+     * @return TRUE - parsed and exported; FALSE - failed.
+     */
+    public static boolean parseAndExport(LogParser logParser, List<LogParser.ExportType> exportTypes, String exportPath, String filename, String masterFilename, Date now) {
+        return run(logParser, exportTypes, exportPath, filename, masterFilename, now, null) == Result.SUCCESS;
+    }
+
+    /**
+     * Parse log data, and export it to external file one by one.
+     *
+     * @param logParser      The parser on log data uploaded.
+     * @param exportTypes    The types of file to be exported.
+     * @param exportPath     The directory to export files to.
+     * @param filename       The file name (without extension) of new files.
+     * @param masterFilename The file name (without extension) of master files to be appended.
+     * @param now            The time of export.
+     * @param job            The background job to report progress to; or NULL if run in foreground.
+     * @return Result of the export.
+     */
+    private static Result run(LogParser logParser, List<LogParser.ExportType> exportTypes, String exportPath, String filename, String masterFilename, Date now, Job job) {
+        // Parse is one stage, each export is another.
+        double stages = 1 + exportTypes.size();
+
+        try {
+            // Parse the log
+            Logging.infoln("\nParsing log data...");
+            if (job != null) {
+                job.report("Parsing log data", 0);
+                logParser.setProgress(fraction -> job.report("Parsing log data", fraction / stages));
+            }
+            logParser.parse();
+            Logging.infoln("Parse log data...success");
+
+            // Export to external file one by one
+            String exported;
+            for (int i = 0; i < exportTypes.size(); i++) {
+                LogParser.ExportType exportType = exportTypes.get(i);
+                if (job != null) job.report("Exporting " + exportType, (1 + i) / stages);
+
+                switch (exportType) {
+                    case GPX:
+                        exported = logParser.toGpx(new File(exportPath, filename + ".pgx"), now);
+                        Logging.infoln("Log data exported to: %s", exported);
+                        break;
+
+                    case KML:
+                        exported = logParser.toKml(new File(exportPath, filename + ".kml"), now);
+                        Logging.infoln("Log data exported to: %s", exported);
+                        break;
+
+                    case KML_SUPER_OVERLAY:
+                        exported = logParser.toKmlSuperOverlay(new File(exportPath, filename + "_kml"), now);
+                        Logging.infoln("Log data exported to: %s", exported);
+                        break;
+
+                    case GPX_APPEND:
+                        File gpxFile = new File(exportPath, masterFilename + ".gpx");
+                        synchronized (masterLockOf(gpxFile)) {
+                            exported = logParser.appendGpx(gpxFile, now);
+                        }
+                        Logging.infoln("Log data appended to: %s", exported);
+                        break;
+
+                    case KML_APPEND:
+                        File kmlFile = new File(exportPath, masterFilename + ".kml");
+                        synchronized (masterLockOf(kmlFile)) {
+                            exported = logParser.appendKml(kmlFile, now);
+                        }
+                        Logging.infoln("Log data appended to: %s", exported);
+                        break;
+
+                    default:
+                        break;
+                }
+            }
+            return Result.SUCCESS;
+        } catch (CancellationException e) {
+            Logging.infoln("Export log data...cancelled");
+            return Result.CANCELLED;
+        } catch (JAXBException e) {
+            e.printStackTrace();
+            Logging.infoln("Parse log data...failed");
+        } catch (IOException e) {
+            e.printStackTrace();
+            Logging.errorln("Export log data...failed: %s", e.getMessage());
+        } finally {
+            logParser.setProgress(null);
+        }
+        return Result.FAILED;
+    }
+}
@@ -25,10 +25,12 @@ import javax.xml.bind.JAXBException;
 import javax.xml.bind.Marshaller;
 import javax.xml.bind.PropertyException;
 import java.io.File;
+import java.io.IOException;
 import java.math.BigDecimal;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.LinkedList;
+import java.util.concurrent.CancellationException;
 
 /**
  * Log parser to parse the log data read from GPS Data Logger.
@@ -60,12 +62,34 @@ abstract public class LogParser {
     private int wpId;
     private LogRecord lastRecord;
     private double trackDistance;
+    // The first IDs of exported track/trackpoint/waypoint, greater than 1 when appending to existing file
+    private int firstTrackId = 1;
+    private int firstTpId = 1;
+    private int firstWpId = 1;
+    // Date range of records to be taken, NULL for unbounded
+    protected Date rangeFrom = null;
+    protected Date rangeTo = null;
+    // Listener on parsing progress, NULL for none
+    private Progress progress = null;
+
+    /**
+     * Listener on parsing progress, which may also cancel the parsing.
+     */
+    public interface Progress {
+        /**
+         * Callback on parsing progress. (invoked on parsing thread)
+         *
+         * @param fraction The fraction of log data parsed. (0.0 ~ 1.0)
+         * @throws CancellationException To abort the parsing.
+         */
+        void update(double fraction);
+    }
 
     /**
      * The type of export file.
      */
     public enum ExportType {
-        GPX, KML
+        GPX, KML, KML_SUPER_OVERLAY, GPX_APPEND, KML_APPEND
     }
 
     /**
@@ -77,8 +101,65 @@ abstract public class LogParser {
         this.logData = logData;
     }
 
+    /**
+     * Set the first IDs of exported track/trackpoint/waypoint, to continue the numbering of an existing file.
+     *
+     * @param trackId The first track ID.
+     * @param tpId    The first trackpoint ID.
+     * @param wpId    The first waypoint (POI) ID.
+     */
+    void setFirstIds(int trackId, int tpId, int wpId) {
+        this.firstTrackId = trackId;
+        this.firstTpId = tpId;
+        this.firstWpId = wpId;
+    }
+
+    /**
+     * Set date range of records to be taken. Records out of range are dropped by {@link #parse()}.
+     *
+     * @param from The earliest record time; or NULL for unbounded.
+     * @param to   The latest record time; or NULL for unbounded.
+     */
+    public void setDateRange(Date from, Date to) {
+        this.rangeFrom = from;
+        this.rangeTo = to;
+    }
+
+    /**
+     * Set listener on parsing progress.
+     *
+     * @param progress The listener; or NULL for none.
+     */
+    public void setProgress(Progress progress) {
+        this.progress = progress;
+    }
+
+    /**
+     * Report parsing progress. (to be invoked by {@link #parse()} now and then)
+     *
+     * @param fraction The fraction of log data parsed. (0.0 ~ 1.0)
+     * @throws CancellationException If the parsing is cancelled.
+     */
+    protected void progress(double fraction) {
+        if (progress != null) progress.update(fraction);
+    }
+
+    /**
+     * Test if the record time is within date range.
+     *
+     * @param utc The record time; or NULL if unknown.
+     * @return TRUE - to be taken; FALSE - out of range.
+     */
+    protected boolean isInRange(Date utc) {
+        if (utc == null) return true;
+        if (rangeFrom != null && utc.before(rangeFrom)) return false;
+        return rangeTo == null || !utc.after(rangeTo);
+    }
+
     /**
      * Method to parse the log data. (Implementation GPS Data Logger independent)
+     *
+     * @throws CancellationException If cancelled by {@link Progress}.
      */
     abstract public void parse();
 
@@ -100,8 +181,8 @@ abstract public class LogParser {
         // gpx<-Version
         root.setVersion(root.getVersion());
 
-        tpId = 1;
-        trackId = 1;
+        tpId = firstTpId;
+        trackId = firstTrackId;
         lastRecord = null;
         trackDistance = 0;
 
@@ -155,7 +236,7 @@ abstract public class LogParser {
 
         // gpx<-WptList<-...GpxWpt(POI)
         if (poiList.size() > 0) {
-            wpId = 1;
+            wpId = firstWpId;
             poiList.forEach(record -> {
                 root.getWpt().add(record.toGpxWpt(wpId));
                 wpId++;
@@ -273,8 +354,8 @@ abstract public class LogParser {
         poiStyleMap.setId("poiStyle");
         document.getAbstractStyleSelectorGroup().add(kmlFactory.createStyleMap(poiStyleMap));
 
-        tpId = 1;
-        trackId = 1;
+        tpId = firstTpId;
+        trackId = firstTrackId;
         lastRecord = null;
         trackDistance = 0;
 
@@ -329,7 +410,7 @@ abstract public class LogParser {
             // kml<-Document<-PoiFolder<-Name
             poiFolder.setNameRevised("POI List");
 
-            wpId = 1;
+            wpId = firstWpId;
             poiList.forEach(record -> {
                 PlacemarkType placemark = kmlFactory.createPlacemarkType();
                 // kml<-Document<-PoiFolder<-Placemark<-Name
@@ -366,4 +447,50 @@ abstract public class LogParser {
         // Return exported file name+path for prompt in log window
         return exportFile.getAbsolutePath();
     }
+
+    /**
+     * Export log data to folder as KML super-overlay. (quadtree of .kml tiles linked by Region activated NetworkLinks)
+     *
+     * @param exportDir The export target folder.
+     * @param timestamp When this super-overlay is created.
+     * @return The file path of exported root .kml file.
+     * @throws JAXBException Failed on marshaling the {@link net.benpl.gpsutility.kml.KmlType} object.
+     */
+    public String toKmlSuperOverlay(File exportDir, Date timestamp) throws JAXBException {
+        return new KmlSuperOverlay(trackList, poiList).export(exportDir, timestamp);
+    }
+
+    /**
+     * Append new tracks/POI to existing .gpx file exported by this tool, or export to a new .gpx file if not existed.
+     * Only the records later than the last track point of existing file are appended.
+     *
+     * @param exportFile The export target file.
+     * @param timestamp  When this .gpx file is updated.
+     * @return The file path of exported .gpx file.
+     * @throws IOException   Failed on reading/writing the existing .gpx file.
+     * @throws JAXBException Failed on marshaling the {@link net.benpl.gpsutility.gpx.GpxType} object.
+     */
+    public String appendGpx(File exportFile, Date timestamp) throws IOException, JAXBException {
+        if (!exportFile.exists()) {
+            return toGpx(exportFile, timestamp);
+        }
+        return new IncrementalExport(trackList, poiList).appendGpx(exportFile, timestamp);
+    }
+
+    /**
+     * Append new tracks/POI to existing .kml file exported by this tool, or export to a new .kml file if not existed.
+     * Only the records later than the last track point of existing file are appended.
+     *
+     * @param exportFile The export target file.
+     * @param timestamp  When this .kml file is updated.
+     * @return The file path of exported .kml file.
+     * @throws IOException   Failed on reading/writing the existing .kml file.
+     * @throws JAXBException Failed on marshaling the {@link net.benpl.gpsutility.kml.KmlType} object.
+     */
+    public String appendKml(File exportFile, Date timestamp) throws IOException, JAXBException {
+        if (!exportFile.exists()) {
+            return toKml(exportFile, timestamp);
+        }
+        return new IncrementalExport(trackList, poiList).appendKml(exportFile, timestamp);
+    }
 }
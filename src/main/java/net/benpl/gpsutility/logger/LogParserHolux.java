@@ -21,6 +21,7 @@ import net.benpl.gpsutility.misc.Utils;
 import javax.xml.bind.DatatypeConverter;
 import java.util.AbstractMap;
 import java.util.Arrays;
+import java.util.Date;
 import java.util.LinkedList;
 import java.util.Map;
 import java.util.stream.Collectors;
@@ -31,6 +32,10 @@ import java.util.stream.Stream;
  */
 abstract public class LogParserHolux extends net.benpl.gpsutility.logger.LogParser {
 
+    /**
+     * Size of log sector.
+     */
+    public static final int LOG_SECTOR_SIZE = 0x10000;
     private static final int LOG_SECTOR_HEADER_SIZE = 0x200;
     private static final int RECORD_RCR_BY_BUTTON = 0x08;
 
@@ -82,12 +87,14 @@ abstract public class LogParserHolux extends net.benpl.gpsutility.logger.LogPars
         int totalRecordCount = 0;
 
         // Calculate total sectors.
-        sectorTotal = logData.length / 65536 + 1;
+        sectorTotal = logData.length / LOG_SECTOR_SIZE + 1;
 
         // Parse log data sector by sector
         for (int sectorIdx = 0; sectorIdx < sectorTotal; sectorIdx++) {
             int sectorRecordCount = 0;
 
+            progress((double) sectorIdx / sectorTotal);
+
             // Sector header portion (0x200 bytes of total)
             //=======================================================================
             if (!handleSectorHeader(sectorIdx)) continue;
@@ -95,7 +102,7 @@ abstract public class LogParserHolux extends net.benpl.gpsutility.logger.LogPars
             // Sector data portion (variable length)
             //=======================================================================
             // Jump over whole sector header, start at data portion
-            int offset = sectorIdx * 65536 + LOG_SECTOR_HEADER_SIZE;
+            int offset = sectorIdx * LOG_SECTOR_SIZE + LOG_SECTOR_HEADER_SIZE;
 
             while ((offset < logData.length) && (sectorRecordCount < sectorRecordTotal)) {
                 if ((sectorRecordTotal == 0x0000FFFF) && detectEndOfSector(offset, sectorRecordSize)) {
@@ -150,11 +157,21 @@ abstract public class LogParserHolux extends net.benpl.gpsutility.logger.LogPars
      * @return TRUE - if handled successfully, FALSE - otherwise.
      */
     private boolean handleSectorHeader(int sectorIdx) {
-        int offset = 0;
+        int offset = sectorIdx * LOG_SECTOR_SIZE;
 
         Logging.infoln("\nSector #%d", sectorIdx);
         Logging.infoln("=========================================================");
 
+        if (offset + LOG_SECTOR_HEADER_SIZE > logData.length) {
+            Logging.infoln("Sector #%d not written yet", sectorIdx);
+            return false;
+        }
+        if (detectEndOfSector(offset, LOG_SECTOR_HEADER_SIZE)) {
+            // Erased, or not uploaded with selective upload (sparse log data)
+            Logging.infoln("Sector #%d empty", sectorIdx);
+            return false;
+        }
+
         // Total records of this sector
         sectorRecordTotal = Utils.leReadInt(logData, offset, 2);
         offset += 2;
@@ -202,6 +219,44 @@ abstract public class LogParserHolux extends net.benpl.gpsutility.logger.LogPars
         return true;
     }
 
+    /**
+     * Find the time of the first record in sector, to map sectors to time ranges for selective upload.
+     * Only the sector header and the first record are needed. (the first {@link FlashReader#BLOCK_SIZE} bytes)
+     *
+     * @param sectorIdx The sector index.
+     * @return Time of the first record; or NULL if not found.
+     */
+    public Date getSectorStartTime(int sectorIdx) {
+        int base = sectorIdx * LOG_SECTOR_SIZE;
+        if (base + LOG_SECTOR_HEADER_SIZE > logData.length || detectEndOfSector(base, LOG_SECTOR_HEADER_SIZE)) {
+            return null;
+        }
+
+        int fieldMask = Utils.leReadInt(logData, base + 2, 4);
+        int recordSize = getRecordSize(fieldMask);
+        int end = Math.min(logData.length, base + FlashReader.BLOCK_SIZE);
+        int offset = base + LOG_SECTOR_HEADER_SIZE;
+        byte[] detected;
+
+        while (offset + recordSize <= end) {
+            if ((detected = detectDynamicSetting(offset)) != null) {
+                if (detected[0] == 2) {
+                    // Format register updated
+                    fieldMask = Utils.leReadInt(detected, 1, 4);
+                    recordSize = getRecordSize(fieldMask);
+                }
+                offset += DYNAMIC_SETTING_PATTERN_SIZE;
+            } else if ((detected = detectWatermark(offset)) != null) {
+                offset += detected.length;
+            } else {
+                if (Utils.getCheckSum(logData, offset, recordSize) != 0) return null;
+                LogRecord record = decodeRecord(fieldMask, logData, offset);
+                return record == null ? null : record.getUtc();
+            }
+        }
+        return null;
+    }
+
     /**
      * Handle as record data.
      *
@@ -223,6 +278,11 @@ abstract public class LogParserHolux extends net.benpl.gpsutility.logger.LogPars
             return false;
         }
 
+        // Drop record out of date range
+        if (!isInRange(record.getUtc())) {
+            return true;
+        }
+
         // Put record into track
         track.add(record);
 
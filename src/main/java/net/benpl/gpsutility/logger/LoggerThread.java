@@ -18,28 +18,47 @@ package net.benpl.gpsutility.logger;
 import net.benpl.gpsutility.misc.Logging;
 import org.jetbrains.annotations.NotNull;
 
-import java.util.LinkedList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * Working thread of logger entity.
+ * <p>
+ * It is an event loop on lock-free queues: serial port callback, FX thread and timers only enqueue and signal it, so
+ * none of them ever blocks behind protocol handling. All jobs and tasks are executed on this thread alone, with no
+ * lock held, so the protocol state of logger entity ({@code sendJob}, {@code pendingJobs}, ...) is never shared.
  */
 public final class LoggerThread extends Thread {
     /**
      * The logger entity this working thread serve for.
      */
     private final GpsLogger logger;
+    /**
+     * For tasks posted by other threads, to be executed on this thread. (e.g. NoResp timer expired)
+     */
+    private final ConcurrentLinkedQueue<Runnable> taskQueue = new ConcurrentLinkedQueue<>();
     /**
      * For NMEA sentences received from serial port.
      */
-    private final LinkedList<RecvJob> ingressQueue = new LinkedList<>();
+    private final ConcurrentLinkedQueue<RecvJob> ingressQueue = new ConcurrentLinkedQueue<>();
     /**
      * For NMEA sentences to be sent out to serial port.
      */
-    private final LinkedList<SendJob> egressQueue = new LinkedList<>();
+    private final ConcurrentLinkedQueue<SendJob> egressQueue = new ConcurrentLinkedQueue<>();
+    /**
+     * Set on anything enqueued, cleared by this thread before draining the queues. So nothing enqueued while jobs are
+     * being executed is missed.
+     */
+    private final AtomicBoolean signalled = new AtomicBoolean(false);
     /**
      * To be tested if this thread is running.
      */
-    boolean running = false;
+    volatile boolean running = false;
+    /**
+     * Set once this thread stops taking tasks.
+     */
+    private volatile boolean stopped = false;
 
     /**
      * Constructor
@@ -52,12 +71,14 @@ public final class LoggerThread extends Thread {
     }
 
     /**
-     * Method to cancel all pending SendJobs in working thread.
+     * Method to cancel all pending SendJobs in working thread. (invoked on working thread only)
      */
     void cancelSendJobs() {
-        synchronized (this) {
-            egressQueue.clear();
-        }
+        egressQueue.clear();
+
+        // Pipelined SendJobs still waiting for responses
+        logger.pendingJobs.forEach(SendJob::cancelNoRespTimer);
+        logger.pendingJobs.clear();
     }
 
     /**
@@ -66,12 +87,10 @@ public final class LoggerThread extends Thread {
      * @param jobs Jobs to be executed.
      */
     public void enqueueSendJob(@NotNull SendJob... jobs) {
-        synchronized (this) {
-            for (SendJob job : jobs) {
-                egressQueue.addLast(job);
-            }
-            notify();
+        for (SendJob job : jobs) {
+            egressQueue.offer(job);
         }
+        signal();
     }
 
     /**
@@ -80,12 +99,31 @@ public final class LoggerThread extends Thread {
      * @param events Jobs to be executed.
      */
     void enqueueRecvJob(@NotNull RecvJob... events) {
-        synchronized (this) {
-            for (RecvJob event : events) {
-                ingressQueue.addLast(event);
-            }
-            notify();
+        for (RecvJob event : events) {
+            ingressQueue.offer(event);
         }
+        signal();
+    }
+
+    /**
+     * Execute task on working thread, serialized with jobs: at once if invoked on working thread; otherwise posted,
+     * to be executed ahead of jobs pending. Tasks posted are still executed as this thread stops.
+     *
+     * @param task The task to be executed.
+     */
+    void execute(@NotNull Runnable task) {
+        if (Thread.currentThread() == this) {
+            task.run();
+            return;
+        }
+
+        taskQueue.offer(task);
+        if (stopped) {
+            // Missed by working thread, which has stopped meanwhile.
+            if (taskQueue.remove(task)) task.run();
+            return;
+        }
+        signal();
     }
 
     /**
@@ -95,10 +133,39 @@ public final class LoggerThread extends Thread {
         if (running) {
             Logging.infoln("Stopping thread [%s]...", logger.name);
 
-            synchronized (this) {
-                running = false;
-                notify();
-            }
+            running = false;
+            signal();
+        }
+    }
+
+    /**
+     * Get working thread notified.
+     */
+    private void signal() {
+        // Unpark only on the first signal since last drain, working thread is awake till then.
+        if (!signalled.getAndSet(true)) {
+            LockSupport.unpark(this);
+        }
+    }
+
+    /**
+     * Test if SendJob can be sent out now.
+     * Pipelined SendJob is sent out as long as no SendJob is waiting alone, others wait for all outstanding SendJobs done.
+     *
+     * @param job The SendJob to be tested.
+     * @return TRUE - ready to send; FALSE - keep waiting.
+     */
+    private boolean isReadyToSend(SendJob job) {
+        if (logger.sendJob != null) return false;
+        return job.isPipelined() || logger.pendingJobs.isEmpty();
+    }
+
+    /**
+     * Execute all tasks posted.
+     */
+    private void runTasks() {
+        for (Runnable task; (task = taskQueue.poll()) != null; ) {
+            task.run();
         }
     }
 
@@ -110,40 +177,48 @@ public final class LoggerThread extends Thread {
         Logging.infoln("Thread [%s]...started", logger.name);
 
         logger.sendJob = null;
+        logger.pendingJobs.clear();
+        taskQueue.clear();
         ingressQueue.clear();
         egressQueue.clear();
         running = true;
 
         while (running) {
-            synchronized (this) {
-                try {
-                    // Wait for notification
-                    wait();
-
-                    // Handle all incoming RecvJobs
-                    while (running && ingressQueue.size() > 0) {
-                        RecvJob job = ingressQueue.removeFirst();
-                        job.run();
-
-                        if (!job.success) {
-                            // In case of failed to handle incoming NMEA, all pending SendJobs are meaningless.
-                            // So simply clear the SendJob queue.
-                            egressQueue.clear();
-                        }
-                    }
-
-                    // Handle outgoing SendJobs
-                    while (running && logger.sendJob == null && egressQueue.size() > 0) {
-                        // Take one job from EgressQueue and execute it.
-                        egressQueue.removeFirst().run();
-                    }
-                } catch (InterruptedException ex) {
-                    ex.printStackTrace();
-                    break;
+            // Wait for signal. Spurious wakeup simply goes round.
+            if (!signalled.getAndSet(false)) {
+                LockSupport.park(this);
+                if (Thread.interrupted()) break;
+                continue;
+            }
+
+            // Handle tasks posted
+            runTasks();
+
+            // Handle all incoming RecvJobs
+            for (RecvJob job; running && (job = ingressQueue.poll()) != null; ) {
+                job.run();
+
+                if (!job.success) {
+                    // In case of failed to handle incoming NMEA, all pending SendJobs are meaningless.
+                    // So simply clear the SendJob queue.
+                    cancelSendJobs();
                 }
             }
+
+            // Handle outgoing SendJobs
+            for (SendJob job; running && (job = egressQueue.peek()) != null && isReadyToSend(job); ) {
+                // Take one job from EgressQueue and execute it.
+                egressQueue.poll();
+                job.run();
+            }
         }
 
+        running = false;
+
+        // Tasks posted are cleanup mostly (e.g. restore baud rate), done before serial port closed.
+        stopped = true;
+        runTasks();
+
         // Clear all pending jobs
         ingressQueue.clear();
         egressQueue.clear();
@@ -0,0 +1,30 @@
+/*
+ * Copyright 2018 Ben Peng
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.benpl.gpsutility.logger;
+
+import net.benpl.gpsutility.serialport.MtkPacket;
+
+/**
+ * Listener on serial port for MTK binary packet.
+ */
+public interface PacketListener {
+    /**
+     * MTK binary packet received from serial port.
+     *
+     * @param packet The received packet. (checksum verified)
+     */
+    void recvPacket(MtkPacket packet);
+}
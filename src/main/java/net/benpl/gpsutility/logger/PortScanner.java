@@ -0,0 +1,286 @@
+/*
+ * Copyright 2018 Ben Peng
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.benpl.gpsutility.logger;
+
+import javafx.application.Platform;
+import net.benpl.gpsutility.misc.Logging;
+import net.benpl.gpsutility.misc.Utils;
+import net.benpl.gpsutility.serialport.CommPort;
+import net.benpl.gpsutility.serialport.CommProperty;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Auto detection of loggers attached, on all serial ports at the same time.
+ * <p>
+ * Each serial port is probed by its own thread. The common baud rates are tried one by one with a short handshake
+ * 'PHLX810', and the logger ID replied is matched against the models supported. As all serial ports are probed in
+ * parallel, the scan takes about one NoResp timeout however many serial ports there are.
+ */
+public final class PortScanner {
+
+    /**
+     * Logger found on a serial port.
+     */
+    public static final class Result {
+        private final CommPort commPort;
+        private final GpsLogger model;
+        private final int commBaudRateIdx;
+
+        /**
+         * Constructor.
+         *
+         * @param commPort        The serial port.
+         * @param model           The logger model found.
+         * @param commBaudRateIdx The index of {@link CommProperty#commBaudRateList} the logger answered at.
+         */
+        private Result(CommPort commPort, GpsLogger model, int commBaudRateIdx) {
+            this.commPort = commPort;
+            this.model = model;
+            this.commBaudRateIdx = commBaudRateIdx;
+        }
+
+        public CommPort getCommPort() {
+            return commPort;
+        }
+
+        public GpsLogger getModel() {
+            return model;
+        }
+
+        public int getCommBaudRateIdx() {
+            return commBaudRateIdx;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s @ %s, %s", model.getName(), commPort.getName(), CommProperty.commBaudRateList.get(commBaudRateIdx));
+        }
+    }
+
+    /**
+     * Listener on port scan.
+     */
+    public interface Listener {
+        /**
+         * Callback once all serial ports are probed. (invoked on FX thread)
+         *
+         * @param results Loggers found, in order of serial ports.
+         */
+        void onDone(List<Result> results);
+    }
+
+    /**
+     * Baud rates to be probed, most common first.
+     */
+    private static final int[] PROBE_BAUD_RATES = {38400, 115200, 9600, 57600, 19200, 4800};
+    /**
+     * Time to wait for handshake response at each baud rate. (milliseconds)
+     */
+    private static final long PROBE_EXPIRY = 300;
+    /**
+     * Handshake command, and its response. (followed by logger ID)
+     */
+    private static final String HANDSHAKE_CMD = "PHLX810";
+    private static final String HANDSHAKE_RESP = "$PHLX852,";
+
+    private final List<GpsLogger> models;
+    private final List<CommPort> commPorts;
+    private final int commDataBitsIdx;
+    private final int commParityIdx;
+    private final int commStopBitsIdx;
+    private final int commFlowCtrlIdx;
+    private final Listener listener;
+
+    /**
+     * Pool of threads, one per serial port.
+     */
+    private final ExecutorService pool;
+    /**
+     * Result of each serial port. (NULL: nothing found)
+     */
+    private final Result[] results;
+    /**
+     * Number of serial ports probed.
+     */
+    private final AtomicInteger done = new AtomicInteger();
+
+    /**
+     * Constructor.
+     *
+     * @param models          The logger models supported.
+     * @param commPorts       The serial ports to be probed.
+     * @param commDataBitsIdx The index of {@link CommProperty#commDataBitsList}
+     * @param commParityIdx   The index of {@link CommProperty#commParityList}
+     * @param commStopBitsIdx The index of {@link CommProperty#commStopBitsList}
+     * @param commFlowCtrlIdx The index of {@link CommProperty#commFlowCtrlList}
+     * @param listener        Listener on port scan.
+     */
+    public PortScanner(List<GpsLogger> models, List<CommPort> commPorts, int commDataBitsIdx, int commParityIdx, int commStopBitsIdx, int commFlowCtrlIdx, Listener listener) {
+        this.models = new ArrayList<>(models);
+        this.commPorts = new ArrayList<>(commPorts);
+        this.commDataBitsIdx = commDataBitsIdx;
+        this.commParityIdx = commParityIdx;
+        this.commStopBitsIdx = commStopBitsIdx;
+        this.commFlowCtrlIdx = commFlowCtrlIdx;
+        this.listener = listener;
+        this.results = new Result[commPorts.size()];
+
+        AtomicInteger count = new AtomicInteger();
+        ThreadFactory factory = r -> {
+            Thread thread = new Thread(r, "Thread-PortScan-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+        this.pool = Executors.newFixedThreadPool(Math.max(1, commPorts.size()), factory);
+    }
+
+    /**
+     * Start to probe all serial ports. (invoked on FX thread)
+     */
+    public void start() {
+        Logging.infoln("Detecting loggers on %d serial ports...", commPorts.size());
+
+        if (commPorts.isEmpty()) {
+            finish();
+            return;
+        }
+
+        for (int i = 0; i < commPorts.size(); i++) {
+            int idx = i;
+            pool.execute(() -> {
+                results[idx] = probe(commPorts.get(idx));
+                if (done.incrementAndGet() == commPorts.size()) {
+                    Platform.runLater(this::finish);
+                }
+            });
+        }
+    }
+
+    /**
+     * Stop probing, e.g. on application exit.
+     */
+    public void stop() {
+        pool.shutdownNow();
+    }
+
+    /**
+     * Notify listener with loggers found. (invoked on FX thread)
+     */
+    private void finish() {
+        pool.shutdown();
+
+        List<Result> found = new ArrayList<>();
+        for (Result result : results) {
+            if (result != null) found.add(result);
+        }
+
+        Logging.infoln("Detecting loggers...%d found", found.size());
+        listener.onDone(found);
+    }
+
+    /**
+     * Probe a serial port at each baud rate, until a logger answers the handshake.
+     *
+     * @param commPort The serial port.
+     * @return The logger found; or NULL if nothing answered.
+     */
+    private Result probe(CommPort commPort) {
+        BlockingQueue<String> responses = new LinkedBlockingQueue<>();
+        String nmea = String.format("$%s*%02X", HANDSHAKE_CMD, Utils.getCheckSum(HANDSHAKE_CMD));
+
+        if (!commPort.openPort()) return null;
+        try {
+            commPort.setNmeaListener(responses::offer);
+
+            for (int baudRate : PROBE_BAUD_RATES) {
+                commPort.setParameters(
+                        baudRate,
+                        CommProperty.commDataBitsList.get(commDataBitsIdx).getData(),
+                        CommProperty.commParityList.get(commParityIdx).getData(),
+                        CommProperty.commStopBitsList.get(commStopBitsIdx).getData(),
+                        CommProperty.commFlowCtrlList.get(commFlowCtrlIdx).getData()
+                );
+                responses.clear();
+                commPort.sendData(nmea);
+
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(PROBE_EXPIRY);
+                for (long left; (left = deadline - System.nanoTime()) > 0; ) {
+                    String resp = responses.poll(left, TimeUnit.NANOSECONDS);
+                    if (resp == null) break;
+
+                    GpsLogger model = modelOf(resp);
+                    if (model != null) {
+                        Result result = new Result(commPort, model, baudRateIdxOf(baudRate));
+                        Logging.infoln("Logger detected: %s", result);
+                        return result;
+                    }
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } finally {
+            commPort.closePort();
+        }
+        return null;
+    }
+
+    /**
+     * Match the handshake response against the models supported.
+     *
+     * @param nmea The NMEA sentence received.
+     * @return The logger model; or NULL if not a valid handshake response, or unknown logger ID.
+     */
+    private GpsLogger modelOf(String nmea) {
+        int length = nmea.length();
+        if (!nmea.startsWith(HANDSHAKE_RESP) || length < HANDSHAKE_RESP.length() + 3 || nmea.charAt(length - 3) != '*') {
+            return null;
+        }
+
+        int h = Utils.hexDigit(nmea.charAt(length - 2));
+        int l = Utils.hexDigit(nmea.charAt(length - 1));
+        if ((h | l) < 0 || ((h << 4) | l) != Utils.getCheckSum(nmea, 1, length - 3)) return null;
+
+        String loggerId = nmea.substring(HANDSHAKE_RESP.length(), length - 3);
+        for (GpsLogger model : models) {
+            if (loggerId.equals(model.getLoggerId())) return model;
+        }
+
+        Logging.errorln("Unknown logger ID: [%s]", loggerId);
+        return null;
+    }
+
+    /**
+     * Get index of baud rate in {@link CommProperty#commBaudRateList}.
+     *
+     * @param baudRate The baud rate.
+     * @return The index.
+     */
+    private static int baudRateIdxOf(int baudRate) {
+        for (int i = 0; i < CommProperty.commBaudRateList.size(); i++) {
+            if (CommProperty.commBaudRateList.get(i).getData() == baudRate) return i;
+        }
+        return -1;
+    }
+}
@@ -28,17 +28,23 @@ import javafx.scene.input.ClipboardContent;
 import javafx.scene.input.MouseEvent;
 import javafx.scene.layout.AnchorPane;
 import javafx.stage.DirectoryChooser;
+import javafx.stage.FileChooser;
 import net.benpl.gpsutility.Loggers;
 import net.benpl.gpsutility.misc.Logging;
 import net.benpl.gpsutility.misc.Settings;
+import net.benpl.gpsutility.misc.SharedTimer;
 import net.benpl.gpsutility.misc.Utils;
 import net.benpl.gpsutility.serialport.CommPort;
 import net.benpl.gpsutility.serialport.CommProperty;
+import net.benpl.gpsutility.serialport.ReplayTransport;
+import net.benpl.gpsutility.serialport.SerialTransport;
+import net.benpl.gpsutility.serialport.TcpTransport;
 
-import javax.xml.bind.JAXBException;
 import java.io.File;
+import java.io.IOException;
 import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.concurrent.ScheduledFuture;
 
 /**
  * Controller of {@link fxml/PrimaryWindow.fxml}
@@ -50,6 +56,11 @@ public class PrimaryController implements Controller, StateListener {
      */
     private static SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd_HH-mm-ss");
 
+    /**
+     * File name of master files, which new log data is appended to in incremental export mode.
+     */
+    private static final String MASTER_FILENAME = "GPSUtility";
+
     /**
      * Maintain available serial port list referred by {@link #commPortChooser}.
      */
@@ -59,6 +70,22 @@ public class PrimaryController implements Controller, StateListener {
      * Logger entity in used.
      */
     private GpsLogger gpsLogger = null;
+    /**
+     * The fleet sync in progress. (NULL: none)
+     */
+    private FleetSync fleetSync = null;
+    /**
+     * The logger detection in progress. (NULL: none)
+     */
+    private PortScanner portScanner = null;
+    /**
+     * The export of log data uploaded in progress. (NULL: none)
+     */
+    private LogExport.Job logExportJob = null;
+    /**
+     * Replays of captured traffic, listed after serial ports until exit.
+     */
+    private final List<CommPort> replayPorts = new ArrayList<>();
 
     /**
      * 'Copy' menu item of log window.
@@ -68,7 +95,7 @@ public class PrimaryController implements Controller, StateListener {
     /**
      * Timer to refresh serial port list.
      */
-    private Timer serialPortRefreshTimer;
+    private ScheduledFuture<?> serialPortRefreshTimer;
 
     @FXML
     private TabPane tabPane;
@@ -98,7 +125,7 @@ public class PrimaryController implements Controller, StateListener {
         logWindow.setText("Logger - Disconnected.");
 
         if (commPortChooser.getValue() != null) {
-            if (commPortChooser.getValue().getPort() == null) {
+            if (commPortChooser.getValue().getTransport() == null) {
                 baudRateChooser.setDisable(true);
                 parityChooser.setDisable(true);
                 dataBitsChooser.setDisable(true);
@@ -213,16 +240,113 @@ public class PrimaryController implements Controller, StateListener {
         uploadTrackBtn.setDisable(!enable);
     }
 
+    @FXML
+    private CheckMenuItem kmlSuperOverlay;
+
+    @FXML
+    private void kmlSuperOverlayActionPerformed(ActionEvent event) {
+        Settings.setKmlSuperOverlay(kmlSuperOverlay.isSelected());
+    }
+
+    @FXML
+    private CheckMenuItem incrementalExport;
+
+    @FXML
+    private void incrementalExportActionPerformed(ActionEvent event) {
+        Settings.setIncrementalExport(incrementalExport.isSelected());
+    }
+
+    @FXML
+    private ToggleGroup uploadWindow;
+
+    @FXML
+    private void uploadWindowActionPerformed(ActionEvent event) {
+        Toggle selected = uploadWindow.getSelectedToggle();
+        if (selected != null) {
+            Settings.setUploadWindow(Integer.parseInt((String) selected.getUserData()));
+        }
+    }
+
+    @FXML
+    private ToggleGroup uploadBaudRate;
+
+    @FXML
+    private void uploadBaudRateActionPerformed(ActionEvent event) {
+        Toggle selected = uploadBaudRate.getSelectedToggle();
+        if (selected != null) {
+            Settings.setUploadBaudRate(Integer.parseInt((String) selected.getUserData()));
+        }
+    }
+
+    @FXML
+    private CheckMenuItem uploadBinary;
+
+    @FXML
+    private void uploadBinaryActionPerformed(ActionEvent event) {
+        Settings.setUploadBinary(uploadBinary.isSelected());
+    }
+
+    @FXML
+    private CheckMenuItem serialReaderThread;
+
+    @FXML
+    private void serialReaderThreadActionPerformed(ActionEvent event) {
+        Settings.setSerialReaderThread(serialReaderThread.isSelected());
+    }
+
+    @FXML
+    private ToggleGroup serialReadTimeout;
+
+    @FXML
+    private void serialReadTimeoutActionPerformed(ActionEvent event) {
+        Toggle selected = serialReadTimeout.getSelectedToggle();
+        if (selected != null) {
+            Settings.setSerialReadTimeout(Integer.parseInt((String) selected.getUserData()));
+        }
+    }
+
+    @FXML
+    private CheckMenuItem capture;
+
+    @FXML
+    private void captureActionPerformed(ActionEvent event) {
+        Settings.setCapture(capture.isSelected());
+    }
+
+    @FXML
+    private CheckMenuItem uploadCache;
+
+    @FXML
+    private void uploadCacheActionPerformed(ActionEvent event) {
+        Settings.setUploadCache(uploadCache.isSelected());
+    }
+
+    @FXML
+    private ToggleGroup uploadRange;
+
+    @FXML
+    private void uploadRangeActionPerformed(ActionEvent event) {
+        Toggle selected = uploadRange.getSelectedToggle();
+        if (selected != null) {
+            Settings.setUploadRangeDays(Integer.parseInt((String) selected.getUserData()));
+        }
+    }
+
     @FXML
     private Button uploadTrackBtn;
 
     @FXML
     private void uploadTrackBtnActionPerformed(ActionEvent event) {
+        if (logExportJob != null) {
+            // Button turned to 'Cancel' during export
+            logExportJob.cancel();
+            uploadTrackBtn.setDisable(true);
+            return;
+        }
+
         uploadProgress.setProgress(0);
 
-        List<LogParser.ExportType> exportTypes = new ArrayList<>();
-        if (gpxExport.isSelected()) exportTypes.add(LogParser.ExportType.GPX);
-        if (kmlExport.isSelected()) exportTypes.add(LogParser.ExportType.KML);
+        List<LogParser.ExportType> exportTypes = selectedExportTypes();
 
         gpsLogger.performUploadTrack(new ActionListener.UploadTrack() {
             @Override
@@ -238,40 +362,28 @@ public class PrimaryController implements Controller, StateListener {
 
             @Override
             public void onSuccess() {
-                try {
-                    // Parse the log
-                    LogParser logParser = gpsLogger.getParser();
-                    Logging.infoln("\nParsing log data...");
-                    logParser.parse();
-                    Logging.infoln("Parse log data...success");
-
-                    // Export to external file one by one
-                    Date now = new Date();
-                    String exportPath = uploadPath.getText();
-                    String filename = sdf.format(now);
-                    String exported;
-                    for (LogParser.ExportType exportType : exportTypes) {
-                        switch (exportType) {
-                            case GPX:
-                                exported = logParser.toGpx(new File(exportPath, filename + ".pgx"), now);
-                                Logging.infoln("Log data exported to: %s", exported);
-                                break;
-
-                            case KML:
-                                exported = logParser.toKml(new File(exportPath, filename + ".kml"), now);
-                                Logging.infoln("Log data exported to: %s", exported);
-                                break;
-
-                            default:
-                                break;
-                        }
+                // Parse and export in background, UI kept disabled except the button to cancel it.
+                uploadProgress.setProgress(0);
+                uploadTrackBtn.setText("Cancel");
+                uploadTrackBtn.setDisable(false);
+
+                Date now = new Date();
+                logExportJob = LogExport.submit(gpsLogger.getParser(), exportTypes, uploadPath.getText(), sdf.format(now), LogExport.masterFilenameOf(MASTER_FILENAME, gpsLogger), now, new LogExport.Listener() {
+                    @Override
+                    public void onProgress(String stage, double progress) {
+                        uploadProgress.setProgress(progress);
                     }
-                } catch (JAXBException e) {
-                    e.printStackTrace();
-                    Logging.infoln("Parse log data...failed");
-                }
 
-                postExecution();
+                    @Override
+                    public void onDone(LogExport.Result result) {
+                        logExportJob = null;
+                        uploadTrackBtn.setText("Upload");
+                        if (result == LogExport.Result.SUCCESS) uploadProgress.setProgress(1);
+
+                        // Logger may have been lost meanwhile, and UI reset already.
+                        if (gpsLogger != null) postExecution();
+                    }
+                });
             }
 
             /**
@@ -286,9 +398,154 @@ public class PrimaryController implements Controller, StateListener {
         });
     }
 
+    @FXML
+    private Button syncAllBtn;
+
+    @FXML
+    private void syncAllBtnActionPerformed(ActionEvent event) {
+        if (gpsLogger != null || fleetSync != null || portScanner != null) return;
+
+        List<CommPort> ports = new ArrayList<>(commPorts.filtered(commPort -> commPort.getTransport() != null));
+        if (ports.isEmpty()) {
+            Logging.errorln("No serial port to sync");
+            return;
+        }
+
+        logTextArea.setText("");
+        uploadProgress.setProgress(0);
+        logWindow.setText(String.format("Fleet sync - detecting loggers on %d ports...", ports.size()));
+
+        loggerChooser.setDisable(true);
+        commPortChooser.setDisable(true);
+        baudRateChooser.setDisable(true);
+        dataBitsChooser.setDisable(true);
+        parityChooser.setDisable(true);
+        stopBitsChooser.setDisable(true);
+        flowCtrlChooser.setDisable(true);
+        connectBtn.setDisable(true);
+        syncAllBtn.setDisable(true);
+        detectBtn.setDisable(true);
+
+        // Each port is synced with the model and baud rate detected on it.
+        int dataBitsIdx = dataBitsChooser.getSelectionModel().getSelectedIndex();
+        int parityIdx = parityChooser.getSelectionModel().getSelectedIndex();
+        int stopBitsIdx = stopBitsChooser.getSelectionModel().getSelectedIndex();
+        int flowCtrlIdx = flowCtrlChooser.getSelectionModel().getSelectedIndex();
+        portScanner = new PortScanner(loggerChooser.getItems(), ports, dataBitsIdx, parityIdx, stopBitsIdx, flowCtrlIdx, results -> {
+            portScanner = null;
+
+            if (results.isEmpty()) {
+                resetToDefault();
+                logWindow.setText("Fleet sync - No logger detected.");
+                return;
+            }
+
+            logWindow.setText(String.format("Fleet sync - %d loggers...", results.size()));
+            fleetSync = new FleetSync(results, dataBitsIdx, parityIdx, stopBitsIdx, flowCtrlIdx,
+                    selectedExportTypes(), uploadPath.getText(), MASTER_FILENAME,
+                    new FleetSync.Listener() {
+                        @Override
+                        public void onProgress(double progress) {
+                            uploadProgress.setProgress(progress);
+                        }
+
+                        @Override
+                        public void onDone(int succeeded, int total) {
+                            fleetSync = null;
+                            resetToDefault();
+                            logWindow.setText(String.format("Fleet sync - %d of %d loggers synced.", succeeded, total));
+                        }
+                    });
+            fleetSync.start();
+        });
+        portScanner.start();
+    }
+
     @FXML
     private ProgressBar uploadProgress;
 
+    @FXML
+    private Button detectBtn;
+
+    @FXML
+    private void detectBtnActionPerformed(ActionEvent event) {
+        if (gpsLogger != null || fleetSync != null || portScanner != null) return;
+
+        logTextArea.setText("");
+        logWindow.setText("Detecting loggers...");
+
+        loggerChooser.setDisable(true);
+        commPortChooser.setDisable(true);
+        baudRateChooser.setDisable(true);
+        connectBtn.setDisable(true);
+        syncAllBtn.setDisable(true);
+        detectBtn.setDisable(true);
+
+        portScanner = new PortScanner(loggerChooser.getItems(), commPorts.filtered(commPort -> commPort.getPort() != null),
+                dataBitsChooser.getSelectionModel().getSelectedIndex(),
+                parityChooser.getSelectionModel().getSelectedIndex(),
+                stopBitsChooser.getSelectionModel().getSelectedIndex(),
+                flowCtrlChooser.getSelectionModel().getSelectedIndex(),
+                results -> {
+                    portScanner = null;
+                    resetToDefault();
+
+                    if (results.isEmpty()) {
+                        logWindow.setText("Logger - Not detected.");
+                        return;
+                    }
+
+                    // Pickup the first logger found, the others are listed in log window.
+                    PortScanner.Result result = results.get(0);
+                    loggerChooser.setValue(result.getModel());
+                    commPortChooser.setValue(result.getCommPort());
+                    baudRateChooser.setValue(CommProperty.commBaudRateList.get(result.getCommBaudRateIdx()));
+                    logWindow.setText(String.format("Logger - Detected: %s", result));
+                });
+        portScanner.start();
+    }
+
+    @FXML
+    private void addTcpPortActionPerformed(ActionEvent event) {
+        TextInputDialog dialog = new TextInputDialog("localhost:2000");
+        dialog.setTitle("Add TCP bridge");
+        dialog.setHeaderText("Logger attached to serial-to-TCP bridge (e.g. ser2net)");
+        dialog.setContentText("host:port");
+
+        dialog.showAndWait().ifPresent(endpoint -> {
+            endpoint = endpoint.trim();
+            if (TcpTransport.of(endpoint) == null) {
+                Logging.errorln("Invalid TCP endpoint: [%s]", endpoint);
+                return;
+            }
+
+            List<String> endpoints = Settings.getTcpEndpoints();
+            if (!endpoints.contains(endpoint)) {
+                endpoints.add(endpoint);
+                Settings.setTcpEndpoints(endpoints);
+            }
+            refreshSerialPort();
+        });
+    }
+
+    @FXML
+    private void replayPortActionPerformed(ActionEvent event) {
+        FileChooser chooser = new FileChooser();
+        chooser.setTitle("Replay captured traffic (journal or debug log)...");
+
+        File selected = chooser.showOpenDialog(null);
+        if (selected == null) return;
+
+        try {
+            List<ReplayTransport.Frame> frames = ReplayTransport.load(selected.toPath());
+            replayPorts.add(new CommPort("Replay " + selected.getName(), new ReplayTransport(frames)));
+            Logging.infoln("Replay %s: %d frames loaded", selected.getName(), frames.size());
+            refreshSerialPort();
+        } catch (IOException ex) {
+            Logging.errorln("Failed to load %s: %s", selected.getName(), ex.getMessage());
+        }
+    }
+
     @FXML
     private Button connectBtn;
 
@@ -297,8 +554,8 @@ public class PrimaryController implements Controller, StateListener {
         if (gpsLogger == null) {
             logTextArea.setText("");
 
-            // Pickup selected logger entity and start it
-            GpsLogger logger = loggerChooser.getValue();
+            // Create a logger entity of selected model and start it
+            GpsLogger logger = loggerChooser.getValue().newInstance();
 
             logger.performConnect(
                     new ActionListener() {
@@ -316,6 +573,8 @@ public class PrimaryController implements Controller, StateListener {
                             stopBitsChooser.setDisable(true);
                             flowCtrlChooser.setDisable(true);
                             connectBtn.setDisable(true);
+                            syncAllBtn.setDisable(true);
+                            detectBtn.setDisable(true);
                         }
 
                         @Override
@@ -439,6 +698,18 @@ public class PrimaryController implements Controller, StateListener {
         // Initialize GPS track upload progress bar
         uploadProgress.setProgress(0);
 
+        // Initialize upload options
+        kmlSuperOverlay.setSelected(Settings.isKmlSuperOverlay());
+        incrementalExport.setSelected(Settings.isIncrementalExport());
+        selectToggle(uploadWindow, String.valueOf(Settings.getUploadWindow()));
+        selectToggle(uploadBaudRate, String.valueOf(Settings.getUploadBaudRate()));
+        uploadBinary.setSelected(Settings.isUploadBinary());
+        uploadCache.setSelected(Settings.isUploadCache());
+        serialReaderThread.setSelected(Settings.isSerialReaderThread());
+        selectToggle(serialReadTimeout, String.valueOf(Settings.getSerialReadTimeout()));
+        capture.setSelected(Settings.isCapture());
+        selectToggle(uploadRange, String.valueOf(Settings.getUploadRangeDays()));
+
         // Group log levels Error/Info/Debug
         ToggleGroup logLevelToggle = new ToggleGroup();
         errLogLevel.setToggleGroup(logLevelToggle);
@@ -476,14 +747,11 @@ public class PrimaryController implements Controller, StateListener {
             }
         });
 
-        // Schedule TimerTask to refresh Serial Port
-        serialPortRefreshTimer = new Timer("Timer-RefreshSerialPort");
-        serialPortRefreshTimer.schedule(new TimerTask() {
-            @Override
-            public void run() {
-                if (gpsLogger == null) {
-                    refreshSerialPort();
-                }
+        // Schedule timer to refresh Serial Port
+        // Enumerating ports on the shared timer thread is fine: it is skipped while any logger is talked with.
+        serialPortRefreshTimer = SharedTimer.scheduleAtFixedRate(() -> {
+            if (gpsLogger == null && fleetSync == null && portScanner == null) {
+                refreshSerialPort();
             }
         }, 5000, 5000);
 
@@ -506,10 +774,25 @@ public class PrimaryController implements Controller, StateListener {
      */
     public void onClose() {
         if (serialPortRefreshTimer != null) {
-            serialPortRefreshTimer.cancel();
+            serialPortRefreshTimer.cancel(false);
             serialPortRefreshTimer = null;
         }
 
+        if (fleetSync != null) {
+            fleetSync.stop();
+            fleetSync = null;
+        }
+
+        if (portScanner != null) {
+            portScanner.stop();
+            portScanner = null;
+        }
+
+        if (logExportJob != null) {
+            logExportJob.cancel();
+            logExportJob = null;
+        }
+
         if (gpsLogger == null) {
             Platform.exit();
         } else {
@@ -541,7 +824,7 @@ public class PrimaryController implements Controller, StateListener {
      */
     private void refreshSerialPort() {
         // Do not refresh serial port list during ACTIVE state.
-        if (gpsLogger != null) return;
+        if (gpsLogger != null || fleetSync != null || portScanner != null) return;
 
         ObservableList<CommPort> ports = FXCollections.observableArrayList();
 
@@ -552,11 +835,18 @@ public class PrimaryController implements Controller, StateListener {
             Arrays.sort(serialPorts, (SerialPort sp1, SerialPort sp2) -> (sp1.getSystemPortName().compareTo(sp2.getSystemPortName())));
             // Build CommPort list with available serial port
             for (SerialPort serialPort : serialPorts) {
-                CommPort commPort = new CommPort(serialPort.getSystemPortName() + " (" + serialPort.getPortDescription() + ")", serialPort);
+                CommPort commPort = new CommPort(serialPort.getSystemPortName() + " (" + serialPort.getPortDescription() + ")", new SerialTransport(serialPort));
                 ports.add(commPort);
             }
         }
 
+        // Append TCP bridges and replays
+        for (String endpoint : Settings.getTcpEndpoints()) {
+            TcpTransport transport = TcpTransport.of(endpoint);
+            if (transport != null) ports.add(new CommPort("TCP " + endpoint, transport));
+        }
+        ports.addAll(replayPorts);
+
         // If no available serial port, insert 'No available Serial Port' into CommPort list
         if (ports.size() == 0) {
             ports.add(new CommPort("No available Serial Port", null));
@@ -625,6 +915,8 @@ public class PrimaryController implements Controller, StateListener {
         // Update button to 'Connect'
         connectBtn.setDisable(false);
         connectBtn.setText("Connect");
+        syncAllBtn.setDisable(false);
+        detectBtn.setDisable(false);
 
         gpsLogger = null;
         logWindow.setText("Logger - Disconnected.");
@@ -659,4 +951,34 @@ public class PrimaryController implements Controller, StateListener {
         kmlExport.setDisable(false);
         tabPane.getTabs().forEach(tab -> tab.setDisable(false));
     }
+
+    /**
+     * Get the types of file to be exported, as selected.
+     *
+     * @return The export types.
+     */
+    private List<LogParser.ExportType> selectedExportTypes() {
+        List<LogParser.ExportType> exportTypes = new ArrayList<>();
+        if (gpxExport.isSelected()) {
+            exportTypes.add(incrementalExport.isSelected() ? LogParser.ExportType.GPX_APPEND : LogParser.ExportType.GPX);
+        }
+        if (kmlExport.isSelected()) {
+            if (kmlSuperOverlay.isSelected()) exportTypes.add(LogParser.ExportType.KML_SUPER_OVERLAY);
+            else exportTypes.add(incrementalExport.isSelected() ? LogParser.ExportType.KML_APPEND : LogParser.ExportType.KML);
+        }
+        return exportTypes;
+    }
+
+    /**
+     * Method to select the toggle with given user data.
+     *
+     * @param group    The toggle group.
+     * @param userData The user data of toggle to be selected.
+     */
+    private void selectToggle(ToggleGroup group, String userData) {
+        group.getToggles().stream()
+                .filter(toggle -> userData.equals(toggle.getUserData()))
+                .findFirst()
+                .ifPresent(toggle -> toggle.setSelected(true));
+    }
 }
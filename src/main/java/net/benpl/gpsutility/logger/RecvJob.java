@@ -17,9 +17,13 @@ package net.benpl.gpsutility.logger;
 
 import net.benpl.gpsutility.misc.Logging;
 import net.benpl.gpsutility.misc.Utils;
+import net.benpl.gpsutility.serialport.MtkPacket;
+
+import java.util.function.BooleanSupplier;
+import java.util.function.Predicate;
 
 /**
- * RecvJob is the wrapper of incoming NMEA sentence, to be executed by working thread of logger entity.
+ * RecvJob is the wrapper of incoming NMEA sentence (or MTK binary packet), to be executed by working thread of logger entity.
  */
 final public class RecvJob implements Runnable {
     /**
@@ -30,6 +34,10 @@ final public class RecvJob implements Runnable {
      * NMEA sentence received from serial port.
      */
     private String nmea;
+    /**
+     * MTK binary packet received from serial port, in binary mode.
+     */
+    private MtkPacket packet;
     /**
      * If NMEA sentence is handled correctly.
      */
@@ -46,6 +54,17 @@ final public class RecvJob implements Runnable {
         this.nmea = nmea;
     }
 
+    /**
+     * Constructor..
+     *
+     * @param logger The logger entity which received this packet.
+     * @param packet The MTK binary packet.
+     */
+    public RecvJob(GpsLogger logger, MtkPacket packet) {
+        this.logger = logger;
+        this.packet = packet;
+    }
+
     /**
      * Test if received NMEA sentence has been handled successfully.
      *
@@ -60,6 +79,11 @@ final public class RecvJob implements Runnable {
      */
     @Override
     public void run() {
+        if (packet != null) {
+            runPacket();
+            return;
+        }
+
         Logging.debugln("==> %s", nmea);
 
         // HOLUX extends it for other purpose.
@@ -84,61 +108,157 @@ final public class RecvJob implements Runnable {
             return;
         }
 
-        if (!nmea.matches("(.*)*[0-9A-Fa-f]{2}$")) {
+        // CheckSum in NMEA package
+        int h = Utils.hexDigit(nmea.charAt(length - 2));
+        int l = Utils.hexDigit(nmea.charAt(length - 1));
+        if ((h | l) < 0) {
             Logging.errorln("Invalid NMEA: ended with [%s]", nmea.substring(length - 3));
             return;
         }
+        int chk0 = (h << 4) | l;
 
-        // CheckSum in NMEA package
-        int chk0 = Integer.parseInt(nmea.substring(length - 2), 16);
-        // DataFiled
-        String dataField = nmea.substring(1, length - 3);
-        // CheckSum calculated on DataField
-        int chk1 = Utils.getCheckSum(dataField);
+        // DataField, between '$' and '*'. (Not taken out as substring, it may be a large block of log data)
+        int from = 1;
+        int to = length - 3;
+
+        // CheckSum calculated on DataField, by the SendJob expecting it, which may decode its data in the same pass.
+        SendJob job = findExpectedJob(sendJob -> sendJob.isRespExpected(nmea, from, to));
+        int chk1 = job != null ? job.scanResp(nmea, from, to) : Utils.getCheckSum(nmea, from, to);
 
         // Validate CheckSum
         if (chk0 != chk1) {
             Logging.errorln("Invalid NMEA: checksum failed 0x%02X <-> 0x%02X", chk1, chk0);
+            // Taken as not received: the SendJob keeps waiting, or recovers at once. (e.g. read its block again)
+            if (job != null && job.onCorrupted()) {
+                releaseJob(job);
+                job.cancelNoRespTimer();
+                if (logger.sendJob == job) logger.sendJob = null;
+            }
             return;
         }
 
-        boolean expected = logger.sendJob != null && logger.sendJob.isRespExpected(dataField);
-        if (expected) {
-            // If the expected response of last SendJob
+        if (job != null) {
+            // If the expected response of last SendJob (or one of the pipelined SendJobs)
+            releaseJob(job);
             // Cancel NoResp timer at once, otherwise the long time NMEA handling (like export gpx/kml) may cause timeout.
-            logger.sendJob.cancelNoRespTimer();
+            job.respReceived();
 
             // Dispatch NMEA to relevant handler.
-            success = logger.sendJob.handleResp(dataField);
+            success = handle(job, () -> job.handleResp(nmea, from, to));
+            if (success && logger.configCache != null) logger.configCache.record(job, nmea, from, to);
+            if (!success) success = job.takeFailure();
 
-            // SendJob level
-            if (Utils.isNotEmpty(logger.sendJob.desc)) {
-                Logging.debugln("%s...%s", logger.sendJob.desc, success ? "success" : "failed");
-            }
-
-            // Task level
-            if (logger.sendJob instanceof SendJob.NonTask || logger.actionTask == null) {
-                // Task unrelated SendJob. Nothing to do.
-                logger.sendJob = null;
-            } else {
-                // Task related SendJob
-                // Stop the task if it is done or error occurred.
-                if (!success) {
-                    // Task failed
-                    logger.actionTask.postExec(ActionTask.CAUSE.HANDLE_NMEA_FAIL);
-                    logger.actionTask = null;
-                } else if (logger.sendJob.isLastJob()) {
-                    // Task finished successfully
-                    logger.actionTask.postExec(ActionTask.CAUSE.SUCCESS);
-                    logger.actionTask = null;
-                }
-
-                // Release sendJob reference since expected response received.
-                logger.sendJob = null;
-            }
+            finishJob(job);
         } else {
             // Discard all other not intended incoming NMEAs
             success = true;
         }
     }
+
+    /**
+     * Job body for MTK binary packet.
+     */
+    private void runPacket() {
+        Logging.debugln("==> %s", packet);
+
+        SendJob job = takeExpectedJob(sendJob -> sendJob.isPacketExpected(packet));
+        if (job != null) {
+            job.respReceived();
+
+            // Dispatch packet to relevant handler.
+            success = handle(job, () -> job.handlePacket(packet)) || job.takeFailure();
+
+            finishJob(job);
+        } else {
+            // Discard all other not intended incoming packets. (e.g. PMTK001 acknowledges)
+            success = true;
+        }
+    }
+
+    /**
+     * Invoke handler of SendJob, taking a malformed response (e.g. number not parsed) as failure to handle.
+     *
+     * @param job     The SendJob.
+     * @param handler The handler.
+     * @return TRUE - handled correctly; FALSE - failed to handle.
+     */
+    private static boolean handle(SendJob job, BooleanSupplier handler) {
+        try {
+            return handler.getAsBoolean();
+        } catch (RuntimeException ex) {
+            Logging.errorln("%s...malformed response: %s", Utils.isNotEmpty(job.desc) ? job.desc : "SendJob", ex.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Close the SendJob which has got its response handled, and the task it belongs to if done or failed.
+     *
+     * @param job The SendJob.
+     */
+    private void finishJob(SendJob job) {
+        // SendJob level
+        if (Utils.isNotEmpty(job.desc)) {
+            Logging.debugln("%s...%s", job.desc, success ? "success" : "failed");
+        }
+
+        // Task level
+        if (!job.isTaskRelated() || logger.actionTask == null) {
+            // Task unrelated SendJob. Nothing to do.
+        } else {
+            // Task related SendJob
+            // Stop the task if it is done or error occurred.
+            if (!success) {
+                // Task failed
+                logger.actionTask.postExec(ActionTask.CAUSE.HANDLE_NMEA_FAIL);
+            } else if (job.isLastJob()) {
+                // Task finished successfully
+                logger.actionTask.postExec(ActionTask.CAUSE.SUCCESS);
+            }
+        }
+
+        // Release sendJob reference since expected response received.
+        if (logger.sendJob == job) {
+            logger.sendJob = null;
+        }
+    }
+
+    /**
+     * Find the SendJob which is waiting for this response, and release it from pipelined SendJobs.
+     *
+     * @param expected Test if the SendJob is waiting for this response.
+     * @return The SendJob expecting this response; or NULL if not expected.
+     */
+    private SendJob takeExpectedJob(Predicate<SendJob> expected) {
+        SendJob job = findExpectedJob(expected);
+        if (job != null) releaseJob(job);
+        return job;
+    }
+
+    /**
+     * Find the SendJob which is waiting for this response.
+     *
+     * @param expected Test if the SendJob is waiting for this response.
+     * @return The SendJob expecting this response; or NULL if not expected.
+     */
+    private SendJob findExpectedJob(Predicate<SendJob> expected) {
+        if (logger.sendJob != null && expected.test(logger.sendJob)) {
+            return logger.sendJob;
+        }
+
+        for (SendJob job : logger.pendingJobs) {
+            if (expected.test(job)) return job;
+        }
+        return null;
+    }
+
+    /**
+     * Release the SendJob which has got its response from pipelined SendJobs.
+     * (The last SendJob is released by {@link #finishJob(SendJob)})
+     *
+     * @param job The SendJob.
+     */
+    private void releaseJob(SendJob job) {
+        if (job != logger.sendJob) logger.pendingJobs.remove(job);
+    }
 }
@@ -0,0 +1,104 @@
+/*
+ * Copyright 2018 Ben Peng
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.benpl.gpsutility.logger;
+
+/**
+ * Round trip time estimator of the connection to logger, to derive expiry of NoResp timers.
+ * <p>
+ * As of TCP retransmission timer (RFC 6298): the smoothed round trip time and its variance are updated on each
+ * response, and the expiry is SRTT + 4 * RTTVAR, within [{@link #MIN_EXPIRY}, {@link #MAX_EXPIRY}]. Each expiry
+ * without response doubles it, until next response (measured or not). Before the first response,
+ * {@link #INITIAL_EXPIRY} is taken.
+ */
+final class RttEstimator {
+
+    /**
+     * Expiry before any round trip measured.
+     */
+    static final long INITIAL_EXPIRY = 2000;
+    /**
+     * Lower bound of expiry. (USB link answers within a few ms)
+     */
+    static final long MIN_EXPIRY = 300;
+    /**
+     * Upper bound of expiry. (Bluetooth link under load)
+     */
+    static final long MAX_EXPIRY = 15000;
+
+    /**
+     * Smoothed round trip time in ms. (negative: not measured yet)
+     */
+    private double srtt = -1;
+    /**
+     * Round trip time variance in ms.
+     */
+    private double rttvar = 0;
+    /**
+     * Backoff factor on expiry without response.
+     */
+    private int backoff = 1;
+
+    /**
+     * Update estimation with a round trip just measured.
+     *
+     * @param rtt The round trip time in ms.
+     */
+    synchronized void sample(long rtt) {
+        if (srtt < 0) {
+            srtt = rtt;
+            rttvar = rtt / 2.0;
+        } else {
+            rttvar = 0.75 * rttvar + 0.25 * Math.abs(srtt - rtt);
+            srtt = 0.875 * srtt + 0.125 * rtt;
+        }
+        backoff = 1;
+    }
+
+    /**
+     * Drop the backoff, on a response not measured. (e.g. bulk data, whose round trip takes transfer time in)
+     */
+    synchronized void ack() {
+        backoff = 1;
+    }
+
+    /**
+     * Back off the expiry, on no response within it.
+     */
+    synchronized void backoff() {
+        if (expiry() < MAX_EXPIRY) backoff *= 2;
+    }
+
+    /**
+     * Get expiry of NoResp timer.
+     *
+     * @return The expiry in ms.
+     */
+    synchronized long expiry() {
+        if (srtt < 0) return INITIAL_EXPIRY;
+
+        long rto = Math.round(srtt + Math.max(1.0, 4 * rttvar));
+        return Math.min(MAX_EXPIRY, Math.max(MIN_EXPIRY, rto) * backoff);
+    }
+
+    /**
+     * Drop the estimation, on new connection.
+     */
+    synchronized void reset() {
+        srtt = -1;
+        rttvar = 0;
+        backoff = 1;
+    }
+}
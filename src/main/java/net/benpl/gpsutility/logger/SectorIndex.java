@@ -0,0 +1,148 @@
+/*
+ * Copyright 2018 Ben Peng
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.benpl.gpsutility.logger;
+
+import net.benpl.gpsutility.misc.Logging;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.function.Supplier;
+
+/**
+ * Selective upload of the log sectors within a date range.
+ * <p>
+ * The first {@link FlashReader#BLOCK_SIZE} bytes of each 64 KB sector (the 0x200 bytes sector header and the first
+ * record) are read first, to map sectors to time ranges: a sector covers from its first record to the first record of
+ * the chronologically next sector. Then only the rest of the sectors overlapping the date range is read. The sectors
+ * not read are left erased (0xFF) in the upload buffer, which {@link LogParserHolux} skips as empty.
+ */
+public final class SectorIndex {
+
+    private static final int SECTOR_SIZE = LogParserHolux.LOG_SECTOR_SIZE;
+
+    private SectorIndex() {
+    }
+
+    /**
+     * Create the reader of selective upload.
+     *
+     * @param factory Factory of readers over the upload buffer.
+     * @param parser  Factory of parser over the upload buffer. (of {@link LogParserHolux})
+     * @param buffer  The upload buffer.
+     * @param from    The earliest record time wanted; or NULL for unbounded.
+     * @param to      The latest record time wanted; or NULL for unbounded.
+     * @return The reader of sector headers, chained with the reader of selected sectors.
+     */
+    public static FlashReader reader(Supplier<FlashReader> factory, Supplier<LogParser> parser, UploadBuffer buffer, Date from, Date to) {
+        int capacity = buffer.capacity();
+
+        FlashReader headers = factory.get();
+        headers.setRanges(headerRanges(capacity));
+        headers.setNext(() -> {
+            boolean[] selected = select((LogParserHolux) parser.get(), capacity, from, to);
+
+            List<int[]> ranges = new ArrayList<>();
+            for (int i = 0; i < selected.length; i++) {
+                int start = i * SECTOR_SIZE;
+                int end = Math.min(start + SECTOR_SIZE, capacity);
+                if (!selected[i]) {
+                    // Leave the sector as erased, to be skipped by parser.
+                    buffer.erase(start, Math.min(FlashReader.BLOCK_SIZE, end - start));
+                } else if (start + FlashReader.BLOCK_SIZE < end) {
+                    // The rest of sector, header already read.
+                    ranges.add(new int[]{start + FlashReader.BLOCK_SIZE, end});
+                }
+            }
+            if (ranges.isEmpty()) return null;
+
+            FlashReader sectors = factory.get();
+            sectors.setRanges(ranges);
+            return sectors;
+        });
+        return headers;
+    }
+
+    /**
+     * Get the header ranges of all sectors.
+     *
+     * @param capacity Size of the upload buffer.
+     * @return The first {@link FlashReader#BLOCK_SIZE} bytes of each sector.
+     */
+    static List<int[]> headerRanges(int capacity) {
+        List<int[]> ranges = new ArrayList<>();
+        for (int addr = 0; addr < capacity; addr += SECTOR_SIZE) {
+            ranges.add(new int[]{addr, Math.min(addr + FlashReader.BLOCK_SIZE, capacity)});
+        }
+        return ranges;
+    }
+
+    /**
+     * Select the sectors overlapping the date range, with sector headers read.
+     *
+     * @param parser   Parser over the upload buffer.
+     * @param capacity Size of the upload buffer.
+     * @param from     The earliest record time wanted; or NULL for unbounded.
+     * @param to       The latest record time wanted; or NULL for unbounded.
+     * @return Selected or not, of each sector.
+     */
+    static boolean[] select(LogParserHolux parser, int capacity, Date from, Date to) {
+        int total = (capacity + SECTOR_SIZE - 1) / SECTOR_SIZE;
+        Date[] starts = new Date[total];
+        for (int i = 0; i < total; i++) {
+            starts[i] = parser.getSectorStartTime(i);
+        }
+
+        boolean[] selected = new boolean[total];
+        int count = 0;
+        for (int i = 0; i < total; i++) {
+            selected[i] = overlaps(starts, i, from, to);
+            if (selected[i]) {
+                Logging.debugln("Sector #%d selected, from %s", i, starts[i]);
+                count++;
+            }
+        }
+
+        Logging.infoln("%d of %d sectors within date range", count, total);
+        return selected;
+    }
+
+    /**
+     * Test if sector overlaps the date range.
+     * A sector of unknown time is taken, to be safe.
+     *
+     * @param starts Time of the first record of each sector.
+     * @param idx    The sector index.
+     * @param from   The earliest record time wanted; or NULL for unbounded.
+     * @param to     The latest record time wanted; or NULL for unbounded.
+     * @return TRUE - overlapped; FALSE - otherwise.
+     */
+    private static boolean overlaps(Date[] starts, int idx, Date from, Date to) {
+        Date start = starts[idx];
+        if (start == null) return true;
+        if (to != null && start.after(to)) return false;
+        if (from == null) return true;
+
+        // The sector ends where the chronologically next sector starts. (sectors may wrap with overlap record method)
+        Date end = null;
+        for (Date other : starts) {
+            if (other != null && other.after(start) && (end == null || other.before(end))) {
+                end = other;
+            }
+        }
+        return end == null || end.after(from);
+    }
+}
@@ -16,10 +16,11 @@
 package net.benpl.gpsutility.logger;
 
 import net.benpl.gpsutility.misc.Logging;
+import net.benpl.gpsutility.misc.SharedTimer;
 import net.benpl.gpsutility.misc.Utils;
+import net.benpl.gpsutility.serialport.MtkPacket;
 
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.concurrent.ScheduledFuture;
 
 /**
  * SendJob is the wrapper of outgoing NMEA sentence, to be executed by working thread of logger entity.
@@ -28,7 +29,7 @@ public class SendJob implements Runnable {
     /**
      * The logger entity to execute this job.
      */
-    private final GpsLogger logger;
+    final GpsLogger logger;
     /**
      * Description of this job
      */
@@ -46,13 +47,21 @@ public class SendJob implements Runnable {
      */
     private final boolean lastJob;
     /**
-     * Expiry value of NoResp timer.
+     * Minimum expiry value of NoResp timer. (floor of this command, 0: none)
      */
     private final long expiry;
     /**
-     * NoResp timer.
+     * NoResp timer, on {@link SharedTimer}.
      */
-    private Timer noRespTimer = null;
+    private volatile ScheduledFuture<?> noRespTimer = null;
+    /**
+     * Time this job was sent out, to measure round trip time. (0: not to be measured)
+     */
+    private long sentAt = 0;
+    /**
+     * Handler on failure of this job in background. (NULL: not in background)
+     */
+    private Runnable backgroundFailure = null;
 
     /**
      * Constructor.
@@ -76,7 +85,7 @@ public class SendJob implements Runnable {
      * @param lastJob  Last job indicator.
      */
     public SendJob(GpsLogger logger, String desc, String nmeaCmd, String nmeaResp, boolean lastJob) {
-        this(logger, desc, nmeaCmd, nmeaResp, lastJob, 2000);
+        this(logger, desc, nmeaCmd, nmeaResp, lastJob, 0);
     }
 
     /**
@@ -87,7 +96,8 @@ public class SendJob implements Runnable {
      * @param nmeaCmd  NMEA sentence to be send out.
      * @param nmeaResp NMEA sentence to be expected.
      * @param lastJob  Last job indicator.
-     * @param expiry   Expiry value of NoResp timer.
+     * @param expiry   Minimum expiry value of NoResp timer, besides the one derived from round trip time. (e.g. to
+     *                 transfer a large block)
      */
     public SendJob(GpsLogger logger, String desc, String nmeaCmd, String nmeaResp, boolean lastJob, long expiry) {
         this.logger = logger;
@@ -98,6 +108,48 @@ public class SendJob implements Runnable {
         this.expiry = expiry;
     }
 
+    /**
+     * Detach this job from task, to be run in background. (e.g. refresh of configuration taken from cache)
+     * It is pipelined, so it never holds up the SendJobs of the next task. Its failure (no response, or failed to
+     * handle response) only invokes the handler given; it neither stops the task, nor cancels other SendJobs.
+     *
+     * @param onFailure Handler on failure.
+     */
+    public void runInBackground(Runnable onFailure) {
+        this.backgroundFailure = onFailure;
+    }
+
+    /**
+     * Test if this job is related to the task being executed.
+     *
+     * @return TRUE - task related; FALSE - {@link NonTask}, or in background.
+     */
+    boolean isTaskRelated() {
+        return !(this instanceof NonTask) && backgroundFailure == null;
+    }
+
+    /**
+     * Test if this job is sent out without waiting for outstanding SendJobs.
+     *
+     * @return TRUE - {@link Pipelined}, or in background; FALSE - waits alone.
+     */
+    boolean isPipelined() {
+        return this instanceof Pipelined || backgroundFailure != null;
+    }
+
+    /**
+     * Take the failure to handle response. A job in background reports it to its handler, and is done anyway.
+     *
+     * @return TRUE - taken by job in background; FALSE - to be taken as failure.
+     */
+    boolean takeFailure() {
+        if (backgroundFailure == null) return false;
+
+        if (Utils.isNotEmpty(desc)) Logging.errorln("%s...failed in background", desc);
+        backgroundFailure.run();
+        return true;
+    }
+
     /**
      * Job body
      */
@@ -105,21 +157,25 @@ public class SendJob implements Runnable {
     public void run() {
         if (Utils.isNotEmpty(desc)) Logging.debugln("\n%s...start", desc);
 
-        // Encapsulate NMEA package
-        String nmea = String.format("$%s*%02X", nmeaCmd, Utils.getCheckSum(nmeaCmd));
-
-        Logging.debug("<== %s...", nmea);
-
         // Send NMEA package
-        if (logger.commPort.sendData(nmea)) {
+        if (sendOut()) {
             Logging.debugln("success");
 
-            if (Utils.isNotEmpty(nmeaResp)) {
+            if (isRespWanted()) {
                 // This SendJob is done. But want to check response.
                 // Save this job for later response checking;
-                logger.sendJob = this;
-                // Start a NoResp timer for this job.
-                startNoRespTimer();
+                if (isPipelined()) {
+                    logger.pendingJobs.addLast(this);
+                    // Measure round trip time only if no job ahead, and of no floor. (not to take transfer time in)
+                    sentAt = logger.pendingJobs.size() == 1 && expiry == 0 ? System.currentTimeMillis() : 0;
+                    // Start a NoResp timer for this job, which also waits for responses of jobs ahead of it.
+                    startNoRespTimer(expiry() * logger.pendingJobs.size());
+                } else {
+                    logger.sendJob = this;
+                    sentAt = expiry == 0 ? System.currentTimeMillis() : 0;
+                    // Start a NoResp timer for this job.
+                    startNoRespTimer(expiry());
+                }
             } else {
                 // This SendJob is done. No interested for response checking.
                 logger.sendJob = null;
@@ -128,13 +184,12 @@ public class SendJob implements Runnable {
                 if (Utils.isNotEmpty(desc)) Logging.debugln("%s...success", desc);
 
                 // Task level
-                if (this instanceof NonTask) {
+                if (!isTaskRelated()) {
                     // Task unrelated SendJob. Nothing to do.
                 } else {
                     // Task related SendJob. Need to determine if task is done.
                     if (lastJob && logger.actionTask != null) {
                         logger.actionTask.postExec(ActionTask.CAUSE.SUCCESS);
-                        logger.actionTask = null;
                     }
                 }
             }
@@ -148,7 +203,6 @@ public class SendJob implements Runnable {
             if (logger.actionTask != null) {
                 // Stop attached task if exist.
                 logger.actionTask.postExec(ActionTask.CAUSE.SEND_DATA_FAIL);
-                logger.actionTask = null;
             } else {
                 // Otherwise, stop logger entity silently.
                 logger.loggerThread.stopThread();
@@ -156,37 +210,104 @@ public class SendJob implements Runnable {
         }
     }
 
+    /**
+     * Encapsulate NMEA package and send it out on serial port of logger entity.
+     *
+     * @return TRUE - data sent successfully, FALSE - otherwise.
+     */
+    protected boolean sendOut() {
+        String nmea = String.format("$%s*%02X", nmeaCmd, Utils.getCheckSum(nmeaCmd));
+
+        Logging.debug("<== %s...", nmea);
+
+        return logger.commPort.sendData(nmea);
+    }
+
+    /**
+     * Test if this job waits for response.
+     *
+     * @return TRUE - response to be checked; FALSE - done once sent out.
+     */
+    protected boolean isRespWanted() {
+        return Utils.isNotEmpty(nmeaResp);
+    }
+
     /**
      * Test if this job is the last one.
      *
      * @return TRUE - the last one; FALSE - not the last one.
      */
-    boolean isLastJob() {
+    protected boolean isLastJob() {
         return lastJob;
     }
 
     /**
      * Test if received NMEA sentence is the expected response.
      *
-     * @param nmea The NMEA sentence received from serial port.
+     * @param nmea The NMEA sentence received from serial port. (Data field only)
      * @return TRUE - the expected response; FALSE - not expected.
      */
     final boolean isRespExpected(String nmea) {
-        return Utils.isNotEmpty(nmeaResp) && nmea.startsWith(nmeaResp);
+        return isRespExpected(nmea, 0, nmea.length());
+    }
+
+    /**
+     * Test if the data field of received NMEA sentence is the expected response.
+     * The expected sentence must be followed by a field separator or nothing, so that 'PMTK182,3,1' does not take the
+     * response of 'PMTK182,3,10' when both are pipelined.
+     *
+     * @param sentence The NMEA sentence received from serial port.
+     * @param from     Index of the first character of data field. (inclusive)
+     * @param to       Index of the last character of data field. (exclusive)
+     * @return TRUE - the expected response; FALSE - not expected.
+     */
+    final boolean isRespExpected(String sentence, int from, int to) {
+        if (Utils.isEmpty(nmeaResp) || to - from < nmeaResp.length()) return false;
+        if (!sentence.startsWith(nmeaResp, from)) return false;
+
+        int end = from + nmeaResp.length();
+        return end == to || sentence.charAt(end) == ',';
+    }
+
+    /**
+     * Scan the data field of received NMEA sentence, which is tested as expected, before its checksum is validated.
+     * Jobs expecting bulk data may decode it in the same pass. (see {@link HexData})
+     *
+     * @param sentence The NMEA sentence received from serial port.
+     * @param from     Index of the first character of data field. (inclusive)
+     * @param to       Index of the last character of data field. (exclusive)
+     * @return XOR checksum of data field; or -1 if invalid.
+     */
+    int scanResp(String sentence, int from, int to) {
+        return Utils.getCheckSum(sentence, from, to);
     }
 
     /**
      * Method to handle received NMEA sentence. (It is tested by {@link #isRespExpected(String)} as expected)
      *
-     * @param nmea The NMEA sentence received from serial port.
+     * @param nmea The NMEA sentence received from serial port. (Data field only)
      * @return TRUE - handled correctly; FALSE - failed to handle.
      */
     final boolean handleResp(String nmea) {
-        if (nmea.length() == nmeaResp.length()) {
+        return handleResp(nmea, 0, nmea.length());
+    }
+
+    /**
+     * Method to handle the data field of received NMEA sentence. (It is tested by {@link #isRespExpected(String, int, int)}
+     * as expected, and validated by checksum)
+     *
+     * @param sentence The NMEA sentence received from serial port.
+     * @param from     Index of the first character of data field. (inclusive)
+     * @param to       Index of the last character of data field. (exclusive)
+     * @return TRUE - handled correctly; FALSE - failed to handle.
+     */
+    boolean handleResp(String sentence, int from, int to) {
+        int end = from + nmeaResp.length();
+        if (to == end) {
             return handle(null);
-        } else if (nmea.length() > nmeaResp.length() + 1) {
-            if (nmea.charAt(nmeaResp.length()) == ',') {
-                return handle(nmea.substring(nmeaResp.length() + 1));
+        } else if (to > end + 1) {
+            if (sentence.charAt(end) == ',') {
+                return handle(sentence.substring(end + 1, to));
             }
         }
 
@@ -204,40 +325,128 @@ public class SendJob implements Runnable {
     }
 
     /**
-     * Start NoResp timer for this job.
+     * Test if received MTK binary packet is the expected response. (to be override)
+     *
+     * @param packet The packet received from serial port.
+     * @return TRUE - the expected response; FALSE - not expected.
      */
-    private void startNoRespTimer() {
-        noRespTimer = new Timer("Timer-NoResponse");
-        noRespTimer.schedule(new TimerTask() {
-            @Override
-            public void run() {
-                Logging.errorln("[%s] ...no response!", nmeaCmd);
+    protected boolean isPacketExpected(MtkPacket packet) {
+        return false;
+    }
 
-                // Cancel this SendJob
-                logger.sendJob.cancelNoRespTimer();
-                logger.sendJob = null;
+    /**
+     * The handler body to handle received MTK binary packet. (to be override)
+     *
+     * @param packet The packet received from serial port.
+     * @return TRUE - handled correctly; FALSE - failed to handle.
+     */
+    public boolean handlePacket(MtkPacket packet) {
+        return true;
+    }
 
-                // Cancel all pending SendJobs
-                logger.cancelAllSendJobs();
+    /**
+     * Get expiry value of NoResp timer, derived from round trip time, not less than the floor of this command.
+     *
+     * @return Expiry value of NoResp timer.
+     */
+    private long expiry() {
+        return Math.max(expiry, logger.rtt.expiry());
+    }
 
-                if (logger.actionTask != null) {
-                    // Stop associated task if exist.
-                    logger.actionTask.postExec(ActionTask.CAUSE.NO_RESP);
-                    logger.actionTask = null;
-                } else {
-                    // Otherwise stop logger entity silently.
-                    logger.loggerThread.stopThread();
-                }
-            }
+    /**
+     * Method to handle expected response received. Cancel NoResp timer, measure round trip time, and drop backoff.
+     */
+    void respReceived() {
+        cancelNoRespTimer();
+
+        if (sentAt > 0) {
+            logger.rtt.sample(System.currentTimeMillis() - sentAt);
+            sentAt = 0;
+        } else {
+            // Not measured (e.g. of floor), but the link is alive.
+            logger.rtt.ack();
+        }
+    }
+
+    /**
+     * Start NoResp timer for this job.
+     *
+     * @param expiry Expiry value of NoResp timer.
+     */
+    private void startNoRespTimer(long expiry) {
+        noRespTimer = SharedTimer.schedule(() -> {
+            LoggerThread thread = logger.loggerThread;
+            if (thread == null) return;
+
+            // Handle it on the working thread, which may be handling the response right now.
+            thread.execute(this::handleNoResp);
         }, expiry);
     }
 
     /**
-     * Cancel pending NoResp TimerTask.
+     * Method to handle NoResp timer expired.
+     */
+    private void handleNoResp() {
+        if (logger.sendJob != this && !logger.pendingJobs.contains(this)) {
+            // Response already handled meanwhile.
+            return;
+        }
+
+        Logging.errorln("[%s] ...no response!", nmeaCmd);
+        logger.rtt.backoff();
+
+        // Cancel this SendJob
+        cancelNoRespTimer();
+        if (logger.sendJob == this) {
+            logger.sendJob = null;
+        }
+        logger.pendingJobs.remove(this);
+
+        // Job in background fails alone.
+        if (takeFailure()) return;
+
+        // Let the job recover by itself. (resend, fallback, ...)
+        if (onNoResp()) return;
+
+        // Cancel all pending SendJobs
+        logger.cancelAllSendJobs();
+
+        if (logger.actionTask != null) {
+            // Stop associated task if exist.
+            logger.actionTask.postExec(ActionTask.CAUSE.NO_RESP);
+        } else {
+            // Otherwise stop logger entity silently.
+            logger.loggerThread.stopThread();
+        }
+    }
+
+    /**
+     * The handler body on no response within expiry. (to be override)
+     * It is invoked on working thread of logger entity, after this job has been released.
+     *
+     * @return TRUE - recovered by this job, task goes on; FALSE - task to be stopped with {@link ActionTask.CAUSE#NO_RESP}.
+     */
+    protected boolean onNoResp() {
+        return false;
+    }
+
+    /**
+     * The handler body on expected response received with checksum failed, which is taken as not received. (to be
+     * override) It is invoked on working thread of logger entity, before this job is released.
+     *
+     * @return TRUE - recovered by this job (e.g. read again), this job to be released; FALSE - keep waiting.
+     */
+    protected boolean onCorrupted() {
+        return false;
+    }
+
+    /**
+     * Cancel pending NoResp timer.
      */
     void cancelNoRespTimer() {
-        if (noRespTimer != null) {
-            noRespTimer.cancel();
+        ScheduledFuture<?> timer = noRespTimer;
+        if (timer != null) {
+            timer.cancel(false);
             noRespTimer = null;
         }
     }
@@ -250,4 +459,98 @@ public class SendJob implements Runnable {
             super(logger, desc, nmeaCmd, nmeaResp);
         }
     }
+
+    /**
+     * Another style SendJob which may be sent out while other Pipelined jobs are still waiting for their responses.
+     * The responses are matched by {@link #isRespExpected(String)}, so they may arrive in any order.
+     * <p>
+     * Non-pipelined SendJobs are still executed one by one, after all outstanding Pipelined jobs are done.
+     */
+    public static class Pipelined extends SendJob {
+        public Pipelined(GpsLogger logger, String desc, String nmeaCmd, String nmeaResp) {
+            super(logger, desc, nmeaCmd, nmeaResp);
+        }
+
+        public Pipelined(GpsLogger logger, String desc, String nmeaCmd, String nmeaResp, long expiry) {
+            super(logger, desc, nmeaCmd, nmeaResp, false, expiry);
+        }
+    }
+
+    /**
+     * Another style SendJob which expects bulk data in Hex string, as the last field of its response. (e.g. log data)
+     * The Hex string is decoded straight from the received sentence into {@link UploadBuffer}, in the same pass as
+     * checksum calculation, with no intermediate String or array. The result is handled by {@link #handleData(int)}.
+     * If the checksum fails, the slot is left overwritten: the block is to be read again. (see {@link #onCorrupted()})
+     * <p>
+     * It is pipelined as well.
+     */
+    public static class HexData extends Pipelined {
+        private final UploadBuffer buffer;
+        private final int address;
+        private final int dataOffset;
+        private int decoded = -1;
+
+        public HexData(GpsLogger logger, String desc, String nmeaCmd, String nmeaResp, long expiry, UploadBuffer buffer, int address) {
+            super(logger, desc, nmeaCmd, nmeaResp, expiry);
+            this.buffer = buffer;
+            this.address = address;
+            this.dataOffset = nmeaResp.length() + 1;
+        }
+
+        @Override
+        int scanResp(String sentence, int from, int to) {
+            decoded = -1;
+
+            int data = from + dataOffset;
+            if (data >= to) return Utils.getCheckSum(sentence, from, to);
+
+            int chk = buffer.putHex(address, sentence, data, to);
+            if (chk < 0) return -1;
+
+            decoded = (to - data) / 2;
+            return Utils.getCheckSum(sentence, from, data) ^ chk;
+        }
+
+        @Override
+        boolean handleResp(String sentence, int from, int to) {
+            return handleData(decoded);
+        }
+
+        /**
+         * The handler body to handle bulk data decoded. (to be override)
+         *
+         * @param length Number of bytes decoded into buffer. (-1 on failure)
+         * @return TRUE - handled correctly; FALSE - failed to handle.
+         */
+        public boolean handleData(int length) {
+            return true;
+        }
+    }
+
+    /**
+     * Another style SendJob which sends out MTK binary packet, in binary mode.
+     * The response is matched by {@link #isPacketExpected(MtkPacket)}, and handled by {@link #handlePacket(MtkPacket)}.
+     * <p>
+     * It is pipelined as well, so several binary requests may wait for their responses at the same time.
+     */
+    public static class Binary extends Pipelined {
+        private final MtkPacket packet;
+
+        public Binary(GpsLogger logger, String desc, MtkPacket packet, long expiry) {
+            super(logger, desc, packet.toString(), null, expiry);
+            this.packet = packet;
+        }
+
+        @Override
+        protected boolean sendOut() {
+            Logging.debug("<== %s...", packet);
+
+            return logger.commPort.sendPacket(packet);
+        }
+
+        @Override
+        protected boolean isRespWanted() {
+            return true;
+        }
+    }
 }
@@ -0,0 +1,169 @@
+/*
+ * Copyright 2018 Ben Peng
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.benpl.gpsutility.logger;
+
+import net.benpl.gpsutility.misc.Logging;
+import net.benpl.gpsutility.misc.Utils;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Preallocated buffer of log data read from GPS Data Logger.
+ * <p>
+ * The buffer is sized once from the record address (next write) of logger flash, and each block read is decoded from
+ * Hex string (or copied from binary packet) straight into its address slot. So no intermediate array is created per block, and the blocks need not
+ * to arrive in order.
+ * <p>
+ * The buffer is heap backed by default, so {@link #array()} hands the backing array to {@link LogParser} without copy.
+ * A direct (off-heap) buffer may be requested instead for consumers writing it out through channels; the parser then
+ * gets a one-off copy.
+ */
+public final class UploadBuffer {
+
+    /**
+     * Value of erased flash, used to fill the slots not read yet.
+     */
+    private static final byte ERASED = (byte) 0xFF;
+
+    private final ByteBuffer buffer;
+
+    /**
+     * Constructor.
+     *
+     * @param capacity The size of log data to be read.
+     * @param direct   TRUE - allocate direct (off-heap) buffer; FALSE - heap buffer.
+     */
+    public UploadBuffer(int capacity, boolean direct) {
+        this.buffer = direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+
+        if (buffer.hasArray()) {
+            Arrays.fill(buffer.array(), ERASED);
+        } else {
+            for (int i = 0; i < capacity; i++) {
+                buffer.put(i, ERASED);
+            }
+        }
+    }
+
+    /**
+     * Return the size of this buffer.
+     *
+     * @return The size in bytes.
+     */
+    public int capacity() {
+        return buffer.capacity();
+    }
+
+    /**
+     * Decode a range of Hex characters straight from the received sentence into the slot of given address, by lookup
+     * table. The NMEA checksum (XOR) of the characters is calculated in the same pass, so the sentence needs no other
+     * scan, substring or intermediate array. The slot is overwritten before the checksum is validated by caller.
+     *
+     * @param address The flash address of the first byte.
+     * @param src     The received sentence.
+     * @param from    Index of the first Hex character. (inclusive)
+     * @param to      Index of the last Hex character. (exclusive)
+     * @return XOR checksum of the characters; or -1 in case of failure.
+     */
+    public int putHex(int address, CharSequence src, int from, int to) {
+        int length = to - from;
+        if ((length % 2) != 0) {
+            Logging.errorln("Invalid string length: %d", length);
+            return -1;
+        }
+        if (address < 0 || address + length / 2 > buffer.capacity()) {
+            Logging.errorln("Invalid address: 0x%08X, size: 0x%X", address, length / 2);
+            return -1;
+        }
+
+        int chk = 0;
+        for (int i = from, slot = address, h, l; i < to; i += 2, slot++) {
+            char ch = src.charAt(i);
+            char cl = src.charAt(i + 1);
+            chk ^= ch ^ cl;
+
+            h = Utils.hexDigit(ch);
+            l = Utils.hexDigit(cl);
+            if ((h | l) < 0) {
+                Logging.errorln("Invalid character: [%c%c]", ch, cl);
+                return -1;
+            }
+
+            buffer.put(slot, (byte) ((h << 4) | l));
+        }
+        return chk & 0x00FF;
+    }
+
+    /**
+     * Copy raw bytes into the slot of given address.
+     *
+     * @param address The flash address of the first byte.
+     * @param src     The source array.
+     * @param offset  Offset of the first byte in source array.
+     * @param length  Number of bytes to be copied.
+     * @return Number of bytes copied; or -1 in case of failure.
+     */
+    public int put(int address, byte[] src, int offset, int length) {
+        if (length < 0 || address < 0 || address + length > buffer.capacity()) {
+            Logging.errorln("Invalid address: 0x%08X, size: 0x%X", address, length);
+            return -1;
+        }
+
+        ByteBuffer slot = buffer.duplicate();
+        slot.position(address);
+        slot.put(src, offset, length);
+        return length;
+    }
+
+    /**
+     * Fill the slots of given range as erased flash.
+     *
+     * @param address The flash address of the first byte.
+     * @param length  Number of bytes to be erased.
+     */
+    public void erase(int address, int length) {
+        for (int i = address; i < address + length && i < buffer.capacity(); i++) {
+            buffer.put(i, ERASED);
+        }
+    }
+
+    /**
+     * Return a read-only view of this buffer, positioned at 0 and limited to its capacity.
+     *
+     * @return The read-only view.
+     */
+    public ByteBuffer asReadOnlyBuffer() {
+        return buffer.asReadOnlyBuffer();
+    }
+
+    /**
+     * Return log data as byte array, for {@link LogParser}.
+     *
+     * @return The backing array of heap buffer; or a copy of direct buffer.
+     */
+    public byte[] array() {
+        if (buffer.hasArray()) {
+            return buffer.array();
+        }
+
+        byte[] copy = new byte[buffer.capacity()];
+        ByteBuffer view = buffer.duplicate();
+        view.clear();
+        view.get(copy);
+        return copy;
+    }
+}
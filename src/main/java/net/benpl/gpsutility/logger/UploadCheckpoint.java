@@ -0,0 +1,317 @@
+/*
+ * Copyright 2018 Ben Peng
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.benpl.gpsutility.logger;
+
+import net.benpl.gpsutility.misc.Logging;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.BitSet;
+import java.util.Random;
+
+/**
+ * On-disk checkpoint of upload in progress, to resume an upload broken by link failure.
+ * <p>
+ * Each block is written to the checkpoint file at its flash address as soon as it arrives, and the read address
+ * (all blocks below received) is updated in the file header. If the upload fails, the file is kept. On next upload
+ * from the same device (same flash image key, record address not gone backward), the blocks below the read address
+ * are loaded from checkpoint, and the upload goes on from there. The file is deleted once the upload is done.
+ * <p>
+ * The key is not unique per unit on every model (e.g. flash ID only), so the loaded blocks are not trusted as is: the
+ * first block (first sector header) and a few random ones are read again from logger as samples, like
+ * {@link FlashImageCache}. If any of them does not match the checkpoint, it is of another unit, and a full read is
+ * taken instead.
+ * <p>
+ * File layout:
+ * <pre>
+ * MAGIC | VERSION | record address (long) | read address (int) | capacity (int) | key length (int) | key | image
+ * </pre>
+ */
+public final class UploadCheckpoint {
+
+    private static final int MAGIC = 0x47555043; // "GUPC"
+    private static final int VERSION = 1;
+
+    /**
+     * Offset of read address in file header.
+     */
+    private static final int READ_ADDR_OFFSET = 16;
+
+    /**
+     * Key of device.
+     */
+    private final String key;
+    /**
+     * Checkpoint file of this device.
+     */
+    private final Path file;
+    /**
+     * Record address (next write) of logger flash.
+     */
+    private final long rcdAddr;
+
+    /**
+     * Channel of checkpoint file. (NULL: not opened, or failed)
+     */
+    private FileChannel channel = null;
+    /**
+     * Offset of image in checkpoint file.
+     */
+    private int dataOffset;
+    /**
+     * Blocks received. (in {@link FlashReader#BLOCK_SIZE})
+     */
+    private final BitSet received = new BitSet();
+    /**
+     * Read address. All blocks below it have been received.
+     */
+    private int readAddr = 0;
+    /**
+     * Random source of samples.
+     */
+    private final Random random = new Random();
+    /**
+     * Flash addresses of the loaded blocks to be verified, and CRC32 of each.
+     */
+    private int[] samples = new int[0];
+    private int[] sampleHashes = new int[0];
+
+    /**
+     * Constructor.
+     *
+     * @param key     Key of device. (flash ID, user name, hardware version, ...)
+     * @param rcdAddr Record address (next write) of logger flash, as of this upload.
+     */
+    public UploadCheckpoint(String key, long rcdAddr) {
+        this.key = key;
+        this.rcdAddr = rcdAddr;
+        this.file = FlashImageCache.fileOf(key, ".part");
+    }
+
+    /**
+     * Open the checkpoint for this upload. Load the blocks of broken upload if any, or start a new checkpoint.
+     *
+     * @param buffer   The buffer to store log data.
+     * @param fromAddr Flash address the upload would start from without checkpoint.
+     * @return Flash address to resume reading from. (not less than fromAddr)
+     */
+    public int open(UploadBuffer buffer, int fromAddr) {
+        int resumeAddr = load(buffer);
+        if (resumeAddr > fromAddr) {
+            Logging.infoln("Upload checkpoint...0x%X bytes resumed", resumeAddr);
+        } else {
+            resumeAddr = fromAddr;
+            samples = new int[0];
+            sampleHashes = new int[0];
+        }
+
+        // Start over the checkpoint, with blocks loaded or preloaded so far.
+        try {
+            Files.createDirectories(file.getParent());
+            channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+
+            byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+            dataOffset = 28 + keyBytes.length;
+            ByteBuffer header = ByteBuffer.allocate(dataOffset);
+            header.putInt(MAGIC).putInt(VERSION).putLong(rcdAddr).putInt(0).putInt(buffer.capacity()).putInt(keyBytes.length).put(keyBytes);
+            header.flip();
+            channel.write(header, 0);
+
+            if (resumeAddr > 0) {
+                ByteBuffer image = buffer.asReadOnlyBuffer();
+                image.limit(resumeAddr);
+                channel.write(image, dataOffset);
+            }
+        } catch (IOException ex) {
+            Logging.errorln("Failed to create upload checkpoint: %s", ex.getMessage());
+            close();
+        }
+
+        received.clear();
+        received.set(0, resumeAddr / FlashReader.BLOCK_SIZE);
+        readAddr = 0;
+        advance();
+        return resumeAddr;
+    }
+
+    /**
+     * Write the block just received into checkpoint, and advance read address.
+     *
+     * @param addr   The flash address of the block.
+     * @param size   The size of the block.
+     * @param buffer The buffer holding the block.
+     */
+    public void write(int addr, int size, UploadBuffer buffer) {
+        if (channel == null) return;
+
+        try {
+            ByteBuffer block = buffer.asReadOnlyBuffer();
+            block.position(addr);
+            block.limit(addr + size);
+            channel.write(block, dataOffset + addr);
+        } catch (IOException ex) {
+            Logging.errorln("Failed to write upload checkpoint: %s", ex.getMessage());
+            close();
+            return;
+        }
+
+        received.set(addr / FlashReader.BLOCK_SIZE, (addr + size) / FlashReader.BLOCK_SIZE);
+        advance();
+    }
+
+    /**
+     * Get flash addresses of the loaded blocks to be read again for verification.
+     *
+     * @return The sample addresses. (each of {@link FlashReader#BLOCK_SIZE})
+     */
+    public int[] samples() {
+        return samples;
+    }
+
+    /**
+     * Verify the sample blocks within the range just read, against the blocks loaded from checkpoint.
+     *
+     * @param addr   The flash address of the range.
+     * @param size   The size of the range.
+     * @param buffer The buffer holding the range.
+     * @return TRUE - matched (or no sample within); FALSE - checkpoint of another unit, or flash rewritten.
+     */
+    public boolean verify(int addr, int size, UploadBuffer buffer) {
+        ByteBuffer view = buffer.asReadOnlyBuffer();
+        for (int i = 0; i < samples.length; i++) {
+            if (samples[i] < addr || samples[i] >= addr + size) continue;
+
+            if (FlashImageCache.crc32(view, samples[i]) != sampleHashes[i]) {
+                Logging.infoln("Upload checkpoint...block 0x%08X changed", samples[i]);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Drop all blocks received, on restart of upload from the beginning.
+     */
+    public void reset() {
+        samples = new int[0];
+        sampleHashes = new int[0];
+        received.clear();
+        readAddr = -1;
+        advance();
+    }
+
+    /**
+     * Delete the checkpoint, once upload is done.
+     */
+    public void delete() {
+        close();
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException ex) {
+            Logging.errorln("Failed to delete upload checkpoint: %s", ex.getMessage());
+        }
+    }
+
+    /**
+     * Close the checkpoint file, keeping it for next upload.
+     */
+    public void close() {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException ex) {
+                Logging.errorln("Failed to close upload checkpoint: %s", ex.getMessage());
+            }
+            channel = null;
+        }
+    }
+
+    /**
+     * Update read address in file header, if changed.
+     */
+    private void advance() {
+        int addr = received.nextClearBit(0) * FlashReader.BLOCK_SIZE;
+        if (addr == readAddr || channel == null) return;
+        readAddr = addr;
+
+        try {
+            ByteBuffer value = ByteBuffer.allocate(4);
+            value.putInt(readAddr).flip();
+            channel.write(value, READ_ADDR_OFFSET);
+        } catch (IOException ex) {
+            Logging.errorln("Failed to write upload checkpoint: %s", ex.getMessage());
+            close();
+        }
+    }
+
+    /**
+     * Load the blocks of broken upload from checkpoint file, if it is of the same device.
+     *
+     * @param buffer The buffer to store log data.
+     * @return Read address of broken upload; or 0 if nothing loaded.
+     */
+    private int load(UploadBuffer buffer) {
+        if (!Files.isRegularFile(file)) return 0;
+
+        try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(28);
+            if (in.read(header, 0) < 28) return 0;
+            header.flip();
+
+            if (header.getInt() != MAGIC || header.getInt() != VERSION) return 0;
+            long cpRcdAddr = header.getLong();
+            int cpReadAddr = header.getInt();
+            header.getInt(); // capacity
+            int keyLength = header.getInt();
+
+            ByteBuffer keyBytes = ByteBuffer.allocate(keyLength);
+            in.read(keyBytes, 28);
+            if (!key.equals(new String(keyBytes.array(), StandardCharsets.UTF_8))) return 0;
+
+            if (cpRcdAddr > rcdAddr) {
+                Logging.infoln("Upload checkpoint...outdated (0x%X > 0x%X), flash erased?", cpRcdAddr, rcdAddr);
+                return 0;
+            }
+            if (cpReadAddr <= 0 || cpReadAddr > buffer.capacity()) return 0;
+
+            byte[] image = new byte[cpReadAddr];
+            ByteBuffer dst = ByteBuffer.wrap(image);
+            long pos = 28 + keyLength;
+            while (dst.hasRemaining()) {
+                int n = in.read(dst, pos + dst.position());
+                if (n < 0) return 0;
+            }
+            buffer.put(0, image, 0, cpReadAddr);
+
+            // Remember the samples as loaded, to be compared with the same blocks read again.
+            ByteBuffer view = ByteBuffer.wrap(image);
+            samples = FlashImageCache.pickSamples(random, cpReadAddr / FlashReader.BLOCK_SIZE);
+            sampleHashes = new int[samples.length];
+            for (int i = 0; i < samples.length; i++) {
+                sampleHashes[i] = FlashImageCache.crc32(view, samples[i]);
+            }
+            return cpReadAddr;
+        } catch (IOException ex) {
+            Logging.errorln("Failed to load upload checkpoint: %s", ex.getMessage());
+            return 0;
+        }
+    }
+}
@@ -34,6 +34,16 @@ public final class GpsLogger extends net.benpl.gpsutility.logger.GpsLogger {
         super("Debugger", 4, 4, 0, 0, 2);
     }
 
+    /**
+     * Create a new logger entity of this model.
+     *
+     * @return The new logger entity.
+     */
+    @Override
+    public GpsLogger newInstance() {
+        return new GpsLogger();
+    }
+
     @Override
     public LinkedHashMap<String, AnchorPane> createLoggerPanel() {
         // No addition Panel for Debugger
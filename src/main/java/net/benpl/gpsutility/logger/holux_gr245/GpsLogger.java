@@ -17,10 +17,14 @@ package net.benpl.gpsutility.logger.holux_gr245;
 
 import javafx.scene.layout.AnchorPane;
 import net.benpl.gpsutility.logger.ActionListener;
+import net.benpl.gpsutility.logger.DeviceConfigCache;
+import net.benpl.gpsutility.logger.SendJob;
 import net.benpl.gpsutility.logger.StateListener;
+import net.benpl.gpsutility.logger.UploadBuffer;
 import net.benpl.gpsutility.serialport.CommPort;
 import net.benpl.gpsutility.serialport.CommProperty;
 
+import java.util.Date;
 import java.util.LinkedHashMap;
 
 /**
@@ -66,8 +70,8 @@ public final class GpsLogger extends net.benpl.gpsutility.logger.GpsLogger {
     // Temporary variables used during Upload Track operation
     // =====================================================================
     int totalBlocks; // How many blocks (1 KB for each) log data
-    byte[] logData;
-    int readAddr;
+    UploadBuffer logData;
+    Date rangeFrom; // Start of selective upload (NULL: all)
 
 //    /**
 //     * The associated Config Panel
@@ -90,6 +94,26 @@ public final class GpsLogger extends net.benpl.gpsutility.logger.GpsLogger {
 //        this.configPaneController = null;
     }
 
+    /**
+     * Create a new logger entity of this model.
+     *
+     * @return The new logger entity.
+     */
+    @Override
+    public GpsLogger newInstance() {
+        return new GpsLogger();
+    }
+
+    /**
+     * Logger ID replied on handshake.
+     *
+     * @return The logger ID.
+     */
+    @Override
+    protected String getLoggerId() {
+        return LOGGER_ID;
+    }
+
     /**
      * Return LogParser on log data uploaded from GPS Data Logger.
      *
@@ -97,7 +121,61 @@ public final class GpsLogger extends net.benpl.gpsutility.logger.GpsLogger {
      */
     @Override
     protected LogParser getParser() {
-        return new LogParser(logData);
+        LogParser parser = new LogParser(logData.array());
+        parser.setDateRange(rangeFrom, null);
+        return parser;
+    }
+
+    /**
+     * MTK binary protocol is supported for log upload.
+     *
+     * @return TRUE - supported.
+     */
+    @Override
+    protected boolean isBinaryModeSupported() {
+        return true;
+    }
+
+    /**
+     * Return key to identify this model and MTK version, to remember device specific settings.
+     *
+     * @return The device key.
+     */
+    String deviceKey() {
+        // Firmware version is not queried from this model.
+        return String.format("%s,%d", name, mtkVersion);
+    }
+
+    /**
+     * Return key to identify the flash of this logger, to cache log data uploaded.
+     *
+     * @return The flash image key.
+     */
+    String imageKey() {
+        // User name and hardware version are not queried from this model.
+        return storageKey(String.format("%s,%s", name, flashId));
+    }
+
+    /**
+     * Take the configuration from cache of this device if consistent, and watch the queries to refresh the cache.
+     * (flash ID and record address must have been queried)
+     *
+     * @param queries The configuration queries.
+     * @return TRUE - configuration taken from cache; FALSE - to be queried.
+     */
+    boolean loadConfigCache(SendJob... queries) {
+        configCache = new DeviceConfigCache(storageKey(String.format("%s,%s", name, flashId)), flashId, rcdAddr);
+        boolean cached = configCache.load() && configCache.replay(queries);
+        configCache.watch(queries);
+
+        if (cached) {
+            // Refreshed in background, a failed query only drops the cache, never the session.
+            DeviceConfigCache cache = configCache;
+            for (SendJob query : queries) {
+                query.runInBackground(cache::delete);
+            }
+        }
+        return cached;
     }
 
     /**
@@ -219,6 +297,7 @@ public final class GpsLogger extends net.benpl.gpsutility.logger.GpsLogger {
      */
     void postUploadTrack() {
         logData = null;
+        rangeFrom = null;
     }
 
 //    /**
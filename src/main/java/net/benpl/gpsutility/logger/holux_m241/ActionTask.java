@@ -15,16 +15,26 @@
 
 package net.benpl.gpsutility.logger.holux_m241;
 
-import javafx.application.Platform;
 import net.benpl.gpsutility.logger.ActionListener;
+import net.benpl.gpsutility.logger.BaudRateSwitch;
+import net.benpl.gpsutility.logger.BinaryMode;
+import net.benpl.gpsutility.logger.FlashImageCache;
+import net.benpl.gpsutility.logger.FlashReader;
+import net.benpl.gpsutility.logger.SectorIndex;
 import net.benpl.gpsutility.logger.SendJob;
+import net.benpl.gpsutility.logger.UploadCheckpoint;
 import net.benpl.gpsutility.logger.StateListener;
+import net.benpl.gpsutility.logger.UploadBuffer;
 import net.benpl.gpsutility.misc.Logging;
+import net.benpl.gpsutility.misc.Settings;
 import net.benpl.gpsutility.misc.Utils;
 import net.benpl.gpsutility.serialport.CommPort;
 import net.benpl.gpsutility.serialport.CommProperty;
 
+import java.util.Arrays;
+import java.util.Date;
 import java.util.LinkedList;
+import java.util.function.Supplier;
 
 /**
  * Holux M-241 implementation of {@link net.benpl.gpsutility.logger.ActionTask}.
@@ -62,6 +72,11 @@ abstract public class ActionTask extends net.benpl.gpsutility.logger.ActionTask<
             super(gpsLogger, actionListener, commPort, commBaudRateIdx, commDataBitsIdx, commParityIdx, commStopBitsIdx, commFlowCtrlIdx, stateListener);
         }
 
+        /**
+         * Whether the configuration has been taken from cache.
+         */
+        private boolean cached = false;
+
         /**
          * Callback to listen on logger state changed.
          *
@@ -71,6 +86,10 @@ abstract public class ActionTask extends net.benpl.gpsutility.logger.ActionTask<
         protected void stateChanged(int state) {
             if (state == GpsLogger.STATE_SERIALPORT_OPENED) {
                 // Once serial port is ready, launch a batch of NMEA commands.
+                // Flash ID, user name and record address are queried first, to validate the configuration cache of this unit.
+                // The state changing as the logger runs (SPI status, logger state, total records, fail sectors) is queried
+                // along with them, never taken from cache.
+                // The other queries are pipelined, so they take about one round trip altogether.
                 gpsLogger.enqueueSendJob(
                         new SendJob(gpsLogger, "Handshake", "PHLX810", "PHLX852") {
                             @Override
@@ -91,60 +110,36 @@ abstract public class ActionTask extends net.benpl.gpsutility.logger.ActionTask<
                             public boolean handle(String nmea) {
                                 // Transit logger entity state
                                 gpsLogger.setState(GpsLogger.STATE_USB_MODE);
-                                // Schedule TimerTask to keep USB_MODE alive.
+                                // Schedule timer to keep USB_MODE alive.
                                 gpsLogger.startUsbModeTimer();
                                 return true;
                             }
                         }, // Transit HoluxM241 into USB_MODE; Stop logging if started (TODO: Is it PHLX826->PHLX859 for GR245???)
-                        new SendJob(gpsLogger, "Query SPI status", "PMTK182,2,1", "PMTK182,3,1") {
-                            @Override
-                            public boolean handle(String nmea) {
-                                gpsLogger.spiStatus = Integer.parseInt(nmea);
-                                return true;
-                            }
-                        }, // Query HoluxM241 for SPI status
-                        new SendJob(gpsLogger, "Query FmtReg", "PMTK182,2,2", "PMTK182,3,2") {
+                        new SendJob.Pipelined(gpsLogger, "Query flashID", "PMTK182,2,9", "PMTK182,3,9") {
                             @Override
                             public boolean handle(String nmea) {
-                                gpsLogger.fmtReg = Long.parseLong(nmea, 16);
-                                return true;
-                            }
-                        }, // Query HoluxM241 for log format register
-                        new SendJob(gpsLogger, "Query BySec", "PMTK182,2,3", "PMTK182,3,3") {
-                            @Override
-                            public boolean handle(String nmea) {
-                                gpsLogger.bySec = Integer.parseInt(nmea);
-                                if (gpsLogger.configPaneController != null)
-                                    gpsLogger.configPaneController.setRecordBySec(gpsLogger.bySec);
+                                gpsLogger.flashId = nmea;
                                 return true;
                             }
-                        }, // Query HoluxM241 for interval (in 0.1 second) of BySEC
-                        new SendJob(gpsLogger, "Query ByDist", "PMTK182,2,4", "PMTK182,3,4") {
+                        }, // Query HoluxM241 for flash ID
+                        new SendJob.Pipelined(gpsLogger, "Query UserName", "HOLUX241,5", "HOLUX001,5") {
                             @Override
                             public boolean handle(String nmea) {
-                                gpsLogger.byDist = Integer.parseInt(nmea);
+                                // User name, which tells this unit apart from others.
+                                gpsLogger.userName = nmea;
                                 if (gpsLogger.configPaneController != null)
-                                    gpsLogger.configPaneController.setRecordByDist(gpsLogger.byDist);
+                                    gpsLogger.configPaneController.setUserName(gpsLogger.userName);
                                 return true;
                             }
-                        }, // Query HoluxM241 for interval (in 0.1 meter) of ByDistance
-                        new SendJob(gpsLogger, "Query BySpeed", "PMTK182,2,5", "PMTK182,3,5") {
-                            @Override
-                            public boolean handle(String nmea) {
-                                gpsLogger.bySpeed = Integer.parseInt(nmea);
-                                return true;
-                            }
-                        }, // Query HoluxM241 for interval (in 0.1 km/h) of BySpeed
-                        new SendJob(gpsLogger, "Query RcdMethod", "PMTK182,2,6", "PMTK182,3,6") {
+                        }, // Query HoluxM241 for user name
+                        new SendJob.Pipelined(gpsLogger, "Query SPI status", "PMTK182,2,1", "PMTK182,3,1") {
                             @Override
                             public boolean handle(String nmea) {
-                                gpsLogger.rcdMethod = Integer.parseInt(nmea);
-                                if (gpsLogger.configPaneController != null)
-                                    gpsLogger.configPaneController.setRcdMethod(gpsLogger.rcdMethod);
+                                gpsLogger.spiStatus = Integer.parseInt(nmea);
                                 return true;
                             }
-                        }, // Query HoluxM241 for record method. (Overlap or StopOnFull)
-                        new SendJob(gpsLogger, "Query LoggerState", "PMTK182,2,7", "PMTK182,3,7") {
+                        }, // Query HoluxM241 for SPI status
+                        new SendJob.Pipelined(gpsLogger, "Query LoggerState", "PMTK182,2,7", "PMTK182,3,7") {
                             @Override
                             public boolean handle(String nmea) {
                                 gpsLogger.loggerStatus = Integer.parseInt(nmea);
@@ -154,76 +149,130 @@ abstract public class ActionTask extends net.benpl.gpsutility.logger.ActionTask<
                                 return true;
                             }
                         }, // Query HoluxM241 for log status. (Start/Stop)
-                        new SendJob(gpsLogger, "Query RcdAddr", "PMTK182,2,8", "PMTK182,3,8") {
-                            @Override
-                            public boolean handle(String nmea) {
-                                gpsLogger.rcdAddr = Long.parseLong(nmea, 16);
-                                return true;
-                            }
-                        }, // Query HoluxM241 for record address. (next write)
-                        new SendJob(gpsLogger, "Query flashID", "PMTK182,2,9", "PMTK182,3,9") {
-                            @Override
-                            public boolean handle(String nmea) {
-                                gpsLogger.flashId = nmea;
-                                return true;
-                            }
-                        }, // Query HoluxM241 for flash ID
-                        new SendJob(gpsLogger, "Query RcdTotal", "PMTK182,2,10", "PMTK182,3,10") {
+                        new SendJob.Pipelined(gpsLogger, "Query RcdTotal", "PMTK182,2,10", "PMTK182,3,10") {
                             @Override
                             public boolean handle(String nmea) {
                                 gpsLogger.rcdRcnt = Long.parseLong(nmea, 16);
                                 return true;
                             }
                         }, // Query HoluxM241 for total records
-                        new SendJob(gpsLogger, "Query FailSectors", "PMTK182,2,11", "PMTK182,3,11") {
+                        new SendJob.Pipelined(gpsLogger, "Query FailSectors", "PMTK182,2,11", "PMTK182,3,11") {
                             @Override
                             public boolean handle(String nmea) {
                                 gpsLogger.failSector = Utils.toByteArray(nmea);
                                 return true;
                             }
                         }, // Query HoluxM241 for FailSector in flash
-                        new SendJob(gpsLogger, "Query MtkVersion", "PMTK182,2,12", "PMTK182,3,12") {
-                            @Override
-                            public boolean handle(String nmea) {
-                                gpsLogger.mtkVersion = Integer.parseInt(nmea);
-                                return true;
-                            }
-                        }, // Query HoluxM241 for MTK hardware version
-                        new SendJob(gpsLogger, "Query FwVer", "HOLUX241,3", "HOLUX001,3") {
-                            @Override
-                            public boolean handle(String nmea) {
-                                // Firmware version info
-                                gpsLogger.fwVer = String.format("%.02f", Float.parseFloat(nmea) / 100);
-                                return true;
-                            }
-                        }, // Query HoluxM241 for firmware version
-                        new SendJob(gpsLogger, "Query HwVer", "HOLUX241,7", "HOLUX001,7") {
-                            @Override
-                            public boolean handle(String nmea) {
-                                // Hardware version
-                                gpsLogger.hwVer = nmea;
-                                return true;
-                            }
-                        }, // Query HoluxM241 for hardware version
-                        new SendJob(gpsLogger, "Query UserName", "HOLUX241,5", "HOLUX001,5") {
+                        new SendJob(gpsLogger, "Query RcdAddr", "PMTK182,2,8", "PMTK182,3,8") {
                             @Override
                             public boolean handle(String nmea) {
-                                // User name
-                                gpsLogger.userName = nmea;
+                                gpsLogger.rcdAddr = Long.parseLong(nmea, 16);
+
+                                // Query the rest of configuration, or refresh it in background if taken from cache.
+                                SendJob[] queries = queryJobs();
+                                cached = gpsLogger.loadConfigCache(queries);
+                                gpsLogger.enqueueSendJob(queries);
                                 return true;
                             }
-                        }, // Query HoluxM241 for user name
-                        new SendJob(gpsLogger, "Query RcdBy", "HOLUX241,8", "HOLUX001,8", true) {
+
                             @Override
-                            public boolean handle(String nmea) {
-                                // Record By
-                                gpsLogger.rcdBy = Integer.parseInt(nmea);
-                                return true;
+                            protected boolean isLastJob() {
+                                return cached;
                             }
-                        } // Query HoluxM241 for record method. (0: BySec, 1: ByDist)
+                        } // Query HoluxM241 for record address. (next write)
                 );
             }
         }
+
+        /**
+         * Create SendJobs to query the configuration of logger, besides those queried on every connect.
+         *
+         * @return The query SendJobs.
+         */
+        private SendJob[] queryJobs() {
+            return new SendJob[]{
+                    new SendJob.Pipelined(gpsLogger, "Query FmtReg", "PMTK182,2,2", "PMTK182,3,2") {
+                        @Override
+                        public boolean handle(String nmea) {
+                            gpsLogger.fmtReg = Long.parseLong(nmea, 16);
+                            return true;
+                        }
+                    }, // Query HoluxM241 for log format register
+                    new SendJob.Pipelined(gpsLogger, "Query BySec", "PMTK182,2,3", "PMTK182,3,3") {
+                        @Override
+                        public boolean handle(String nmea) {
+                            gpsLogger.bySec = Integer.parseInt(nmea);
+                            if (gpsLogger.configPaneController != null)
+                                gpsLogger.configPaneController.setRecordBySec(gpsLogger.bySec);
+                            return true;
+                        }
+                    }, // Query HoluxM241 for interval (in 0.1 second) of BySEC
+                    new SendJob.Pipelined(gpsLogger, "Query ByDist", "PMTK182,2,4", "PMTK182,3,4") {
+                        @Override
+                        public boolean handle(String nmea) {
+                            gpsLogger.byDist = Integer.parseInt(nmea);
+                            if (gpsLogger.configPaneController != null)
+                                gpsLogger.configPaneController.setRecordByDist(gpsLogger.byDist);
+                            return true;
+                        }
+                    }, // Query HoluxM241 for interval (in 0.1 meter) of ByDistance
+                    new SendJob.Pipelined(gpsLogger, "Query BySpeed", "PMTK182,2,5", "PMTK182,3,5") {
+                        @Override
+                        public boolean handle(String nmea) {
+                            gpsLogger.bySpeed = Integer.parseInt(nmea);
+                            return true;
+                        }
+                    }, // Query HoluxM241 for interval (in 0.1 km/h) of BySpeed
+                    new SendJob.Pipelined(gpsLogger, "Query RcdMethod", "PMTK182,2,6", "PMTK182,3,6") {
+                        @Override
+                        public boolean handle(String nmea) {
+                            gpsLogger.rcdMethod = Integer.parseInt(nmea);
+                            if (gpsLogger.configPaneController != null)
+                                gpsLogger.configPaneController.setRcdMethod(gpsLogger.rcdMethod);
+                            return true;
+                        }
+                    }, // Query HoluxM241 for record method. (Overlap or StopOnFull)
+                    new SendJob.Pipelined(gpsLogger, "Query MtkVersion", "PMTK182,2,12", "PMTK182,3,12") {
+                        @Override
+                        public boolean handle(String nmea) {
+                            gpsLogger.mtkVersion = Integer.parseInt(nmea);
+                            return true;
+                        }
+                    }, // Query HoluxM241 for MTK hardware version
+                    new SendJob.Pipelined(gpsLogger, "Query FwVer", "HOLUX241,3", "HOLUX001,3") {
+                        @Override
+                        public boolean handle(String nmea) {
+                            // Firmware version info
+                            gpsLogger.fwVer = String.format("%.02f", Float.parseFloat(nmea) / 100);
+                            return true;
+                        }
+                    }, // Query HoluxM241 for firmware version
+                    new SendJob.Pipelined(gpsLogger, "Query HwVer", "HOLUX241,7", "HOLUX001,7") {
+                        @Override
+                        public boolean handle(String nmea) {
+                            // Hardware version
+                            gpsLogger.hwVer = nmea;
+                            return true;
+                        }
+                    }, // Query HoluxM241 for hardware version
+                    new SendJob(gpsLogger, "Query RcdBy", "HOLUX241,8", "HOLUX001,8") {
+                        @Override
+                        protected boolean isLastJob() {
+                            // The last job of connect, unless the configuration is taken from cache.
+                            return !cached;
+                        }
+
+                        @Override
+                        public boolean handle(String nmea) {
+                            // Record By
+                            gpsLogger.rcdBy = Integer.parseInt(nmea);
+                            if (gpsLogger.configPaneController != null)
+                                gpsLogger.configPaneController.setRecordBy(gpsLogger.rcdBy);
+                            return true;
+                        }
+                    } // Query HoluxM241 for record method. (0: BySec, 1: ByDist)
+            };
+        }
     }
 
     /**
@@ -254,7 +303,7 @@ abstract public class ActionTask extends net.benpl.gpsutility.logger.ActionTask<
                         new SendJob(gpsLogger, "Exit USB-Mode", "HOLUX241,2", "HOLUX001,2", true) {
                             @Override
                             public boolean handle(String nmea) {
-                                // Cancel any pending USB_MODE TimerTask
+                                // Cancel any pending USB_MODE timer
                                 gpsLogger.cancelUsbModeTimer();
                                 // Transit logger entity state
                                 gpsLogger.setState(GpsLogger.STATE_SERIALPORT_OPENED);
@@ -289,6 +338,19 @@ abstract public class ActionTask extends net.benpl.gpsutility.logger.ActionTask<
      * UploadTrack task - Upload log data from GPS Data Logger.
      */
     public static class UploadTrack extends net.benpl.gpsutility.logger.ActionTask.UploadTrack<GpsLogger> {
+        /**
+         * Temporary switch to higher baud rate during upload.
+         */
+        private BaudRateSwitch baudRateSwitch = null;
+        /**
+         * Temporary switch to binary protocol during upload.
+         */
+        private BinaryMode binaryMode = null;
+        /**
+         * On-disk checkpoint of upload, to resume on next upload if broken.
+         */
+        private UploadCheckpoint checkpoint = null;
+
         /**
          * Constructor.
          *
@@ -311,6 +373,11 @@ abstract public class ActionTask extends net.benpl.gpsutility.logger.ActionTask<
 
             LinkedList<SendJob> jobs = new LinkedList<>();
 
+            // Switch to higher baud rate during upload, if enabled
+            baudRateSwitch = new BaudRateSwitch(gpsLogger, Settings.getUploadBaudRate());
+            jobs.addAll(Arrays.asList(baudRateSwitch.switchJobs()));
+            binaryMode = new BinaryMode(gpsLogger, Settings.isUploadBinary());
+
             if ((gpsLogger.loggerStatus & 0x0002) != 0) {
                 // If auto-log is started, stop it
                 jobs.add(new SendJob(gpsLogger, "Stop logging", "PMTK182,5", "PMTK001,182,5,3")); // Stop logging
@@ -330,16 +397,28 @@ abstract public class ActionTask extends net.benpl.gpsutility.logger.ActionTask<
                 public boolean handle(String nmea) {
                     gpsLogger.rcdAddr = Long.parseLong(nmea, 16);
 
-                    gpsLogger.totalBlocks = (int) (gpsLogger.rcdAddr / 0x400) + 1;
-                    gpsLogger.readAddr = 0;
-                    gpsLogger.logData = null;
-                    gpsLogger.enqueueSendJob(new SendJob(gpsLogger, null, String.format("PMTK182,7,%08X,00000400", gpsLogger.readAddr), String.format("PMTK182,8,%08X", gpsLogger.readAddr), (gpsLogger.readAddr + 0x400) >= gpsLogger.rcdAddr) {
-                        @Override
-                        public boolean handle(String nmea) {
-                            handleUploadData(gpsLogger, (ActionListener.UploadTrack) getActionListener(), nmea);
-                            return true;
+                    gpsLogger.totalBlocks = (int) (gpsLogger.rcdAddr / FlashReader.BLOCK_SIZE) + 1;
+                    gpsLogger.logData = new UploadBuffer(gpsLogger.totalBlocks * FlashReader.BLOCK_SIZE, false);
+
+                    // Read log in blocks of 1KB size, with pipelined requests (in binary, if enabled and verified)
+                    Supplier<FlashReader> readers = () -> new FlashReader(gpsLogger, gpsLogger.logData, (ActionListener.UploadTrack) getActionListener(), Settings.getUploadWindow(), gpsLogger.deviceKey(), binaryMode);
+                    FlashReader reader;
+                    int rangeDays = Settings.getUploadRangeDays();
+                    if (rangeDays > 0) {
+                        // Read only the sectors within date range
+                        gpsLogger.rangeFrom = new Date(System.currentTimeMillis() - rangeDays * 86400000L);
+                        reader = SectorIndex.reader(readers, gpsLogger::getParser, gpsLogger.logData, gpsLogger.rangeFrom, null);
+                    } else {
+                        reader = readers.get();
+                        if (Settings.isUploadCache()) {
+                            // Read only the blocks written since last upload
+                            reader.setCache(new FlashImageCache(gpsLogger.imageKey(), gpsLogger.rcdAddr));
                         }
-                    }); // Read log of 1KB size
+                        // Save blocks as they arrive, and resume from the broken upload if any
+                        checkpoint = new UploadCheckpoint(gpsLogger.imageKey(), gpsLogger.rcdAddr);
+                        reader.setCheckpoint(checkpoint);
+                    }
+                    gpsLogger.enqueueSendJob(binaryMode.switchJobs(reader::start));
 
                     return true;
                 }
@@ -357,6 +436,19 @@ abstract public class ActionTask extends net.benpl.gpsutility.logger.ActionTask<
          */
         @Override
         protected void postRun(CAUSE result) {
+            // Keep checkpoint file of broken upload for next time
+            if (checkpoint != null) {
+                checkpoint.close();
+            }
+
+            // Restore NMEA protocol and original baud rate, on success or failure
+            if (binaryMode != null) {
+                binaryMode.restore();
+            }
+            if (baudRateSwitch != null) {
+                baudRateSwitch.restore();
+            }
+
             if (result == CAUSE.SUCCESS) {
                 gpsLogger.postUploadTrack();
             } else {
@@ -365,35 +457,6 @@ abstract public class ActionTask extends net.benpl.gpsutility.logger.ActionTask<
         }
     }
 
-    /**
-     * Method to handle log data received from serial port.
-     *
-     * @param gpsLogger      The associated logger entity.
-     * @param actionListener Listener on task execution.
-     * @param nmea           The received NMEA sentence.
-     */
-    private static void handleUploadData(GpsLogger gpsLogger, ActionListener.UploadTrack actionListener, String nmea) {
-        Platform.runLater(() -> actionListener.onProgress(((double) gpsLogger.readAddr / 1024.0 + 1.0) / (double) gpsLogger.totalBlocks));
-
-        byte[] logSeg = Utils.toByteArray(nmea);
-        gpsLogger.logData = Utils.concatByteArray(gpsLogger.logData, logSeg);
-
-        gpsLogger.readAddr += 0x400;
-        if (gpsLogger.readAddr < gpsLogger.rcdAddr) {
-            gpsLogger.enqueueSendJob(
-                    new SendJob(gpsLogger, null, String.format("PMTK182,7,%08X,00000400", gpsLogger.readAddr), String.format("PMTK182,8,%08X", gpsLogger.readAddr), (gpsLogger.readAddr + 0x400) >= gpsLogger.rcdAddr) {
-                        @Override
-                        public boolean handle(String nmea) {
-                            handleUploadData(gpsLogger, actionListener, nmea);
-                            return true;
-                        }
-                    } // Read log of 1KB size
-            );
-        } else {
-            Logging.infoln("Read data from [%s]...success", gpsLogger.toString());
-        }
-    }
-
     /**
      * SaveConfig task - Save config to GPS Data Logger.
      */
@@ -441,6 +504,9 @@ abstract public class ActionTask extends net.benpl.gpsutility.logger.ActionTask<
 
             jobs[2] = new SendJob(gpsLogger, "Save RcdBy", "HOLUX241,9," + rcdBy, "HOLUX001,9", true); // Change record by. (0: BySec, 1: ByDist)
 
+            // Configuration cache is outdated from now on.
+            gpsLogger.dropConfigCache();
+
             // Send these NMEA commands to HOLUX M-241
             gpsLogger.enqueueSendJob(jobs);
             return false;
@@ -473,6 +539,9 @@ abstract public class ActionTask extends net.benpl.gpsutility.logger.ActionTask<
          */
         @Override
         protected boolean run() {
+            // Configuration cache is outdated from now on.
+            gpsLogger.dropConfigCache();
+
             gpsLogger.enqueueSendJob(new SendJob(gpsLogger, null, "HOLUX241,4," + userName, "HOLUX001,4", true) {
                 @Override
                 public boolean handle(String nmea) {
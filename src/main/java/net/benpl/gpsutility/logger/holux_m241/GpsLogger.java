@@ -18,16 +18,22 @@ package net.benpl.gpsutility.logger.holux_m241;
 import javafx.fxml.FXMLLoader;
 import javafx.scene.layout.AnchorPane;
 import net.benpl.gpsutility.logger.ActionListener;
+import net.benpl.gpsutility.logger.DeviceConfigCache;
+import net.benpl.gpsutility.logger.LoggerThread;
 import net.benpl.gpsutility.logger.SendJob;
 import net.benpl.gpsutility.logger.StateListener;
+import net.benpl.gpsutility.logger.UploadBuffer;
 import net.benpl.gpsutility.misc.Logging;
+import net.benpl.gpsutility.misc.SharedTimer;
+import net.benpl.gpsutility.misc.Utils;
 import net.benpl.gpsutility.serialport.CommPort;
 import net.benpl.gpsutility.serialport.CommProperty;
 
 import java.io.IOException;
+import java.util.Date;
 import java.util.LinkedHashMap;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledFuture;
 
 /**
  * Holux M-241 implementation of {@link net.benpl.gpsutility.logger.GpsLogger}.
@@ -72,8 +78,8 @@ public final class GpsLogger extends net.benpl.gpsutility.logger.GpsLogger {
     // Temporary variables used during Upload Track operation
     // =====================================================================
     int totalBlocks; // How many blocks (1 KB for each) log data
-    byte[] logData;
-    int readAddr;
+    UploadBuffer logData;
+    Date rangeFrom; // Start of selective upload (NULL: all)
 
     /**
      * The associated Config Panel
@@ -84,7 +90,7 @@ public final class GpsLogger extends net.benpl.gpsutility.logger.GpsLogger {
      */
     Controller configPaneController;
 
-    private Timer usbModeTimer = null;
+    private volatile ScheduledFuture<?> usbModeTimer = null;
 
     public GpsLogger() {
         // 38400/8bits/No Parity/1bit/No Flow Control
@@ -96,6 +102,26 @@ public final class GpsLogger extends net.benpl.gpsutility.logger.GpsLogger {
         this.configPaneController = null;
     }
 
+    /**
+     * Create a new logger entity of this model.
+     *
+     * @return The new logger entity.
+     */
+    @Override
+    public GpsLogger newInstance() {
+        return new GpsLogger();
+    }
+
+    /**
+     * Logger ID replied on handshake.
+     *
+     * @return The logger ID.
+     */
+    @Override
+    protected String getLoggerId() {
+        return LOGGER_ID;
+    }
+
     /**
      * Return LogParser on log data uploaded from GPS Data Logger.
      *
@@ -103,7 +129,69 @@ public final class GpsLogger extends net.benpl.gpsutility.logger.GpsLogger {
      */
     @Override
     protected LogParser getParser() {
-        return new LogParser(logData);
+        LogParser parser = new LogParser(logData.array());
+        parser.setDateRange(rangeFrom, null);
+        return parser;
+    }
+
+    /**
+     * MTK binary protocol is supported for log upload.
+     *
+     * @return TRUE - supported.
+     */
+    @Override
+    protected boolean isBinaryModeSupported() {
+        return true;
+    }
+
+    /**
+     * Return key to identify this model, firmware and MTK version, to remember device specific settings.
+     *
+     * @return The device key.
+     */
+    String deviceKey() {
+        return String.format("%s,%s,%d", name, fwVer, mtkVersion);
+    }
+
+    /**
+     * Name of the unit connected: its user name, if set.
+     *
+     * @return The user name; or NULL if not set.
+     */
+    @Override
+    public String getUnitName() {
+        return Utils.isNotEmpty(userName) ? userName : null;
+    }
+
+    /**
+     * Return key to identify the flash of this logger, to cache log data uploaded.
+     *
+     * @return The flash image key.
+     */
+    String imageKey() {
+        return storageKey(String.format("%s,%s,%s,%s", name, flashId, userName, hwVer));
+    }
+
+    /**
+     * Take the configuration from cache of this unit if consistent, and watch the queries to refresh the cache.
+     * (flash ID, user name and record address must have been queried)
+     *
+     * @param queries The configuration queries.
+     * @return TRUE - configuration taken from cache; FALSE - to be queried.
+     */
+    boolean loadConfigCache(SendJob... queries) {
+        configCache = new DeviceConfigCache(storageKey(String.format("%s,%s,%s", name, flashId, userName)), flashId, rcdAddr);
+        boolean cached = configCache.load() && configCache.replay(queries);
+        configCache.watch(queries);
+
+        if (cached) {
+            // Refreshed in background, a failed query only drops the cache, never the session.
+            DeviceConfigCache cache = configCache;
+            for (SendJob query : queries) {
+                query.runInBackground(cache::delete);
+            }
+        }
+        return cached;
     }
 
     /**
@@ -116,7 +204,7 @@ public final class GpsLogger extends net.benpl.gpsutility.logger.GpsLogger {
         configPaneController = null;
         configPane = null;
 
-        // Cancel any pending USB_MODE TimerTask
+        // Cancel any pending USB_MODE timer
         cancelUsbModeTimer();
     }
 
@@ -220,43 +308,62 @@ public final class GpsLogger extends net.benpl.gpsutility.logger.GpsLogger {
         execActionTask(new ActionTask.ModUserName(this, actionListener, userName));
     }
 
+    /**
+     * Save config to GPS Data Logger, asynchronously.
+     *
+     * @param rcdMethod Config - record method
+     * @param rcdBy     Config - record by
+     * @param bySec     Config - value of record by seconds
+     * @param byDist    Config - value of record by distance
+     * @return The future completed once saved. See {@link #submit}.
+     */
+    public CompletableFuture<Void> saveConfig(int rcdMethod, int rcdBy, int bySec, int byDist) {
+        return submit(listener -> performSaveConfig(listener, rcdMethod, rcdBy, bySec, byDist), null);
+    }
+
+    /**
+     * Modify user name of GPS Data Logger, asynchronously.
+     *
+     * @param userName The new user name.
+     * @return The future completed once modified. See {@link #submit}.
+     */
+    public CompletableFuture<Void> modifyUserName(String userName) {
+        return submit(listener -> performModifyUserName(listener, userName), null);
+    }
+
     /**
      * Method to cleanup resources created during task UploadTrack.
      */
     void postUploadTrack() {
         logData = null;
+        rangeFrom = null;
     }
 
     /**
      * Method to start UsbMode timer, to keep UsbMode alive.
      */
     void startUsbModeTimer() {
-        if (usbModeTimer != null) {
-            usbModeTimer.cancel();
-        }
+        cancelUsbModeTimer();
 
-        usbModeTimer = new Timer("Timer-UsbMode");
-        usbModeTimer.schedule(new TimerTask() {
-            @Override
-            public void run() {
-                if (state == STATE_USB_MODE) {
-                    loggerThread.enqueueSendJob(
-                            new SendJob.NonTask(GpsLogger.this, null, "HOLUX241,6", null) // HeartBeat with HOLUX M-241, to keep USB_MODE alive (TODO: What is for GR245???)
-                    );
-                } else {
-                    usbModeTimer.cancel();
-                    usbModeTimer = null;
-                }
+        usbModeTimer = SharedTimer.scheduleAtFixedRate(() -> {
+            LoggerThread thread = loggerThread;
+            if (state == STATE_USB_MODE && thread != null) {
+                thread.enqueueSendJob(
+                        new SendJob.NonTask(GpsLogger.this, null, "HOLUX241,6", null) // HeartBeat with HOLUX M-241, to keep USB_MODE alive (TODO: What is for GR245???)
+                );
+            } else {
+                cancelUsbModeTimer();
             }
         }, 6000, 6000);
     }
 
     /**
-     * Method to cancel pending TimerTask.
+     * Method to cancel UsbMode timer.
      */
     void cancelUsbModeTimer() {
-        if (usbModeTimer != null) {
-            usbModeTimer.cancel();
+        ScheduledFuture<?> timer = usbModeTimer;
+        if (timer != null) {
+            timer.cancel(false);
             usbModeTimer = null;
         }
     }
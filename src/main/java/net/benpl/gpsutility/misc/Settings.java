@@ -15,6 +15,10 @@
 
 package net.benpl.gpsutility.misc;
 
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.prefs.Preferences;
 
 /**
@@ -25,11 +29,33 @@ public class Settings {
     private static final Preferences prefs = Preferences.userRoot().node(Settings.class.getName());
 
     private static final String PREF_GPSTRACK_STOREPATH = "pref.GpsTrack.StorePath";
+    private static final String PREF_KML_SUPEROVERLAY = "pref.Kml.SuperOverlay";
+    private static final String PREF_INCREMENTAL_EXPORT = "pref.Export.Incremental";
+    private static final String PREF_UPLOAD_WINDOW = "pref.Upload.Window";
+    private static final String PREF_UPLOAD_BLOCKSIZE = "pref.Upload.BlockSize.";
+    private static final String PREF_UPLOAD_BAUDRATE = "pref.Upload.BaudRate";
+    private static final String PREF_UPLOAD_BINARY = "pref.Upload.Binary";
+    private static final String PREF_UPLOAD_CACHE = "pref.Upload.Cache";
+    private static final String PREF_UPLOAD_RANGE_DAYS = "pref.Upload.RangeDays";
+    private static final String PREF_SERIAL_READER_THREAD = "pref.Serial.ReaderThread";
+    private static final String PREF_SERIAL_READ_TIMEOUT = "pref.Serial.ReadTimeout";
+    private static final String PREF_TCP_ENDPOINTS = "pref.Tcp.Endpoints";
+    private static final String PREF_CAPTURE = "pref.Capture";
+    private static final String PREF_CAPTURE_FILE_SIZE = "pref.Capture.FileSize";
+    private static final String PREF_CAPTURE_FILES = "pref.Capture.Files";
 
     public static String getUserHomeDir() {
         return System.getProperty("user.home");
     }
 
+    public static String getCacheDir() {
+        return Paths.get(getUserHomeDir(), ".gpsutility", "cache").toString();
+    }
+
+    public static String getCaptureDir() {
+        return Paths.get(getUserHomeDir(), ".gpsutility", "capture").toString();
+    }
+
     public static String getGpsTrackStorePath() {
         return prefs.get(PREF_GPSTRACK_STOREPATH, System.getProperty("user.home"));
     }
@@ -38,4 +64,129 @@ public class Settings {
         prefs.put(PREF_GPSTRACK_STOREPATH, path);
     }
 
+    public static boolean isIncrementalExport() {
+        return prefs.getBoolean(PREF_INCREMENTAL_EXPORT, false);
+    }
+
+    public static void setIncrementalExport(boolean enabled) {
+        prefs.putBoolean(PREF_INCREMENTAL_EXPORT, enabled);
+    }
+
+    public static boolean isKmlSuperOverlay() {
+        return prefs.getBoolean(PREF_KML_SUPEROVERLAY, false);
+    }
+
+    public static void setKmlSuperOverlay(boolean enabled) {
+        prefs.putBoolean(PREF_KML_SUPEROVERLAY, enabled);
+    }
+
+    public static int getUploadWindow() {
+        return prefs.getInt(PREF_UPLOAD_WINDOW, 4);
+    }
+
+    public static void setUploadWindow(int window) {
+        prefs.putInt(PREF_UPLOAD_WINDOW, window);
+    }
+
+    public static int getUploadBaudRate() {
+        return prefs.getInt(PREF_UPLOAD_BAUDRATE, 0);
+    }
+
+    public static void setUploadBaudRate(int baudRate) {
+        prefs.putInt(PREF_UPLOAD_BAUDRATE, baudRate);
+    }
+
+    public static boolean isUploadBinary() {
+        return prefs.getBoolean(PREF_UPLOAD_BINARY, false);
+    }
+
+    public static void setUploadBinary(boolean enabled) {
+        prefs.putBoolean(PREF_UPLOAD_BINARY, enabled);
+    }
+
+    public static boolean isUploadCache() {
+        return prefs.getBoolean(PREF_UPLOAD_CACHE, true);
+    }
+
+    public static void setUploadCache(boolean enabled) {
+        prefs.putBoolean(PREF_UPLOAD_CACHE, enabled);
+    }
+
+    public static int getUploadRangeDays() {
+        return prefs.getInt(PREF_UPLOAD_RANGE_DAYS, 0);
+    }
+
+    public static void setUploadRangeDays(int days) {
+        prefs.putInt(PREF_UPLOAD_RANGE_DAYS, days);
+    }
+
+    public static boolean isSerialReaderThread() {
+        return prefs.getBoolean(PREF_SERIAL_READER_THREAD, false);
+    }
+
+    public static void setSerialReaderThread(boolean enabled) {
+        prefs.putBoolean(PREF_SERIAL_READER_THREAD, enabled);
+    }
+
+    public static int getSerialReadTimeout() {
+        return prefs.getInt(PREF_SERIAL_READ_TIMEOUT, 100);
+    }
+
+    public static void setSerialReadTimeout(int timeout) {
+        prefs.putInt(PREF_SERIAL_READ_TIMEOUT, timeout);
+    }
+
+    public static List<String> getTcpEndpoints() {
+        String endpoints = prefs.get(PREF_TCP_ENDPOINTS, "");
+        return endpoints.isEmpty() ? new ArrayList<>() : new ArrayList<>(Arrays.asList(endpoints.split(",")));
+    }
+
+    public static void setTcpEndpoints(List<String> endpoints) {
+        prefs.put(PREF_TCP_ENDPOINTS, String.join(",", endpoints));
+    }
+
+    public static boolean isCapture() {
+        return prefs.getBoolean(PREF_CAPTURE, false);
+    }
+
+    public static void setCapture(boolean enabled) {
+        prefs.putBoolean(PREF_CAPTURE, enabled);
+    }
+
+    public static int getCaptureFileSize() {
+        return prefs.getInt(PREF_CAPTURE_FILE_SIZE, 16 * 1024 * 1024);
+    }
+
+    public static void setCaptureFileSize(int size) {
+        prefs.putInt(PREF_CAPTURE_FILE_SIZE, size);
+    }
+
+    public static int getCaptureFiles() {
+        return prefs.getInt(PREF_CAPTURE_FILES, 8);
+    }
+
+    public static void setCaptureFiles(int files) {
+        prefs.putInt(PREF_CAPTURE_FILES, files);
+    }
+
+    public static int getUploadBlockSize(String device) {
+        return prefs.getInt(deviceKey(PREF_UPLOAD_BLOCKSIZE, device), 0);
+    }
+
+    public static void setUploadBlockSize(String device, int size) {
+        prefs.putInt(deviceKey(PREF_UPLOAD_BLOCKSIZE, device), size);
+    }
+
+    /**
+     * Compose preference key of device specific setting.
+     *
+     * @param prefix The preference key prefix.
+     * @param device The device key. (model, firmware, ...)
+     * @return The preference key, within {@link Preferences#MAX_KEY_LENGTH}.
+     */
+    private static String deviceKey(String prefix, String device) {
+        String key = prefix + device.replaceAll("[^A-Za-z0-9.,_-]", "_");
+        return key.length() > Preferences.MAX_KEY_LENGTH ? key.substring(0, Preferences.MAX_KEY_LENGTH) : key;
+    }
+
 }
@@ -0,0 +1,84 @@
+/*
+ * Copyright 2018 Ben Peng
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.benpl.gpsutility.misc;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The one timer thread of program, shared by all timeouts. (response timeouts, keepalives, retries, port refresh)
+ * <p>
+ * Scheduling and cancelling are cheap, no thread is created per timeout. The handle returned is cancelled by
+ * {@link ScheduledFuture#cancel(boolean)} with {@code false}, and a cancelled timeout is removed at once, so
+ * thousands of short-lived timeouts do not pile up. Tasks are executed on the timer thread one by one, so they must
+ * be short: hand the actual work over to its own thread. (e.g. {@code LoggerThread.execute()})
+ */
+public final class SharedTimer {
+
+    private static final ScheduledThreadPoolExecutor executor;
+
+    static {
+        executor = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread thread = new Thread(runnable, "Timer-Shared");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.setRemoveOnCancelPolicy(true);
+    }
+
+    private SharedTimer() {
+    }
+
+    /**
+     * Schedule a one-shot timeout.
+     *
+     * @param task  The task to be executed on expiry.
+     * @param delay Delay before expiry. (milliseconds)
+     * @return Handle to cancel the timeout.
+     */
+    public static ScheduledFuture<?> schedule(Runnable task, long delay) {
+        return executor.schedule(guard(task), delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Schedule a periodic timer.
+     *
+     * @param task         The task to be executed on each expiry.
+     * @param initialDelay Delay before first expiry. (milliseconds)
+     * @param period       Period of expiries. (milliseconds)
+     * @return Handle to cancel the timer.
+     */
+    public static ScheduledFuture<?> scheduleAtFixedRate(Runnable task, long initialDelay, long period) {
+        return executor.scheduleAtFixedRate(guard(task), initialDelay, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Wrap task, so that an exception thrown neither kills the timer thread nor silently stops a periodic timer.
+     *
+     * @param task The task to be wrapped.
+     * @return The wrapped task.
+     */
+    private static Runnable guard(Runnable task) {
+        return () -> {
+            try {
+                task.run();
+            } catch (RuntimeException ex) {
+                Logging.errorln("Timer task failed: %s", ex);
+            }
+        };
+    }
+}
@@ -17,6 +17,7 @@ package net.benpl.gpsutility.misc;
 
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.util.Arrays;
 
 /**
  * Miscellaneous utilities.
@@ -24,10 +25,23 @@ import java.nio.ByteOrder;
 public class Utils {
 
     private static final char[] HEX_ARRAY = {'0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'A', 'B', 'C', 'D', 'E', 'F'};
+    /**
+     * Lookup table of Hex digit values, indexed by ASCII character. (-1: not a Hex digit)
+     */
+    private static final byte[] HEX_VALUES = new byte[128];
     private static final double EARTH_EQUATORIAL_RADIUS = 6378137.0; // a
     private static final double EARTH_POLE_RADIUS = 6356752.3;       // b
     private static final double EARTH_RADIUS = 6371008.8;            // r = 1/3 * (2a + b)
 
+    static {
+        Arrays.fill(HEX_VALUES, (byte) -1);
+        for (int i = 0; i < 10; i++) HEX_VALUES['0' + i] = (byte) i;
+        for (int i = 0; i < 6; i++) {
+            HEX_VALUES['A' + i] = (byte) (10 + i);
+            HEX_VALUES['a' + i] = (byte) (10 + i);
+        }
+    }
+
     /**
      * Calculate spherical distance between two coordinates.
      * <p>
@@ -85,8 +99,20 @@ public class Utils {
      * @return The XOR checksum.
      */
     public static int getCheckSum(String str) {
+        return getCheckSum(str, 0, str.length());
+    }
+
+    /**
+     * XOR checksum of a range of string, without substring.
+     *
+     * @param str  String to be calculated.
+     * @param from Index of the first character. (inclusive)
+     * @param to   Index of the last character. (exclusive)
+     * @return The XOR checksum.
+     */
+    public static int getCheckSum(CharSequence str, int from, int to) {
         int chk = 0;
-        for (int i = 0; i < str.length(); i++) {
+        for (int i = from; i < to; i++) {
             chk ^= str.charAt(i);
         }
         return chk & 0x00FF;
@@ -141,13 +167,19 @@ public class Utils {
      * @return Converted digit; or -1 in case of failure.
      */
     private static int charToDigit(char ch) {
-        if (ch >= '0' && ch <= '9') return (ch - '0');
-        else if (ch >= 'A' && ch <= 'F') return (ch - 'A' + 10);
-        else if (ch >= 'a' && ch <= 'f') return (ch - 'a' + 10);
-        else {
-            Logging.errorln("Invalid character: [%c]", ch);
-            return -1;
-        }
+        int digit = hexDigit(ch);
+        if (digit == -1) Logging.errorln("Invalid character: [%c]", ch);
+        return digit;
+    }
+
+    /**
+     * Convert Hex character to digit by lookup table, silently.
+     *
+     * @param ch Character value.
+     * @return Converted digit; or -1 if not a Hex digit.
+     */
+    public static int hexDigit(char ch) {
+        return ch < HEX_VALUES.length ? HEX_VALUES[ch] : -1;
     }
 
     /**
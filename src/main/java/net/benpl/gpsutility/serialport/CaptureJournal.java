@@ -0,0 +1,295 @@
+/*
+ * Copyright 2018 Ben Peng
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.benpl.gpsutility.serialport;
+
+import net.benpl.gpsutility.misc.Logging;
+import net.benpl.gpsutility.misc.Settings;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * Journal of raw traffic on {@link CommPort}, cheap enough to be left on in production.
+ * <p>
+ * Each frame received (RX) or sent (TX) is appended as a record to a preallocated journal file, mapped in memory:
+ * record header (data length, time since journal opened, direction) followed by the bytes of frame, copied in one go.
+ * Nothing else is done per frame, no formatting, no system call. Once a journal file is full, a new one is started,
+ * and the oldest files of the port beyond {@link Settings#getCaptureFiles()} are deleted.
+ * <p>
+ * Journal file layout:
+ * <pre>
+ * Header: "GPSUJNL1" (8 bytes), epoch time opened (8 bytes, ms)
+ * Record: data length (4 bytes, 0: end of journal), time since opened (8 bytes, ns), direction ('R'/'T'), data
+ * </pre>
+ * See {@link CaptureJournalTool} to dump or replay journal files.
+ */
+public final class CaptureJournal {
+
+    /**
+     * Handler of journal records read.
+     */
+    public interface RecordHandler {
+        /**
+         * Callback on a record read.
+         *
+         * @param time Epoch time of record. (ms, with fraction)
+         * @param rx   TRUE - received from logger; FALSE - sent to logger.
+         * @param data The bytes of frame.
+         */
+        void onRecord(double time, boolean rx, byte[] data);
+    }
+
+    private static final byte[] MAGIC = "GPSUJNL1".getBytes(StandardCharsets.US_ASCII);
+    private static final int HEADER_SIZE = MAGIC.length + 8;
+    private static final int RECORD_HEADER_SIZE = 4 + 8 + 1;
+    private static final byte DIR_RX = 'R';
+    private static final byte DIR_TX = 'T';
+    private static final String EXTENSION = ".jnl";
+
+    /**
+     * Name of port, as prefix of journal files.
+     */
+    private final String prefix;
+    /**
+     * Size of each journal file.
+     */
+    private final int fileSize;
+    /**
+     * Journal file mapped. (NULL: failed to start new file, capture stopped)
+     */
+    private MappedByteBuffer buffer;
+    /**
+     * System.nanoTime() as journal file opened.
+     */
+    private long openedAt;
+    /**
+     * Sequence of journal files started.
+     */
+    private int seq = 0;
+
+    /**
+     * Constructor.
+     *
+     * @param prefix   Name of port, as prefix of journal files.
+     * @param fileSize Size of each journal file.
+     */
+    private CaptureJournal(String prefix, int fileSize) {
+        this.prefix = prefix;
+        this.fileSize = fileSize;
+    }
+
+    /**
+     * Start capture on a port.
+     *
+     * @param portName Name of port.
+     * @return The journal; or NULL if failed to create journal file.
+     */
+    public static CaptureJournal open(String portName) {
+        String prefix = portName.replaceAll("[^A-Za-z0-9.-]", "_");
+        CaptureJournal journal = new CaptureJournal(prefix, Settings.getCaptureFileSize());
+        return journal.startFile() ? journal : null;
+    }
+
+    /**
+     * Append frame received from logger.
+     *
+     * @param buff   The bytes received.
+     * @param offset Offset of frame.
+     * @param length Number of bytes of frame.
+     */
+    public void rx(byte[] buff, int offset, int length) {
+        append(DIR_RX, buff, offset, length);
+    }
+
+    /**
+     * Append frame sent to logger.
+     *
+     * @param buff   The bytes sent.
+     * @param offset Offset of frame.
+     * @param length Number of bytes of frame.
+     */
+    public void tx(byte[] buff, int offset, int length) {
+        append(DIR_TX, buff, offset, length);
+    }
+
+    /**
+     * Append a record, starting a new journal file if full.
+     *
+     * @param dir    Direction.
+     * @param buff   The bytes of frame.
+     * @param offset Offset of frame.
+     * @param length Number of bytes of frame.
+     */
+    private synchronized void append(byte dir, byte[] buff, int offset, int length) {
+        if (buffer == null || length <= 0) return;
+
+        // Frames longer than a journal file are cut, never happens with sane file size.
+        length = Math.min(length, fileSize - HEADER_SIZE - RECORD_HEADER_SIZE - 4);
+        if (buffer.remaining() < RECORD_HEADER_SIZE + length + 4) {
+            // Rotate. (Zero-filled space left as end of journal)
+            if (!startFile()) return;
+        }
+
+        buffer.putInt(length);
+        buffer.putLong(System.nanoTime() - openedAt);
+        buffer.put(dir);
+        buffer.put(buff, offset, length);
+    }
+
+    /**
+     * Flush and close the journal.
+     */
+    public synchronized void close() {
+        if (buffer != null) {
+            buffer.force();
+            buffer = null;
+        }
+    }
+
+    /**
+     * Start a new journal file, and delete the oldest files of this port beyond limit.
+     *
+     * @return TRUE - started; FALSE - failed, capture stopped.
+     */
+    private boolean startFile() {
+        close();
+
+        Path dir = Paths.get(Settings.getCaptureDir());
+        String name = String.format("%s-%s-%d%s", prefix, new SimpleDateFormat("yyyyMMdd-HHmmss-SSS").format(new Date()), seq++, EXTENSION);
+        Path file = dir.resolve(name);
+
+        try {
+            Files.createDirectories(dir);
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                // Mapping extends the file to its full size at once.
+                buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, fileSize);
+            }
+        } catch (IOException ex) {
+            Logging.errorln("Failed to start capture journal %s: %s", file, ex.getMessage());
+            buffer = null;
+            return false;
+        }
+
+        openedAt = System.nanoTime();
+        buffer.put(MAGIC);
+        buffer.putLong(System.currentTimeMillis());
+
+        deleteOldFiles(dir, file);
+        return true;
+    }
+
+    /**
+     * Delete the oldest journal files of this port beyond limit. Files of other ports, which may be mapped by their
+     * own journals right now, are never touched.
+     * <p>
+     * Files are ordered by the time and sequence in their names, not by last modified time, which is not reliably
+     * updated on writes through mapping.
+     *
+     * @param dir  Directory of journal files.
+     * @param file The journal file just started, always kept.
+     */
+    private void deleteOldFiles(Path dir, Path file) {
+        Pattern pattern = Pattern.compile(Pattern.quote(prefix) + "-(\\d{8}-\\d{6}-\\d{3})-(\\d+)" + Pattern.quote(EXTENSION));
+
+        // Files of this port, from the newest. (keyed by time and sequence, zero padded to be ordered as string)
+        TreeMap<String, Path> files = new TreeMap<>(Comparator.reverseOrder());
+        try (Stream<Path> stream = Files.list(dir)) {
+            stream.filter(path -> !path.equals(file)).forEach(path -> {
+                Matcher matcher = pattern.matcher(path.getFileName().toString());
+                if (matcher.matches()) {
+                    files.put(String.format("%s-%010d", matcher.group(1), Long.parseLong(matcher.group(2))), path);
+                }
+            });
+        } catch (IOException | NumberFormatException ex) {
+            return;
+        }
+
+        // The file just started is one of the limit.
+        int kept = 1;
+        for (Path path : files.values()) {
+            if (kept++ < Settings.getCaptureFiles()) continue;
+            try {
+                Files.deleteIfExists(path);
+            } catch (IOException ex) {
+                // Still mapped (until garbage collected), deleted next time.
+            }
+        }
+    }
+
+    /**
+     * Test if the file is a journal file.
+     *
+     * @param file The file.
+     * @return TRUE - journal file; FALSE - otherwise.
+     */
+    public static boolean isJournal(Path file) {
+        try (InputStream in = Files.newInputStream(file)) {
+            return Arrays.equals(in.readNBytes(MAGIC.length), MAGIC);
+        } catch (IOException ex) {
+            return false;
+        }
+    }
+
+    /**
+     * Read all records of journal file.
+     *
+     * @param file    The journal file.
+     * @param handler Handler of records read.
+     * @throws IOException If failed to read, or not a journal file.
+     */
+    public static void read(Path file, RecordHandler handler) throws IOException {
+        ByteBuffer buff = ByteBuffer.wrap(Files.readAllBytes(file));
+
+        byte[] magic = new byte[MAGIC.length];
+        if (buff.remaining() < HEADER_SIZE) {
+            throw new IOException("Not a capture journal: " + file);
+        }
+        buff.get(magic);
+        if (!Arrays.equals(magic, MAGIC)) {
+            throw new IOException("Not a capture journal: " + file);
+        }
+        long epoch = buff.getLong();
+
+        try {
+            for (int length; buff.remaining() >= RECORD_HEADER_SIZE && (length = buff.getInt()) > 0; ) {
+                long time = buff.getLong();
+                boolean rx = buff.get() == DIR_RX;
+                byte[] data = new byte[length];
+                buff.get(data);
+                handler.onRecord(epoch + time / 1e6, rx, data);
+            }
+        } catch (BufferUnderflowException ex) {
+            // Last record cut, e.g. power off while capturing.
+        }
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright 2018 Ben Peng
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.benpl.gpsutility.serialport;
+
+import net.benpl.gpsutility.misc.Utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Command line tool on {@link CaptureJournal} files.
+ * <pre>
+ * dump   [journal]            Print records, one per line: time, direction, length, then text or Hex.
+ * replay [journal] [tcpPort]  Act as the logger captured, on TCP port (default 2000). Connect to it by
+ *                             'Ports - Add TCP bridge...'. RX frames are sent back at unlimited speed, each time
+ *                             the TX frame before them is received. (matched by length)
+ * </pre>
+ * Captured traffic may also be replayed in program directly, by 'Ports - Replay captured traffic...'.
+ */
+public final class CaptureJournalTool {
+
+    private CaptureJournalTool() {
+    }
+
+    public static void main(String[] args) {
+        if (args.length < 2 || !("dump".equals(args[0]) || "replay".equals(args[0]))) {
+            System.err.println("Usage: CaptureJournalTool dump [journal] | replay [journal] [tcpPort]");
+            System.exit(1);
+        }
+
+        Path file = Paths.get(args[1]);
+        try {
+            if ("dump".equals(args[0])) {
+                dump(file);
+            } else {
+                replay(file, args.length > 2 ? Integer.parseInt(args[2]) : 2000);
+            }
+        } catch (IOException | NumberFormatException ex) {
+            System.err.println(ex.getMessage());
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Print records of journal file.
+     *
+     * @param file The journal file.
+     * @throws IOException If failed to read.
+     */
+    private static void dump(Path file) throws IOException {
+        SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+        CaptureJournal.read(file, (time, rx, data) -> System.out.printf("%s %s %5d %s%n",
+                sdf.format(new Date((long) time)), rx ? "==>" : "<==", data.length, toText(data)));
+    }
+
+    /**
+     * Printable form of frame: NMEA as text, anything else as Hex.
+     *
+     * @param data The bytes of frame.
+     * @return Printable form.
+     */
+    private static String toText(byte[] data) {
+        for (byte b : data) {
+            if ((b < 0x20 || b > 0x7E) && b != '\r' && b != '\n') return Utils.toHexString(data, 0, data.length);
+        }
+        return new String(data, StandardCharsets.US_ASCII).replace("\r", "\\r").replace("\n", "\\n");
+    }
+
+    /**
+     * Serve journal file on TCP port, as the logger captured.
+     *
+     * @param file    The journal file.
+     * @param tcpPort TCP port to listen on.
+     * @throws IOException If failed to read, or to serve.
+     */
+    private static void replay(Path file, int tcpPort) throws IOException {
+        List<ReplayTransport.Frame> frames = new ArrayList<>();
+        CaptureJournal.read(file, (time, rx, data) -> frames.add(new ReplayTransport.Frame(rx, data)));
+        System.out.printf("%d frames loaded, listening on %d...%n", frames.size(), tcpPort);
+
+        try (ServerSocket server = new ServerSocket(tcpPort); Socket socket = server.accept()) {
+            socket.setTcpNoDelay(true);
+            InputStream in = socket.getInputStream();
+            OutputStream out = socket.getOutputStream();
+
+            long bytes = 0;
+            long startAt = System.nanoTime();
+            for (ReplayTransport.Frame frame : frames) {
+                if (frame.isRx()) {
+                    out.write(frame.getData());
+                    bytes += frame.getData().length;
+                } else if (in.readNBytes(frame.getData().length).length < frame.getData().length) {
+                    System.out.println("Disconnected");
+                    break;
+                }
+            }
+
+            double seconds = (System.nanoTime() - startAt) / 1e9;
+            System.out.printf("Replay done: %d bytes, %.1f KB/s%n", bytes, seconds > 0 ? bytes / 1024.0 / seconds : 0);
+        }
+    }
+}
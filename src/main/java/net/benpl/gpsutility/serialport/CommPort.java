@@ -16,55 +16,90 @@
 package net.benpl.gpsutility.serialport;
 
 import com.fazecast.jSerialComm.SerialPort;
-import com.fazecast.jSerialComm.SerialPortDataListener;
-import com.fazecast.jSerialComm.SerialPortEvent;
 import net.benpl.gpsutility.logger.NmeaListener;
+import net.benpl.gpsutility.logger.PacketListener;
 import net.benpl.gpsutility.misc.Logging;
+import net.benpl.gpsutility.misc.Settings;
 
 import java.nio.charset.StandardCharsets;
 
-import static com.fazecast.jSerialComm.SerialPort.TIMEOUT_NONBLOCKING;
-
 /**
- * CommPort is the wrapper of {@link com.fazecast.jSerialComm.SerialPort}.
+ * CommPort is the port a logger attached to, framing the bytes of its {@link Transport}.
+ * (serial port by default, see {@link SerialTransport})
+ * <p>
+ * Incoming data is framed as NMEA sentences by default. While a {@link PacketListener} is attached, it is framed as
+ * {@link MtkPacket} instead, for the logger has been switched to MTK binary protocol.
  */
-public final class CommPort implements SerialPortDataListener {
+public final class CommPort {
     /**
      * Pre-defined tag for end of NMEA package.
      */
     private final static String END_OF_PACKAGE = "\r\n";
+    /**
+     * Size of ring buffer to frame NMEA sentences. (power of 2, far longer than any NMEA sentence)
+     */
+    private final static int RING_SIZE = 1 << 16;
+    private final static int RING_MASK = RING_SIZE - 1;
+    /**
+     * Max number of bytes received at once, from any transport.
+     */
+    private final static int MAX_RECV_LEN = SerialTransport.READER_BUFF_SIZE;
 
     /**
-     * Name of this wrapped serial port.
+     * Name of this port.
      */
     private final String name;
     /**
-     * The wrapped serial port.
+     * The transport under this port. (NULL: placeholder of no port available)
+     */
+    private final Transport transport;
+    /**
+     * Journal of raw traffic, if capture enabled. (NULL: not capturing)
      */
-    private final SerialPort serialPort;
+    private volatile CaptureJournal journal = null;
     /**
      * Listener on NMEA sentence.
      */
     private NmeaListener nmeaListener = null;
+    /**
+     * Listener on MTK binary packet. (binary mode if not null)
+     */
+    private PacketListener packetListener = null;
 
     /**
-     * Byte buffer to receive data from serial port.
+     * Ring buffer to store data not framed yet, in NMEA mode.
+     */
+    private final byte[] ringBuff = new byte[RING_SIZE];
+    /**
+     * Position (not wrapped) of the first byte of NMEA sentence being framed, in ring buffer.
      */
-    private final byte[] byteBuff = new byte[6144];
+    private int ringHead = 0;
     /**
-     * String buffer to store data converted from byteBuff.
+     * Position (not wrapped) of the next byte to be received, in ring buffer.
      */
-    private String strBuff = "";
+    private int ringTail = 0;
+    /**
+     * Buffer to line up the NMEA sentence wrapped around the end of ring buffer.
+     */
+    private final byte[] lineBuff = new byte[RING_SIZE];
+    /**
+     * Packet buffer to store data not framed yet, in binary mode.
+     */
+    private final byte[] pktBuff = new byte[MtkPacket.MAX_LENGTH + MAX_RECV_LEN];
+    /**
+     * Number of bytes in packet buffer.
+     */
+    private int pktLen = 0;
 
     /**
      * Constructor.
      *
-     * @param name       Name of this wrapped serial port.
-     * @param serialPort The wrapped serial port.
+     * @param name      Name of this port.
+     * @param transport The transport under this port; or NULL as placeholder of no port available.
      */
-    public CommPort(String name, SerialPort serialPort) {
+    public CommPort(String name, Transport transport) {
         this.name = name;
-        this.serialPort = serialPort;
+        this.transport = transport;
     }
 
     public String getName() {
@@ -72,18 +107,27 @@ public final class CommPort implements SerialPortDataListener {
     }
 
     /**
-     * Get name of this wrapped serial port.
+     * Get the transport under this port.
      *
-     * @return Name of this wrapped serial port.
+     * @return The transport; or NULL if placeholder.
+     */
+    public Transport getTransport() {
+        return transport;
+    }
+
+    /**
+     * Get the wrapped serial port, if this port is on serial port.
+     *
+     * @return The wrapped serial port; or NULL if on other transport, or placeholder.
      */
     public SerialPort getPort() {
-        return serialPort;
+        return transport instanceof SerialTransport ? ((SerialTransport) transport).getPort() : null;
     }
 
     /**
-     * Display name of wrapped serial port by {@link net.benpl.gpsutility.logger.PrimaryController#commPorts}.
+     * Display name of port by {@link net.benpl.gpsutility.logger.PrimaryController#commPorts}.
      *
-     * @return Name of this wrapped serial port.
+     * @return Name of this port.
      */
     @Override
     public String toString() {
@@ -100,10 +144,25 @@ public final class CommPort implements SerialPortDataListener {
      * @param commFlowCtrl Serial port flow control.
      */
     public void setParameters(int commBaudRate, int commDataBits, int commParity, int commStopBits, int commFlowCtrl) {
-        serialPort.setComPortParameters(commBaudRate, commDataBits, commStopBits, commParity);
-        serialPort.setFlowControl(commFlowCtrl);
-        // Note that write timeouts (2000 milliseconds) are only available on Windows operating systems. This value is ignored on all other systems.
-        serialPort.setComPortTimeouts(TIMEOUT_NONBLOCKING, 0, 2000);
+        transport.setParameters(commBaudRate, commDataBits, commParity, commStopBits, commFlowCtrl);
+    }
+
+    /**
+     * Get current baud rate of this serial port.
+     *
+     * @return Serial port baud rate.
+     */
+    public int getBaudRate() {
+        return transport.getBaudRate();
+    }
+
+    /**
+     * Test if baud rate of this port may be changed on the fly with logger.
+     *
+     * @return TRUE - adjustable, FALSE - otherwise.
+     */
+    public boolean isBaudRateAdjustable() {
+        return transport.isBaudRateAdjustable();
     }
 
     /**
@@ -116,71 +175,191 @@ public final class CommPort implements SerialPortDataListener {
     }
 
     /**
-     * Override to return desired event {@link SerialPort#LISTENING_EVENT_DATA_AVAILABLE} for which the {@link #serialEvent(SerialPortEvent)}
-     * callback should be triggered.
-     * <p>
-     * Valid event constants are:
-     * {@link SerialPort#LISTENING_EVENT_DATA_AVAILABLE}
-     * {@link SerialPort#LISTENING_EVENT_DATA_RECEIVED}
-     * {@link SerialPort#LISTENING_EVENT_DATA_WRITTEN}
+     * Set listener on receiving MTK binary packet, to switch between binary mode and NMEA mode.
      *
-     * @return The event constants that should trigger the {@link #serialEvent(SerialPortEvent)} callback.
+     * @param packetListener Listener on MTK binary packet; or NULL to return to NMEA mode.
      */
-    @Override
-    public int getListeningEvents() {
-        // Listen on data available only.
-        return SerialPort.LISTENING_EVENT_DATA_AVAILABLE;
+    public void setPacketListener(PacketListener packetListener) {
+        synchronized (this) {
+            this.packetListener = packetListener;
+            pktLen = 0;
+            ringHead = ringTail;
+        }
     }
 
     /**
-     * Called whenever one of the serial port events specified by the {@link #getListeningEvents()} method occurs.
+     * Frame data received from transport as NMEA sentences or MTK binary packets, per current mode.
      *
-     * @param event A {@link SerialPortEvent} object containing information and/or data about the serial event that occurred.
+     * @param recvBuff Byte buffer of received data.
+     * @param recvLen  Number of bytes received.
      */
-    @Override
-    public void serialEvent(SerialPortEvent event) {
+    private void recvData(byte[] recvBuff, int recvLen) {
+        CaptureJournal j = journal;
+        if (j != null) j.rx(recvBuff, 0, recvLen);
+
         synchronized (this) {
-            int eventType = event.getEventType();
-
-            switch (eventType) {
-                case SerialPort.LISTENING_EVENT_DATA_AVAILABLE:
-                    int i;
-                    // Read data out from serial port
-                    int recvLen = serialPort.readBytes(byteBuff, byteBuff.length);
-                    // Discard the data if no listener attached.
-                    if (nmeaListener == null) break;
-                    // Convert byte array to string, and append to string buffer.
-                    String strRecv = strBuff + new String(byteBuff, 0, recvLen, StandardCharsets.US_ASCII);
-                    // Split the whole string into segments with END_OF_PACKAGE
-                    String[] segs = strRecv.split(END_OF_PACKAGE);
-                    // Segmentation failure means no END_OF_PACKAGE found.
-                    // Put new string into buffer, and continue listening...
-                    if (segs.length == 0) {
-                        strBuff = strRecv;
-                        break;
-                    }
-                    // Send string segment to listener one by one.
-                    for (i = 0; i < (segs.length - 1); i++) {
-                        nmeaListener.recvNmea(segs[i]);
-                    }
-                    // Verify the last string segment if it is ended with '\r\n'
-                    i = segs.length - 1;
-                    if (strRecv.endsWith(END_OF_PACKAGE)) {
-                        // If the last segment is also ended with '\r\n', send it out.
-                        nmeaListener.recvNmea(segs[i]);
-                        // And free the string buffer.
-                        strBuff = "";
-                    } else {
-                        // Otherwise, put the last segment into buffer.
-                        strBuff = segs[i];
-                    }
-
-                    break;
-
-                default:
-                    break;
+            // Framed piece by piece, so the buffers never overflow with valid data.
+            for (int offset = 0, len; offset < recvLen; offset += len) {
+                len = Math.min(recvLen - offset, MAX_RECV_LEN);
+                // Binary mode
+                if (packetListener != null) {
+                    framePackets(recvBuff, offset, len);
+                    continue;
+                }
+                // Discard the data if no listener attached.
+                if (nmeaListener == null) {
+                    ringHead = ringTail;
+                    continue;
+                }
+                frameNmea(recvBuff, offset, len);
+            }
+        }
+    }
+
+    /**
+     * Append received data to ring buffer, and send complete NMEA sentences to listener one by one.
+     * <p>
+     * Only the bytes just received are scanned for END_OF_PACKAGE, so a long sentence arriving in many pieces is
+     * scanned once. A sentence started with '$' is checked for '*hh' in place, and the bytes before a '$' found in
+     * the middle of such a sentence (lost END_OF_PACKAGE) are dropped, so one String is created per valid sentence.
+     *
+     * @param recvBuff Byte buffer of received data.
+     * @param offset   Offset of received data in byte buffer.
+     * @param recvLen  Number of bytes received.
+     */
+    private void frameNmea(byte[] recvBuff, int offset, int recvLen) {
+        if (ringTail - ringHead + recvLen > RING_SIZE) {
+            // Never happens with valid sentences.
+            Logging.errorln("NMEA buffer overflow, %d bytes dropped", ringTail - ringHead);
+            ringHead = ringTail;
+        }
+
+        // Append to ring buffer, wrapped around its end if necessary.
+        int pos = ringTail & RING_MASK;
+        int first = Math.min(recvLen, RING_SIZE - pos);
+        System.arraycopy(recvBuff, offset, ringBuff, pos, first);
+        System.arraycopy(recvBuff, offset + first, ringBuff, 0, recvLen - first);
+
+        int scan = ringTail;
+        ringTail += recvLen;
+
+        for (; scan != ringTail; scan++) {
+            byte b = ringBuff[scan & RING_MASK];
+
+            if (b == '$' && scan != ringHead && ringBuff[ringHead & RING_MASK] == '$') {
+                // New sentence started before the last one ended.
+                Logging.errorln("Invalid NMEA: %d bytes without end of package", scan - ringHead);
+                ringHead = scan;
+                continue;
+            }
+
+            // Sentence ended with '\r\n'
+            if (b != '\n' || scan == ringHead || ringBuff[(scan - 1) & RING_MASK] != '\r') continue;
+
+            int head = ringHead;
+            int length = scan - 1 - head;
+            ringHead = scan + 1;
+
+            // Empty line
+            if (length == 0) continue;
+
+            if (ringBuff[head & RING_MASK] == '$' && (length < 4 || ringBuff[(head + length - 3) & RING_MASK] != '*')) {
+                Logging.errorln("Invalid NMEA: %d bytes without checksum", length);
+                continue;
             }
+
+            nmeaListener.recvNmea(sentenceOf(head, length));
+        }
+    }
+
+    /**
+     * Create NMEA sentence from ring buffer.
+     *
+     * @param head   Position (not wrapped) of the first byte of sentence.
+     * @param length Number of bytes of sentence. (without END_OF_PACKAGE)
+     * @return The NMEA sentence.
+     */
+    private String sentenceOf(int head, int length) {
+        int pos = head & RING_MASK;
+        int first = RING_SIZE - pos;
+        if (length <= first) {
+            return new String(ringBuff, pos, length, StandardCharsets.US_ASCII);
         }
+
+        // Wrapped around the end of ring buffer.
+        System.arraycopy(ringBuff, pos, lineBuff, 0, first);
+        System.arraycopy(ringBuff, 0, lineBuff, first, length - first);
+        return new String(lineBuff, 0, length, StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Append received data to packet buffer, and send complete packets to listener one by one.
+     * Garbage before preamble (e.g. NMEA sentences sent before switch) and corrupted packets are dropped.
+     *
+     * @param recvBuff Byte buffer of received data.
+     * @param offset   Offset of received data in byte buffer.
+     * @param recvLen  Number of bytes received.
+     */
+    private void framePackets(byte[] recvBuff, int offset, int recvLen) {
+        if (pktLen + recvLen > pktBuff.length) {
+            // Never happens with valid packets.
+            Logging.errorln("Packet buffer overflow, %d bytes dropped", pktLen);
+            pktLen = 0;
+        }
+        System.arraycopy(recvBuff, offset, pktBuff, pktLen, recvLen);
+        pktLen += recvLen;
+
+        int start = 0;
+        while (pktLen - start >= MtkPacket.OVERHEAD) {
+            // Search for preamble
+            if (pktBuff[start] != MtkPacket.PREAMBLE_0 || pktBuff[start + 1] != MtkPacket.PREAMBLE_1) {
+                start++;
+                continue;
+            }
+
+            int length = (pktBuff[start + 2] & 0xFF) | (pktBuff[start + 3] & 0xFF) << 8;
+            if (length < MtkPacket.OVERHEAD) {
+                // Not a packet, search for next preamble.
+                start++;
+                continue;
+            }
+            if (pktLen - start < length) {
+                // Wait for the rest of packet.
+                break;
+            }
+
+            int end = start + length;
+            if (pktBuff[end - 2] != MtkPacket.TAIL_0 || pktBuff[end - 1] != MtkPacket.TAIL_1
+                    || pktBuff[end - 3] != MtkPacket.checksum(pktBuff, start + 2, end - 3)) {
+                Logging.errorln("Invalid packet: %d bytes dropped", length);
+                start++;
+                continue;
+            }
+
+            int type = (pktBuff[start + 4] & 0xFF) | (pktBuff[start + 5] & 0xFF) << 8;
+            byte[] data = new byte[length - MtkPacket.OVERHEAD];
+            System.arraycopy(pktBuff, start + 6, data, 0, data.length);
+            packetListener.recvPacket(new MtkPacket(type, data));
+
+            start = end;
+        }
+
+        // Keep the incomplete packet at the beginning of buffer.
+        if (start > 0) {
+            pktLen -= start;
+            System.arraycopy(pktBuff, start, pktBuff, 0, pktLen);
+        }
+    }
+
+    /**
+     * Method to send MTK binary packet on the serial port.
+     *
+     * @param packet The packet to be sent.
+     * @return TRUE - data sent successfully, FALSE - otherwise.
+     */
+    public boolean sendPacket(MtkPacket packet) {
+        byte[] buff = packet.toBytes();
+        return write(buff);
     }
 
     /**
@@ -192,27 +371,40 @@ public final class CommPort implements SerialPortDataListener {
      */
     public boolean sendData(String nmea) {
         byte[] buff = (nmea + END_OF_PACKAGE).getBytes(StandardCharsets.US_ASCII);
-        int sent = serialPort.writeBytes(buff, buff.length);
-        return (sent == buff.length);
+        return write(buff);
+    }
+
+    /**
+     * Write bytes to transport, and to journal if capturing.
+     *
+     * @param buff Bytes to be written.
+     * @return TRUE - data sent successfully, FALSE - otherwise.
+     */
+    private boolean write(byte[] buff) {
+        CaptureJournal j = journal;
+        if (j != null) j.tx(buff, 0, buff.length);
+
+        return transport.write(buff, buff.length);
     }
 
     /**
-     * Method to open serial port for communication.
+     * Method to open port for communication.
      *
      * @return TRUE - opened successfully, FALSE - otherwise.
      */
     public boolean openPort() {
         Logging.info("Open serial port [%s]...", name);
 
-        strBuff = "";
+        synchronized (this) {
+            ringHead = ringTail;
+            packetListener = null;
+            pktLen = 0;
+        }
 
-        if (serialPort.isOpen()) {
-            Logging.infoln("success");
-            serialPort.addDataListener(CommPort.this);
-            return true;
-        } else if (serialPort.openPort()) {
+        if (Settings.isCapture()) journal = CaptureJournal.open(name);
+
+        if (transport.open(this::recvData)) {
             Logging.infoln("success");
-            serialPort.addDataListener(CommPort.this);
             return true;
         } else {
             Logging.infoln("failed");
@@ -221,23 +413,22 @@ public final class CommPort implements SerialPortDataListener {
     }
 
     /**
-     * Method to close serial port.
+     * Method to close port.
      */
     public void closePort() {
         Logging.info("Close serial port [%s]...", name);
 
         nmeaListener = null;
-        serialPort.removeDataListener();
-
-        if (serialPort.isOpen()) {
-            // Close the serial port
-            if (serialPort.closePort()) {
-                Logging.infoln("success");
-            } else {
-                Logging.infoln("failed");
-            }
-        } else {
+        packetListener = null;
+
+        if (transport.close()) {
             Logging.infoln("success");
+        } else {
+            Logging.infoln("failed");
         }
+
+        CaptureJournal j = journal;
+        journal = null;
+        if (j != null) j.close();
     }
 }
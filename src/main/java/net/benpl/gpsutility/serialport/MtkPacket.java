@@ -0,0 +1,154 @@
+/*
+ * Copyright 2018 Ben Peng
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.benpl.gpsutility.serialport;
+
+/**
+ * Packet of MTK binary protocol.
+ * <p>
+ * Layout on the wire:
+ * <pre>
+ * 0x04 0x24 | length (2 bytes) | type (2 bytes) | data (n bytes) | checksum (1 byte) | 0x0D 0x0A
+ * </pre>
+ * All multi-byte fields are little-endian. The length covers the whole packet, preamble and tail included.
+ * The checksum is XOR of the bytes from length to the end of data.
+ * The type is the number of corresponding PMTK command. (e.g. 182 for 'PMTK182')
+ */
+public final class MtkPacket {
+
+    static final byte PREAMBLE_0 = 0x04;
+    static final byte PREAMBLE_1 = 0x24;
+    static final byte TAIL_0 = 0x0D;
+    static final byte TAIL_1 = 0x0A;
+
+    /**
+     * Bytes of packet besides data. (preamble 2, length 2, type 2, checksum 1, tail 2)
+     */
+    public static final int OVERHEAD = 9;
+    /**
+     * Maximum length of packet, limited by the 2 bytes length field.
+     */
+    public static final int MAX_LENGTH = 0xFFFF;
+
+    /**
+     * Packet type. (PMTK command number)
+     */
+    private final int type;
+    /**
+     * Packet data.
+     */
+    private final byte[] data;
+
+    /**
+     * Constructor.
+     *
+     * @param type Packet type. (PMTK command number)
+     * @param data Packet data.
+     */
+    public MtkPacket(int type, byte[] data) {
+        this.type = type;
+        this.data = data;
+    }
+
+    /**
+     * Get packet type.
+     *
+     * @return Packet type. (PMTK command number)
+     */
+    public int getType() {
+        return type;
+    }
+
+    /**
+     * Get packet data.
+     *
+     * @return Packet data.
+     */
+    public byte[] getData() {
+        return data;
+    }
+
+    /**
+     * Read unsigned little-endian 32-bit value from packet data.
+     *
+     * @param offset Offset in packet data.
+     * @return The value; or -1 if packet data is too short.
+     */
+    public long getUInt32(int offset) {
+        if (offset < 0 || offset + 4 > data.length) return -1;
+
+        return (data[offset] & 0xFFL)
+                | (data[offset + 1] & 0xFFL) << 8
+                | (data[offset + 2] & 0xFFL) << 16
+                | (data[offset + 3] & 0xFFL) << 24;
+    }
+
+    /**
+     * Write little-endian 32-bit value into byte array.
+     *
+     * @param buff   The byte array.
+     * @param offset Offset in byte array.
+     * @param value  The value.
+     */
+    public static void putUInt32(byte[] buff, int offset, long value) {
+        buff[offset] = (byte) value;
+        buff[offset + 1] = (byte) (value >> 8);
+        buff[offset + 2] = (byte) (value >> 16);
+        buff[offset + 3] = (byte) (value >> 24);
+    }
+
+    /**
+     * Encapsulate this packet to be sent out.
+     *
+     * @return The packet bytes on the wire.
+     */
+    public byte[] toBytes() {
+        int length = data.length + OVERHEAD;
+        byte[] buff = new byte[length];
+
+        buff[0] = PREAMBLE_0;
+        buff[1] = PREAMBLE_1;
+        buff[2] = (byte) length;
+        buff[3] = (byte) (length >> 8);
+        buff[4] = (byte) type;
+        buff[5] = (byte) (type >> 8);
+        System.arraycopy(data, 0, buff, 6, data.length);
+        buff[length - 3] = checksum(buff, 2, length - 3);
+        buff[length - 2] = TAIL_0;
+        buff[length - 1] = TAIL_1;
+        return buff;
+    }
+
+    /**
+     * Calculate checksum of packet.
+     *
+     * @param buff The byte array.
+     * @param from Index of the first byte. (inclusive)
+     * @param to   Index of the last byte. (exclusive)
+     * @return XOR of the bytes.
+     */
+    static byte checksum(byte[] buff, int from, int to) {
+        byte chk = 0;
+        for (int i = from; i < to; i++) {
+            chk ^= buff[i];
+        }
+        return chk;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("MTK%d[%d bytes]", type, data.length);
+    }
+}
@@ -0,0 +1,193 @@
+/*
+ * Copyright 2018 Ben Peng
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.benpl.gpsutility.serialport;
+
+import net.benpl.gpsutility.misc.Logging;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+
+/**
+ * In-memory transport, replaying captured traffic as if a logger were attached. No hardware is involved.
+ * <p>
+ * The captured frames received from logger (RX) are fed to receiver at unlimited speed, paced only by the frames
+ * sent to logger (TX): the RX frames after a TX frame are fed once the program writes its next sentence. So the whole
+ * protocol stack ({@code LoggerThread}, {@code RecvJob}, parsers) runs at full speed, to be load-tested and profiled.
+ * <p>
+ * TX frames are matched by order, not by content, so the program should do the same as when captured.
+ */
+public final class ReplayTransport implements Transport {
+
+    /**
+     * Captured frame.
+     */
+    public static final class Frame {
+        private final boolean rx;
+        private final byte[] data;
+
+        /**
+         * Constructor.
+         *
+         * @param rx   TRUE - received from logger; FALSE - sent to logger.
+         * @param data The bytes of frame.
+         */
+        public Frame(boolean rx, byte[] data) {
+            this.rx = rx;
+            this.data = data;
+        }
+
+        public boolean isRx() {
+            return rx;
+        }
+
+        public byte[] getData() {
+            return data;
+        }
+    }
+
+    /**
+     * Prefix of sentence received and sent, in debug log.
+     */
+    private static final String LOG_RX = "==> ";
+    private static final String LOG_TX = "<== ";
+
+    private final List<Frame> frames;
+
+    /**
+     * Nominal baud rate of the link.
+     */
+    private int baudRate = 0;
+    /**
+     * Number of writes not replayed yet.
+     */
+    private final Semaphore written = new Semaphore(0);
+    /**
+     * Thread feeding RX frames to receiver. (NULL: closed)
+     */
+    private Thread feeder = null;
+
+    /**
+     * Constructor.
+     *
+     * @param frames The captured frames, in order.
+     */
+    public ReplayTransport(List<Frame> frames) {
+        this.frames = Collections.unmodifiableList(new ArrayList<>(frames));
+    }
+
+    /**
+     * Load captured frames from {@link CaptureJournal} file, or NMEA sentences from debug log.
+     * ('==> $...' received, '<== $...' sent; other lines ignored)
+     *
+     * @param file The journal file, or debug log file.
+     * @return The captured frames.
+     * @throws IOException If failed to read the file.
+     */
+    public static List<Frame> load(Path file) throws IOException {
+        List<Frame> frames = new ArrayList<>();
+        if (CaptureJournal.isJournal(file)) {
+            CaptureJournal.read(file, (time, rx, data) -> frames.add(new Frame(rx, data)));
+            return frames;
+        }
+
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.US_ASCII)) {
+            for (String line; (line = reader.readLine()) != null; ) {
+                boolean rx = line.startsWith(LOG_RX);
+                if (!rx && !line.startsWith(LOG_TX)) continue;
+
+                String nmea = line.substring(LOG_RX.length()).trim();
+                if (!nmea.startsWith("$")) continue;
+                frames.add(new Frame(rx, (nmea + "\r\n").getBytes(StandardCharsets.US_ASCII)));
+            }
+        }
+        return frames;
+    }
+
+    @Override
+    public boolean open(Receiver receiver) {
+        written.drainPermits();
+
+        feeder = new Thread(() -> feed(receiver), "Thread-Replay");
+        feeder.setDaemon(true);
+        feeder.start();
+        return true;
+    }
+
+    /**
+     * Body of feeder thread. Feed RX frames to receiver, waiting for a write at each TX frame.
+     *
+     * @param receiver Receiver of incoming bytes.
+     */
+    private void feed(Receiver receiver) {
+        long bytes = 0;
+        long startAt = System.nanoTime();
+
+        try {
+            for (Frame frame : frames) {
+                if (frame.rx) {
+                    receiver.recvData(frame.data, frame.data.length);
+                    bytes += frame.data.length;
+                } else {
+                    written.acquire();
+                }
+            }
+        } catch (InterruptedException ex) {
+            return;
+        }
+
+        double seconds = (System.nanoTime() - startAt) / 1e9;
+        Logging.debugln("Replay done: %d frames, %d bytes, %.1f KB/s", frames.size(), bytes, seconds > 0 ? bytes / 1024.0 / seconds : 0);
+    }
+
+    @Override
+    public boolean close() {
+        Thread thread = feeder;
+        feeder = null;
+        if (thread != null && thread != Thread.currentThread()) {
+            thread.interrupt();
+            try {
+                thread.join(1000);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public boolean write(byte[] buff, int length) {
+        if (feeder == null) return false;
+        written.release();
+        return true;
+    }
+
+    @Override
+    public void setParameters(int commBaudRate, int commDataBits, int commParity, int commStopBits, int commFlowCtrl) {
+        this.baudRate = commBaudRate;
+    }
+
+    @Override
+    public int getBaudRate() {
+        return baudRate;
+    }
+}
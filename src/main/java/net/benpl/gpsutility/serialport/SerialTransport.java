@@ -0,0 +1,241 @@
+/*
+ * Copyright 2018 Ben Peng
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.benpl.gpsutility.serialport;
+
+import com.fazecast.jSerialComm.SerialPort;
+import com.fazecast.jSerialComm.SerialPortDataListener;
+import com.fazecast.jSerialComm.SerialPortEvent;
+import net.benpl.gpsutility.misc.Logging;
+import net.benpl.gpsutility.misc.Settings;
+
+import static com.fazecast.jSerialComm.SerialPort.TIMEOUT_NONBLOCKING;
+import static com.fazecast.jSerialComm.SerialPort.TIMEOUT_READ_SEMI_BLOCKING;
+
+/**
+ * Transport on {@link com.fazecast.jSerialComm.SerialPort}.
+ * <p>
+ * Incoming data is received in one of two modes, chosen on open ({@link Settings#isSerialReaderThread()}):
+ * by jSerialComm callback on data available, or by a dedicated reader thread with semi-blocking reads. The reader
+ * thread takes as much data as available per read, without event dispatch and its wakeup latency. Both modes log
+ * the bytes received, number of reads and throughput on close, to compare them with each other.
+ */
+public final class SerialTransport implements Transport, SerialPortDataListener {
+    /**
+     * Size of buffer of reader thread, for large reads at high baud rate.
+     */
+    final static int READER_BUFF_SIZE = 1 << 14;
+
+    /**
+     * The wrapped serial port.
+     */
+    private final SerialPort serialPort;
+    /**
+     * Receiver of incoming bytes.
+     */
+    private Receiver receiver = null;
+
+    /**
+     * Byte buffer to receive data from serial port, in callback mode.
+     */
+    private final byte[] byteBuff = new byte[6144];
+    /**
+     * Byte buffer to receive data from serial port, in reader thread mode.
+     */
+    private final byte[] readerBuff = new byte[READER_BUFF_SIZE];
+    /**
+     * Dedicated reader thread. (NULL: callback mode)
+     */
+    private Thread readerThread = null;
+    /**
+     * Whether the reader thread keeps reading.
+     */
+    private volatile boolean reading = false;
+    /**
+     * Read timeout of reader thread. (milliseconds)
+     */
+    private int readTimeout = 0;
+    /**
+     * Statistics since open: bytes received, number of reads, open time.
+     */
+    private long rxBytes = 0;
+    private long rxReads = 0;
+    private long openedAt = 0;
+
+    /**
+     * Constructor.
+     *
+     * @param serialPort The wrapped serial port.
+     */
+    public SerialTransport(SerialPort serialPort) {
+        this.serialPort = serialPort;
+    }
+
+    /**
+     * Get the wrapped serial port.
+     *
+     * @return The wrapped serial port.
+     */
+    public SerialPort getPort() {
+        return serialPort;
+    }
+
+    @Override
+    public void setParameters(int commBaudRate, int commDataBits, int commParity, int commStopBits, int commFlowCtrl) {
+        serialPort.setComPortParameters(commBaudRate, commDataBits, commStopBits, commParity);
+        serialPort.setFlowControl(commFlowCtrl);
+        setTimeouts();
+    }
+
+    /**
+     * Set timeouts of this serial port, per receive mode.
+     */
+    private void setTimeouts() {
+        // Note that write timeouts (2000 milliseconds) are only available on Windows operating systems. This value is ignored on all other systems.
+        if (readerThread != null) {
+            serialPort.setComPortTimeouts(TIMEOUT_READ_SEMI_BLOCKING, readTimeout, 2000);
+        } else {
+            serialPort.setComPortTimeouts(TIMEOUT_NONBLOCKING, 0, 2000);
+        }
+    }
+
+    @Override
+    public int getBaudRate() {
+        return serialPort.getBaudRate();
+    }
+
+    @Override
+    public boolean isBaudRateAdjustable() {
+        return true;
+    }
+
+    /**
+     * Override to return desired event {@link SerialPort#LISTENING_EVENT_DATA_AVAILABLE} for which the {@link #serialEvent(SerialPortEvent)}
+     * callback should be triggered.
+     * <p>
+     * Valid event constants are:
+     * {@link SerialPort#LISTENING_EVENT_DATA_AVAILABLE}
+     * {@link SerialPort#LISTENING_EVENT_DATA_RECEIVED}
+     * {@link SerialPort#LISTENING_EVENT_DATA_WRITTEN}
+     *
+     * @return The event constants that should trigger the {@link #serialEvent(SerialPortEvent)} callback.
+     */
+    @Override
+    public int getListeningEvents() {
+        // Listen on data available only.
+        return SerialPort.LISTENING_EVENT_DATA_AVAILABLE;
+    }
+
+    /**
+     * Called whenever one of the serial port events specified by the {@link #getListeningEvents()} method occurs.
+     *
+     * @param event A {@link SerialPortEvent} object containing information and/or data about the serial event that occurred.
+     */
+    @Override
+    public void serialEvent(SerialPortEvent event) {
+        if (event.getEventType() == SerialPort.LISTENING_EVENT_DATA_AVAILABLE) {
+            // Read data out from serial port
+            int recvLen = serialPort.readBytes(byteBuff, byteBuff.length);
+            if (recvLen > 0) deliver(byteBuff, recvLen);
+        }
+    }
+
+    /**
+     * Body of reader thread. Read data out from serial port as much as available, until port closed.
+     */
+    private void readLoop() {
+        while (reading) {
+            // Semi-blocking: returns once any data available, or read timeout.
+            int recvLen = serialPort.readBytes(readerBuff, readerBuff.length);
+            if (recvLen < 0) {
+                if (reading) Logging.errorln("Serial port [%s] read failed", serialPort.getSystemPortName());
+                break;
+            }
+            if (recvLen > 0) deliver(readerBuff, recvLen);
+        }
+    }
+
+    /**
+     * Deliver received data to receiver.
+     *
+     * @param recvBuff Byte buffer of received data.
+     * @param recvLen  Number of bytes received.
+     */
+    private void deliver(byte[] recvBuff, int recvLen) {
+        rxBytes += recvLen;
+        rxReads++;
+
+        Receiver r = receiver;
+        if (r != null) r.recvData(recvBuff, recvLen);
+    }
+
+    @Override
+    public boolean write(byte[] buff, int length) {
+        int sent = serialPort.writeBytes(buff, length);
+        return (sent == length);
+    }
+
+    @Override
+    public boolean open(Receiver receiver) {
+        if (!serialPort.isOpen() && !serialPort.openPort()) return false;
+
+        this.receiver = receiver;
+        rxBytes = 0;
+        rxReads = 0;
+        openedAt = System.nanoTime();
+
+        if (Settings.isSerialReaderThread()) {
+            readTimeout = Settings.getSerialReadTimeout();
+            reading = true;
+            readerThread = new Thread(this::readLoop, "Thread-SerialReader");
+            readerThread.setDaemon(true);
+            setTimeouts();
+            readerThread.start();
+        } else {
+            setTimeouts();
+            serialPort.addDataListener(this);
+        }
+        return true;
+    }
+
+    @Override
+    public boolean close() {
+        receiver = null;
+        serialPort.removeDataListener();
+
+        Thread thread = readerThread;
+        if (thread != null) {
+            reading = false;
+            readerThread = null;
+            // The reader thread quits on read timeout at latest.
+            if (thread != Thread.currentThread()) {
+                try {
+                    thread.join(readTimeout + 1000);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+
+        if (openedAt != 0) {
+            double seconds = (System.nanoTime() - openedAt) / 1e9;
+            openedAt = 0;
+            Logging.debugln("Serial port [%s] (%s): %d bytes in %d reads, %.1f KB/s",
+                    serialPort.getSystemPortName(), thread != null ? "reader thread" : "callback", rxBytes, rxReads, seconds > 0 ? rxBytes / 1024.0 / seconds : 0);
+        }
+
+        return !serialPort.isOpen() || serialPort.closePort();
+    }
+}
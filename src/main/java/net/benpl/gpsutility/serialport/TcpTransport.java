@@ -0,0 +1,169 @@
+/*
+ * Copyright 2018 Ben Peng
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.benpl.gpsutility.serialport;
+
+import net.benpl.gpsutility.misc.Logging;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+/**
+ * Transport on TCP socket, to the logger attached to a serial-to-TCP bridge. (e.g. Bluetooth-to-TCP bridge, ser2net)
+ * <p>
+ * The serial side of bridge is configured on its own, at fixed baud rate. The baud rate set on this transport is the
+ * nominal rate of the link only, and it is never changed on the fly.
+ */
+public final class TcpTransport implements Transport {
+    /**
+     * Timeout to connect the bridge. (milliseconds)
+     */
+    private static final int CONNECT_TIMEOUT = 3000;
+
+    private final String host;
+    private final int port;
+
+    /**
+     * Nominal baud rate of the link.
+     */
+    private int baudRate = 0;
+    /**
+     * The connected socket. (NULL: closed)
+     */
+    private Socket socket = null;
+    private OutputStream out = null;
+    /**
+     * Reader thread delivering incoming bytes to receiver.
+     */
+    private Thread readerThread = null;
+
+    /**
+     * Constructor.
+     *
+     * @param host Host name or address of the bridge.
+     * @param port TCP port of the bridge.
+     */
+    public TcpTransport(String host, int port) {
+        this.host = host;
+        this.port = port;
+    }
+
+    /**
+     * Parse bridge endpoint 'host:port'.
+     *
+     * @param endpoint The endpoint.
+     * @return The transport to the endpoint; or NULL if malformed.
+     */
+    public static TcpTransport of(String endpoint) {
+        int colon = endpoint.lastIndexOf(':');
+        if (colon <= 0) return null;
+
+        try {
+            int port = Integer.parseInt(endpoint.substring(colon + 1).trim());
+            if (port <= 0 || port > 65535) return null;
+            return new TcpTransport(endpoint.substring(0, colon).trim(), port);
+        } catch (NumberFormatException ex) {
+            return null;
+        }
+    }
+
+    @Override
+    public boolean open(Receiver receiver) {
+        Socket s = new Socket();
+        InputStream in;
+        try {
+            s.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT);
+            // NMEA commands are short, do not hold them back.
+            s.setTcpNoDelay(true);
+            in = s.getInputStream();
+            out = s.getOutputStream();
+        } catch (IOException ex) {
+            Logging.errorln("Failed to connect %s:%d: %s", host, port, ex.getMessage());
+            try {
+                s.close();
+            } catch (IOException ignored) {
+            }
+            return false;
+        }
+        socket = s;
+
+        readerThread = new Thread(() -> {
+            byte[] buff = new byte[SerialTransport.READER_BUFF_SIZE];
+            try {
+                for (int len; (len = in.read(buff)) >= 0; ) {
+                    if (len > 0) receiver.recvData(buff, len);
+                }
+            } catch (IOException ex) {
+                if (!s.isClosed()) Logging.errorln("Failed to read %s:%d: %s", host, port, ex.getMessage());
+            }
+        }, "Thread-TcpReader");
+        readerThread.setDaemon(true);
+        readerThread.start();
+        return true;
+    }
+
+    @Override
+    public boolean close() {
+        Socket s = socket;
+        Thread thread = readerThread;
+        socket = null;
+        out = null;
+        readerThread = null;
+        if (s == null) return true;
+
+        try {
+            // Unblocks the reader thread.
+            s.close();
+        } catch (IOException ex) {
+            return false;
+        }
+
+        if (thread != null && thread != Thread.currentThread()) {
+            try {
+                thread.join(1000);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public boolean write(byte[] buff, int length) {
+        OutputStream o = out;
+        if (o == null) return false;
+
+        try {
+            o.write(buff, 0, length);
+            return true;
+        } catch (IOException ex) {
+            Logging.errorln("Failed to write %s:%d: %s", host, port, ex.getMessage());
+            return false;
+        }
+    }
+
+    @Override
+    public void setParameters(int commBaudRate, int commDataBits, int commParity, int commStopBits, int commFlowCtrl) {
+        this.baudRate = commBaudRate;
+    }
+
+    @Override
+    public int getBaudRate() {
+        return baudRate;
+    }
+}
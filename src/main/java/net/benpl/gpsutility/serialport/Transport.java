@@ -0,0 +1,90 @@
+/*
+ * Copyright 2018 Ben Peng
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.benpl.gpsutility.serialport;
+
+/**
+ * Byte stream to/from logger, under {@link CommPort}.
+ * <p>
+ * CommPort frames the bytes as NMEA sentences or MTK binary packets, while the transport only moves bytes. So a
+ * logger may be attached by serial port ({@link SerialTransport}), by TCP socket ({@link TcpTransport}, e.g.
+ * Bluetooth-to-TCP bridge, ser2net), or be replayed from captured traffic ({@link ReplayTransport}).
+ */
+public interface Transport {
+
+    /**
+     * Receiver of incoming bytes.
+     */
+    interface Receiver {
+        /**
+         * Bytes received from transport. (the buffer is reused once returned)
+         *
+         * @param recvBuff Byte buffer of received data.
+         * @param recvLen  Number of bytes received.
+         */
+        void recvData(byte[] recvBuff, int recvLen);
+    }
+
+    /**
+     * Open the transport, and start to deliver incoming bytes to receiver.
+     *
+     * @param receiver Receiver of incoming bytes.
+     * @return TRUE - opened successfully, FALSE - otherwise.
+     */
+    boolean open(Receiver receiver);
+
+    /**
+     * Stop delivering incoming bytes, and close the transport.
+     *
+     * @return TRUE - closed successfully, FALSE - otherwise.
+     */
+    boolean close();
+
+    /**
+     * Write bytes out.
+     *
+     * @param buff   Bytes to be written.
+     * @param length Number of bytes to be written.
+     * @return TRUE - written successfully, FALSE - otherwise.
+     */
+    boolean write(byte[] buff, int length);
+
+    /**
+     * Set serial parameters. Transports not of serial port take the baud rate as nominal rate of the link only.
+     *
+     * @param commBaudRate Serial port baud rate.
+     * @param commDataBits Serial port data bits.
+     * @param commParity   Serial port parity.
+     * @param commStopBits Serial port stop bits.
+     * @param commFlowCtrl Serial port flow control.
+     */
+    void setParameters(int commBaudRate, int commDataBits, int commParity, int commStopBits, int commFlowCtrl);
+
+    /**
+     * Get current baud rate, or nominal rate of the link.
+     *
+     * @return Baud rate.
+     */
+    int getBaudRate();
+
+    /**
+     * Test if baud rate may be changed on the fly with logger. (e.g. not through a bridge at fixed baud rate)
+     *
+     * @return TRUE - adjustable, FALSE - otherwise.
+     */
+    default boolean isBaudRateAdjustable() {
+        return false;
+    }
+}